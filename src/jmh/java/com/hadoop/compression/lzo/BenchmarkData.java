@@ -0,0 +1,97 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Synthetic inputs shared by the JMH benchmarks.
+ */
+public final class BenchmarkData {
+
+  private static final String[] WORDS = { "the", "quick", "brown", "fox",
+    "jumps", "over", "lazy", "dog", "hadoop", "lzo", "block", "index", "split",
+    "record", "GET", "/api/v1/status", "200", "404", "2013-07-01T12:00:00Z" };
+
+  private BenchmarkData() { }
+
+  /**
+   * Generate log-like text: space separated words from a small vocabulary,
+   * in lines of about <code>lineLength</code> bytes. The same seed always
+   * gives the same corpus, so results are comparable between runs.
+   */
+  public static byte[] textCorpus(int size, int lineLength, long seed) {
+    Random random = new Random(seed);
+    byte[] corpus = new byte[size];
+    int pos = 0;
+    int lineStart = 0;
+    // vary line lengths by +/-50% around the requested length
+    int target = lineLength / 2 + random.nextInt(lineLength + 1);
+    while (pos < size) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      for (int i = 0; i < word.length() && pos < size; i++) {
+        corpus[pos++] = (byte) word.charAt(i);
+      }
+      if (pos < size) {
+        boolean endOfLine = pos - lineStart >= target;
+        corpus[pos++] = (byte) (endOfLine ? '\n' : ' ');
+        if (endOfLine) {
+          lineStart = pos;
+          target = lineLength / 2 + random.nextInt(lineLength + 1);
+        }
+      }
+    }
+    return corpus;
+  }
+
+  /**
+   * Create an empty temporary directory.
+   */
+  public static File tempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Could not create temporary directory " + dir);
+    }
+    return dir;
+  }
+
+  /**
+   * An OutputStream that discards everything written to it, but counts it.
+   */
+  public static class CountingSink extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+
+    public long getCount() {
+      return count;
+    }
+  }
+}
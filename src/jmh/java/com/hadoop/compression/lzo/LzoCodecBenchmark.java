@@ -0,0 +1,161 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Block compression and decompression throughput for every lzo strategy.
+ * Each operation is one 256KB block of log-like text.
+ *
+ * Strategies other than the LZO1X family need the native-lzo library; without
+ * it their setup fails and JMH moves on to the next strategy.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LzoCodecBenchmark {
+
+  static final int BLOCK_SIZE = 256 * 1024;
+  /** Room for LZO2A's worst-case expansion, the largest of any strategy. */
+  static final int BUFFER_SIZE = BLOCK_SIZE + (BLOCK_SIZE >> 3) + 128 + 3;
+
+  @State(Scope.Thread)
+  public static class CompressState {
+    @Param({ "LZO1", "LZO1_99", "LZO1A", "LZO1A_99", "LZO1B",
+      "LZO1B_BEST_COMPRESSION", "LZO1B_BEST_SPEED", "LZO1B_1", "LZO1B_2",
+      "LZO1B_3", "LZO1B_4", "LZO1B_5", "LZO1B_6", "LZO1B_7", "LZO1B_8",
+      "LZO1B_9", "LZO1B_99", "LZO1B_999", "LZO1C", "LZO1C_BEST_COMPRESSION",
+      "LZO1C_BEST_SPEED", "LZO1C_1", "LZO1C_2", "LZO1C_3", "LZO1C_4",
+      "LZO1C_5", "LZO1C_6", "LZO1C_7", "LZO1C_8", "LZO1C_9", "LZO1C_99",
+      "LZO1C_999", "LZO1F_1", "LZO1F_999", "LZO1X_1", "LZO1X_11", "LZO1X_12",
+      "LZO1X_15", "LZO1X_999", "LZO1Y_1", "LZO1Y_999", "LZO1Z_999",
+      "LZO2A_999" })
+    public String strategy;
+
+    LzoCompressor compressor;
+    byte[] block;
+    byte[] out;
+
+    @Setup
+    public void setup() {
+      LzoCompressor.CompressionStrategy s =
+        LzoCompressor.CompressionStrategy.valueOf(strategy);
+      if (!LzoCodec.isLzoCompressionAvailable(new Configuration(), s)) {
+        throw new IllegalStateException(strategy + " needs the native-lzo library");
+      }
+      compressor = new LzoCompressor(s, BUFFER_SIZE);
+      block = BenchmarkData.textCorpus(BLOCK_SIZE, 120, 0);
+      out = new byte[BUFFER_SIZE];
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class DecompressState {
+    @Param({ "LZO1", "LZO1A", "LZO1B", "LZO1B_SAFE", "LZO1C", "LZO1C_SAFE",
+      "LZO1C_ASM", "LZO1C_ASM_SAFE", "LZO1F", "LZO1F_SAFE", "LZO1F_ASM_FAST",
+      "LZO1F_ASM_FAST_SAFE", "LZO1X", "LZO1X_SAFE", "LZO1X_ASM",
+      "LZO1X_ASM_SAFE", "LZO1X_ASM_FAST", "LZO1X_ASM_FAST_SAFE", "LZO1Y",
+      "LZO1Y_SAFE", "LZO1Y_ASM", "LZO1Y_ASM_SAFE", "LZO1Y_ASM_FAST",
+      "LZO1Y_ASM_FAST_SAFE", "LZO1Z", "LZO1Z_SAFE", "LZO2A", "LZO2A_SAFE" })
+    public String strategy;
+
+    LzoDecompressor decompressor;
+    byte[] compressed;
+    int compressedLen;
+    byte[] out;
+
+    @Setup
+    public void setup() throws IOException {
+      LzoDecompressor.CompressionStrategy s =
+        LzoDecompressor.CompressionStrategy.valueOf(strategy);
+      Configuration conf = new Configuration();
+      if (!LzoCodec.isLzoDecompressionAvailable(conf, s)) {
+        throw new IllegalStateException(strategy + " needs the native-lzo library");
+      }
+
+      // Compress the input with the first compressor of the same family,
+      // e.g. LZO1X_1 for LZO1X_ASM_FAST.
+      String family = strategy.split("_")[0];
+      LzoCompressor.CompressionStrategy compression = null;
+      for (LzoCompressor.CompressionStrategy c :
+          LzoCompressor.CompressionStrategy.values()) {
+        if (c.name().equals(family) || c.name().startsWith(family + "_")) {
+          compression = c;
+          break;
+        }
+      }
+      if (!LzoCodec.isLzoCompressionAvailable(conf, compression)) {
+        throw new IllegalStateException(compression + " needs the native-lzo library");
+      }
+      byte[] block = BenchmarkData.textCorpus(BLOCK_SIZE, 120, 0);
+      compressed = new byte[BUFFER_SIZE];
+      compressedLen = compress(new LzoCompressor(compression, BUFFER_SIZE),
+          block, compressed);
+
+      decompressor = new LzoDecompressor(s, BUFFER_SIZE);
+      out = new byte[BLOCK_SIZE];
+    }
+  }
+
+  @Benchmark
+  public int compress(CompressState state) throws IOException {
+    return compress(state.compressor, state.block, state.out);
+  }
+
+  @Benchmark
+  public int decompress(DecompressState state) throws IOException {
+    LzoDecompressor decompressor = state.decompressor;
+    decompressor.reset();
+    decompressor.setInput(state.compressed, 0, state.compressedLen);
+    int len = 0;
+    while (!decompressor.finished()) {
+      len += decompressor.decompress(state.out, len, state.out.length - len);
+    }
+    return len;
+  }
+
+  static int compress(LzoCompressor compressor, byte[] block, byte[] out)
+      throws IOException {
+    compressor.reset();
+    compressor.setInput(block, 0, block.length);
+    compressor.finish();
+    int len = 0;
+    while (!compressor.finished()) {
+      len += compressor.compress(out, len, out.length - len);
+    }
+    return len;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and searching large {@link LzoIndex}es, read into memory or opened
+ * lazily. The default of a million blocks is the index of a ~250GB lzo file
+ * with 256KB blocks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LzoIndexBenchmark {
+
+  private static final int LOOKUPS = 1024;
+
+  @Param({ "1000000" })
+  public int blocks;
+
+  private File dir;
+  private FileSystem fs;
+  private Path lzoFile;
+  private LzoIndex index;
+  private long[] positions;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = BenchmarkData.tempDir("lzo-index-bench");
+    fs = FileSystem.getLocal(new Configuration());
+    lzoFile = new Path(dir.getAbsolutePath(), "big.lzo");
+
+    // Only the index file is read, so the lzo file itself is not written.
+    Random random = new Random(0);
+    FSDataOutputStream out = fs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX));
+    long pos = 0;
+    for (int i = 0; i < blocks; i++) {
+      pos += 100 * 1024 + random.nextInt(60 * 1024);
+      out.writeLong(pos);
+    }
+    out.close();
+
+    index = LzoIndex.readIndex(fs, lzoFile);
+    positions = new long[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      positions[i] = (long) (random.nextDouble() * pos);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Benchmark
+  public LzoIndex readIndex() throws IOException {
+    return LzoIndex.readIndex(fs, lzoFile);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public long openIndexAndFindNextPosition() throws IOException {
+    LzoIndex lazyIndex = LzoIndex.openIndex(fs, lzoFile);
+    long sum = 0;
+    for (long pos : positions) {
+      sum += lazyIndex.findNextPosition(pos);
+    }
+    lazyIndex.close();
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public long findNextPosition() {
+    long sum = 0;
+    for (long pos : positions) {
+      sum += index.findNextPosition(pos);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link LzopOutputStream#write(byte[], int, int)} and
+ * {@link LzopInputStream#read(byte[], int, int)} for a range of caller buffer
+ * sizes, with and without worker threads compressing or read-ahead
+ * decompressing blocks. Each operation writes or reads an 8MB corpus through
+ * a new stream, with the compressor or decompressor taken from the CodecPool
+ * as {@link LzopCodec} users do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LzopStreamBenchmark {
+
+  static final int CORPUS_SIZE = 8 * 1024 * 1024;
+
+  @State(Scope.Thread)
+  public static class WriteState {
+    @Param({ "1", "100", "4096", "65536", "1048576" })
+    public int writeSize;
+
+    @Param({ "0", "4" })
+    public int compressThreads;
+
+    LzopCodec codec;
+    byte[] corpus;
+
+    @Setup
+    public void setup() {
+      Configuration conf = new Configuration();
+      conf.setInt(LzopCodec.LZOP_COMPRESS_THREADS_KEY, compressThreads);
+      codec = new LzopCodec();
+      codec.setConf(conf);
+      corpus = BenchmarkData.textCorpus(CORPUS_SIZE, 120, 0);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ReadState {
+    @Param({ "1", "100", "4096", "65536" })
+    public int readSize;
+
+    @Param({ "0", "4" })
+    public int readAheadBlocks;
+
+    LzopCodec codec;
+    byte[] compressed;
+    byte[] buffer;
+
+    @Setup
+    public void setup() throws IOException {
+      Configuration conf = new Configuration();
+      conf.setInt(LzopCodec.LZOP_READAHEAD_BLOCKS_KEY, readAheadBlocks);
+      codec = new LzopCodec();
+      codec.setConf(conf);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      OutputStream out = codec.createOutputStream(bytes);
+      out.write(BenchmarkData.textCorpus(CORPUS_SIZE, 120, 0));
+      out.close();
+      compressed = bytes.toByteArray();
+      buffer = new byte[readSize];
+    }
+  }
+
+  @Benchmark
+  public long write(WriteState state) throws IOException {
+    BenchmarkData.CountingSink sink = new BenchmarkData.CountingSink();
+    OutputStream out = state.codec.createOutputStream(sink);
+    byte[] corpus = state.corpus;
+    for (int off = 0; off < corpus.length; off += state.writeSize) {
+      out.write(corpus, off, Math.min(state.writeSize, corpus.length - off));
+    }
+    out.close();
+    return sink.getCount();
+  }
+
+  @Benchmark
+  public long read(ReadState state) throws IOException {
+    InputStream in = state.codec.createInputStream(
+        new ByteArrayInputStream(state.compressed));
+    long total = 0;
+    int n;
+    while ((n = in.read(state.buffer, 0, state.buffer.length)) > 0) {
+      total += n;
+    }
+    in.close();
+    return total;
+  }
+}
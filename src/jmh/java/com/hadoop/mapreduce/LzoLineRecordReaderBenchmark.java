@@ -0,0 +1,108 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hadoop.compression.lzo.BenchmarkData;
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * Reading every record of a 32MB (uncompressed) lzo text file through
+ * {@link LzoLineRecordReader}, for short, typical and long lines.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LzoLineRecordReaderBenchmark {
+
+  private static final int CORPUS_SIZE = 32 * 1024 * 1024;
+
+  @Param({ "20", "200", "2000" })
+  public int lineLength;
+
+  private File dir;
+  private Path lzoFile;
+  private long fileLength;
+  private TaskAttemptContext context;
+
+  @Setup
+  public void setup() throws IOException {
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    dir = BenchmarkData.tempDir("lzo-reader-bench");
+    FileSystem fs = FileSystem.getLocal(conf);
+    lzoFile = new Path(dir.getAbsolutePath(), "corpus.lzo");
+
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createOutputStream(fs.create(lzoFile));
+    out.write(BenchmarkData.textCorpus(CORPUS_SIZE, lineLength, 0));
+    out.close();
+
+    fileLength = fs.getFileStatus(lzoFile).getLen();
+    context = CompatibilityUtil.newTaskAttemptContext(conf,
+        new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Benchmark
+  public long nextKeyValue() throws IOException, InterruptedException {
+    LzoLineRecordReader reader = new LzoLineRecordReader();
+    reader.initialize(new FileSplit(lzoFile, 0, fileLength, null), context);
+    long records = 0;
+    while (reader.nextKeyValue()) {
+      records++;
+    }
+    reader.close();
+    return records;
+  }
+}
@@ -3,7 +3,9 @@ package com.hadoop.compression.lzo;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 import com.hadoop.mapreduce.LzoIndexOutputFormat;
@@ -40,7 +42,14 @@ public class DistributedLzoIndexer extends Configured implements Tool {
 
       if (fileStatus.isDir()) {
         FileStatus[] children = fs.listStatus(path, pathFilter);
+        LzoDirectoryIndex directoryIndex = isDirectoryIndexing() ?
+            LzoDirectoryIndex.read(fs, path) : new LzoDirectoryIndex();
         for (FileStatus childStatus : children) {
+          if (directoryIndex.isCurrent(childStatus)) {
+            LOG.info("[SKIP] LZO file already indexed in " + LzoDirectoryIndex.getPath(path) +
+                ": " + childStatus.getPath());
+            continue;
+          }
           walkPath(childStatus.getPath(), pathFilter, accumulator);
         }
       } else if (path.toString().endsWith(LZO_EXTENSION)) {
@@ -55,6 +64,8 @@ public class DistributedLzoIndexer extends Configured implements Tool {
             LOG.info("Adding LZO file " + path + " to indexing list (index file exists but is zero length)");
             accumulator.add(path);
           }
+        } else if (LzoIndex.hasEmbeddedIndex(fs, path, fileStatus.getLen())) {
+          LOG.info("[SKIP] LZO file already embeds its index " + path);
         } else {
           // If no index exists, we need to index the file.
           LOG.info("Adding LZO file " + path + " to indexing list (no index currently exists)");
@@ -90,11 +101,6 @@ public class DistributedLzoIndexer extends Configured implements Tool {
     job.setOutputKeyClass(Path.class);
     job.setOutputValueClass(LongWritable.class);
 
-    // The LzoIndexOutputFormat doesn't currently work with speculative execution.
-    // Patches welcome.
-    job.getConfiguration().setBoolean(
-      "mapred.map.tasks.speculative.execution", false);
-
     job.setJarByClass(DistributedLzoIndexer.class);
     job.setInputFormatClass(LzoSplitInputFormat.class);
     job.setOutputFormatClass(LzoIndexOutputFormat.class);
@@ -105,23 +111,30 @@ public class DistributedLzoIndexer extends Configured implements Tool {
       FileInputFormat.addInputPath(job, p);
     }
 
+    // Large files are split across several mappers, unless
+    // LzoSplitInputFormat.LZO_SPLIT_FILES_KEY is false.
+    int numSplits = new LzoSplitInputFormat().getSplits(job).size();
+
     job.submit();
 
     LOG.info("Started DistributedIndexer " + job.getJobID() + " with " +
-        inputPaths.size() + " splits for " + Arrays.toString(args));
+        numSplits + " splits of " + inputPaths.size() + " files for " + Arrays.toString(args));
 
     if (job.waitForCompletion(true)) {
       long successfulMappers = CompatibilityUtil.getCounterValue(
           job.getCounters().findCounter(LzoSplitRecordReader.Counters.READ_SUCCESS));
 
-      if (successfulMappers == inputPaths.size()) {
+      if (successfulMappers == numSplits) {
+        if (isDirectoryIndexing()) {
+          updateDirectoryIndexes(inputPaths);
+        }
         return 0;
       }
 
       // some of the mappers failed
       LOG.error("DistributedIndexer " + job.getJobID() + " failed. "
-          + (inputPaths.size() - successfulMappers)
-          + " out of " + inputPaths.size() + " mappers failed.");
+          + (numSplits - successfulMappers)
+          + " out of " + numSplits + " mappers failed.");
     } else {
       LOG.error("DistributedIndexer job " + job.getJobID() + " failed.");
     }
@@ -129,6 +142,28 @@ public class DistributedLzoIndexer extends Configured implements Tool {
     return 1; // failure
   }
 
+  private boolean isDirectoryIndexing() {
+    return getConf().getBoolean(LzoDirectoryIndex.LZO_DIRECTORY_INDEX_KEY,
+        LzoDirectoryIndex.DEFAULT_LZO_DIRECTORY_INDEX);
+  }
+
+  /**
+   * Copy the index files the job wrote into the directory index of each
+   * directory they are in.
+   */
+  private void updateDirectoryIndexes(List<Path> lzoFiles) throws IOException {
+    Set<Path> dirs = new LinkedHashSet<Path>();
+    for (Path lzoFile : lzoFiles) {
+      dirs.add(lzoFile.getParent());
+    }
+    boolean removeIndexFiles = getConf().getBoolean(
+        LzoDirectoryIndex.LZO_DIRECTORY_INDEX_REMOVE_FILES_KEY,
+        LzoDirectoryIndex.DEFAULT_LZO_DIRECTORY_INDEX_REMOVE_FILES);
+    for (Path dir : dirs) {
+      LzoDirectoryIndex.update(dir.getFileSystem(getConf()), dir, false, removeIndexFiles);
+    }
+  }
+
   public static void main(String[] args) throws Exception {
     int exitCode = ToolRunner.run(new DistributedLzoIndexer(), args);
     System.exit(exitCode);
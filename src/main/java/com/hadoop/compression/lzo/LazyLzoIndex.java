@@ -0,0 +1,203 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * An {@link LzoIndex} which reads block positions from the index file as
+ * they are needed, a page at a time, with positional reads. Opening one does
+ * not read the file, and binary searches only read the pages they probe.
+ * Pages are kept once read; {@link #close()} releases the file.
+ * <p>
+ * A page of a version 1 index is 512 positions, or 4KB of the file. A page
+ * of a version 2 index is the entries of a restart interval, found through
+ * the restart table. Opening a version 2 index reads its header and trailer,
+ * but its checksum is only verified when it is read in full by
+ * {@link LzoIndex#readIndex}.
+ */
+final class LazyLzoIndex extends LzoIndex {
+  private static final int PAGE_SHIFT = 9;
+  private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+  private final FSDataInputStream indexIn;
+  private final int blocks;
+  private final long[][] pages;
+
+  // Version 2 only: where the restart table starts, the uncompressed offset
+  // of the end of each page, and the uncompressed length of the file.
+  private final boolean v2;
+  private final long restartsPos;
+  private final long[][] uncompressedPages;
+  private final long uncompressedLength;
+
+  /**
+   * @param indexIn the open version 1 index file, which this index now owns.
+   * @param blocks the number of positions in the file.
+   */
+  LazyLzoIndex(FSDataInputStream indexIn, int blocks) {
+    this(indexIn, blocks, false, 0, NOT_FOUND);
+  }
+
+  private LazyLzoIndex(FSDataInputStream indexIn, int blocks, boolean v2,
+      long restartsPos, long uncompressedLength) {
+    this.indexIn = indexIn;
+    this.blocks = blocks;
+    this.pages = new long[(blocks + PAGE_SIZE - 1) >>> PAGE_SHIFT][];
+    this.v2 = v2;
+    this.restartsPos = restartsPos;
+    this.uncompressedPages = v2 ? new long[pages.length][] : null;
+    this.uncompressedLength = uncompressedLength;
+  }
+
+  /**
+   * Open a version 2 index from its header and trailer.
+   *
+   * @param indexIn the open index file, which this index now owns.
+   * @param len the length of the index file.
+   */
+  static LazyLzoIndex openV2(FSDataInputStream indexIn, long len,
+      Path indexFile) throws IOException {
+    boolean opened = false;
+    try {
+      if (len < LzoIndex.V2_MAGIC.length + LzoIndex.V2_TRAILER_SIZE) {
+        throw new IOException("Truncated lzo index " + indexFile);
+      }
+      byte[] b = new byte[LzoIndex.V2_TRAILER_SIZE];
+      indexIn.readFully(len - b.length, b);
+      ByteBuffer trailer = ByteBuffer.wrap(b);
+      long blocks = trailer.getLong();
+      long uncompressedLength = trailer.getLong();
+      long restartsPos = trailer.getLong();
+      trailer.getInt(); // checksum
+      byte[] magic = new byte[LzoIndex.V2_TRAILER_MAGIC.length];
+      trailer.get(magic);
+      long restarts = (blocks + LzoIndex.V2_RESTART_INTERVAL - 1) / LzoIndex.V2_RESTART_INTERVAL;
+      if (!Arrays.equals(magic, LzoIndex.V2_TRAILER_MAGIC) || blocks < 0 ||
+          restartsPos + 16 * restarts != len - LzoIndex.V2_TRAILER_SIZE) {
+        throw new IOException("Corrupt lzo index " + indexFile);
+      }
+      LazyLzoIndex index = new LazyLzoIndex(indexIn, (int)blocks, true,
+          restartsPos, uncompressedLength);
+      opened = true;
+      return index;
+    } finally {
+      if (!opened) {
+        indexIn.close();
+      }
+    }
+  }
+
+  @Override
+  public void set(int blockNumber, long pos) {
+    throw new UnsupportedOperationException("LazyLzoIndex is read-only");
+  }
+
+  @Override
+  public int getNumberOfBlocks() {
+    return blocks;
+  }
+
+  @Override
+  public synchronized long getPosition(int block) {
+    if (block < 0 || block >= blocks) {
+      throw new ArrayIndexOutOfBoundsException(block);
+    }
+    return page(block >>> PAGE_SHIFT)[block & (PAGE_SIZE - 1)];
+  }
+
+  @Override
+  public boolean hasUncompressedOffsets() {
+    return v2;
+  }
+
+  @Override
+  public synchronized long getUncompressedOffset(int block) {
+    if (!v2) {
+      return NOT_FOUND;
+    }
+    if (block < 0 || block > blocks) {
+      throw new ArrayIndexOutOfBoundsException(block);
+    }
+    if (block == blocks) {
+      return uncompressedLength;
+    }
+    page(block >>> PAGE_SHIFT);
+    return uncompressedPages[block >>> PAGE_SHIFT][block & (PAGE_SIZE - 1)];
+  }
+
+  private long[] page(int pageNumber) {
+    long[] page = pages[pageNumber];
+    if (page == null) {
+      try {
+        page = v2 ? readV2Page(pageNumber) : readV1Page(pageNumber);
+      } catch (IOException e) {
+        // LzoIndex lookups don't throw IOException, so neither can this.
+        throw new RuntimeException("Error reading lzo index page " + pageNumber, e);
+      }
+      pages[pageNumber] = page;
+    }
+    return page;
+  }
+
+  private long[] readV1Page(int pageNumber) throws IOException {
+    int first = pageNumber << PAGE_SHIFT;
+    int count = Math.min(PAGE_SIZE, blocks - first);
+    byte[] b = new byte[count * 8];
+    indexIn.readFully(8L * first, b);
+    long[] page = new long[count];
+    ByteBuffer.wrap(b).asLongBuffer().get(page);
+    return page;
+  }
+
+  private long[] readV2Page(int pageNumber) throws IOException {
+    int first = pageNumber << PAGE_SHIFT;
+    int count = Math.min(PAGE_SIZE, blocks - first);
+    // This page's restart entry, and the next page's if there is one.
+    boolean last = pageNumber == pages.length - 1;
+    byte[] b = new byte[last ? 16 : 32];
+    indexIn.readFully(restartsPos + 16L * pageNumber, b);
+    ByteBuffer restarts = ByteBuffer.wrap(b);
+    long start = restarts.getLong();
+    long uncompressedOffset = restarts.getLong();
+    long end = last ? restartsPos : restarts.getLong();
+    if (start < 0 || end < start || end - start > 20L * count) {
+      throw new IOException("Corrupt lzo index restart entry " + pageNumber);
+    }
+
+    byte[] entries = new byte[(int)(end - start)];
+    indexIn.readFully(start, entries);
+    long[] page = new long[count];
+    long[] uncompressedPage = new long[count + 1];
+    LzoIndex.decodeV2Entries(entries, 0, entries.length, count,
+        uncompressedOffset, page, uncompressedPage, 0);
+    uncompressedPages[pageNumber] = uncompressedPage;
+    return page;
+  }
+
+  @Override
+  public void close() throws IOException {
+    indexIn.close();
+  }
+}
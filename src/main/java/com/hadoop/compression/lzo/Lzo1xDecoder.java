@@ -0,0 +1,229 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+
+/**
+ * A pure-Java port of lzo1x_decompress_safe, used by {@link LzoDecompressor}
+ * when the native-lzo library cannot be loaded.
+ * http://www.oberhumer.com/opensource/lzo/
+ *
+ * The decoder works directly on heap byte arrays, so lzop blocks read by
+ * {@link LzopInputStream} are decoded without being copied into a direct
+ * buffer first. Every read and write is bounds checked, so corrupt input
+ * results in an IOException rather than garbage output. Expect roughly half
+ * the throughput of liblzo2's C decoder, so native-lzo is still preferred
+ * wherever it can be loaded.
+ */
+final class Lzo1xDecoder {
+
+  /** Largest match offset that can be encoded by an M2 match. */
+  private static final int M2_MAX_OFFSET = 0x0800;
+
+  /** Copies up to this long are cheaper inline than via System.arraycopy. */
+  private static final int SHORT_COPY = 16;
+
+  private Lzo1xDecoder() { }
+
+  /**
+   * Decompress a single LZO1X block.
+   *
+   * @param in buffer holding the compressed block
+   * @param inOff offset of the compressed block in <code>in</code>
+   * @param inLen length of the compressed block
+   * @param out buffer to decompress into
+   * @param outOff offset in <code>out</code> to start writing at
+   * @param outLen number of bytes available in <code>out</code>
+   * @return the number of decompressed bytes
+   * @throws IOException if the block is corrupt or does not fit in
+   *         <code>outLen</code> bytes
+   */
+  static int decompress(byte[] in, int inOff, int inLen,
+      byte[] out, int outOff, int outLen) throws IOException {
+    try {
+      return decompressInternal(in, inOff, inLen, out, outOff, outLen);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // The explicit checks below should catch every overrun; this is only
+      // a backstop so that corrupt data never surfaces as a RuntimeException.
+      throw new IOException("LZO1X decompression failed: corrupt block", e);
+    }
+  }
+
+  private static int decompressInternal(byte[] in, int inOff, int inLen,
+      byte[] out, int outOff, int outLen) throws IOException {
+    final int ipEnd = inOff + inLen;
+    final int opEnd = outOff + outLen;
+    int ip = inOff;
+    int op = outOff;
+
+    if (inLen < 3) {
+      throw new IOException("LZO1X decompression failed: input overrun");
+    }
+
+    // The meaning of an instruction below 16 depends on how many literals
+    // the previous instruction copied: none, 1-3 trailing literals, or a
+    // literal run of 4 or more.
+    int lastLiterals = 0;
+
+    // A leading byte greater than 17 encodes an initial literal run.
+    int t = in[ip] & 0xFF;
+    if (t > 17) {
+      ip++;
+      t -= 17;
+      needInput(ip, t + 1, ipEnd);
+      needOutput(op, t, opEnd);
+      System.arraycopy(in, ip, out, op, t);
+      ip += t;
+      op += t;
+      lastLiterals = t;
+    }
+
+    for (;;) {
+      needInput(ip, 3, ipEnd);
+      t = in[ip++] & 0xFF;
+      int length;
+      int mPos;
+      int trailing;
+
+      if (t < 16) {
+        if (lastLiterals == 0) {
+          // a literal run of 4 or more bytes
+          if (t == 0) {
+            while (in[ip] == 0) {
+              t += 255;
+              ip++;
+              needInput(ip, 1, ipEnd);
+            }
+            t += 15 + (in[ip++] & 0xFF);
+          }
+          t += 3;
+          needInput(ip, t + 1, ipEnd);
+          needOutput(op, t, opEnd);
+          System.arraycopy(in, ip, out, op, t);
+          ip += t;
+          op += t;
+          lastLiterals = 4;
+          continue;
+        }
+        // A 2 byte match after a match, or a 3 byte match with an implied
+        // +M2_MAX_OFFSET distance after a literal run.
+        mPos = op - 1 - (t >> 2) - ((in[ip++] & 0xFF) << 2);
+        if (lastLiterals < 4) {
+          length = 2;
+        } else {
+          mPos -= M2_MAX_OFFSET;
+          length = 3;
+        }
+        trailing = t & 3;
+      } else if (t >= 64) {
+        // M2 match: 3-8 bytes, distance up to 2KB
+        mPos = op - 1 - ((t >> 2) & 7) - ((in[ip++] & 0xFF) << 3);
+        length = (t >> 5) + 1;
+        trailing = t & 3;
+      } else if (t >= 32) {
+        // M3 match: distance up to 16KB
+        length = t & 31;
+        if (length == 0) {
+          while (in[ip] == 0) {
+            length += 255;
+            ip++;
+            needInput(ip, 3, ipEnd);
+          }
+          length += 31 + (in[ip++] & 0xFF);
+          needInput(ip, 2, ipEnd);
+        }
+        length += 2;
+        trailing = in[ip] & 3;
+        mPos = op - 1 - (((in[ip] & 0xFF) | ((in[ip + 1] & 0xFF) << 8)) >> 2);
+        ip += 2;
+      } else {
+        // M4 match: distance 16KB-48KB, also encodes the end of stream
+        mPos = op - ((t & 8) << 11);
+        length = t & 7;
+        if (length == 0) {
+          while (in[ip] == 0) {
+            length += 255;
+            ip++;
+            needInput(ip, 3, ipEnd);
+          }
+          length += 7 + (in[ip++] & 0xFF);
+          needInput(ip, 2, ipEnd);
+        }
+        length += 2;
+        trailing = in[ip] & 3;
+        mPos -= ((in[ip] & 0xFF) | ((in[ip + 1] & 0xFF) << 8)) >> 2;
+        ip += 2;
+        if (mPos == op) {
+          break;
+        }
+        mPos -= 0x4000;
+      }
+
+      // copy the match
+      if (mPos < outOff) {
+        throw new IOException("LZO1X decompression failed: lookbehind overrun");
+      }
+      needOutput(op, length + trailing, opEnd);
+      if (length > SHORT_COPY && op - mPos >= length) {
+        System.arraycopy(out, mPos, out, op, length);
+        op += length;
+      } else {
+        // short or overlapping match, copied byte by byte
+        int mEnd = op + length;
+        while (op < mEnd) {
+          out[op++] = out[mPos++];
+        }
+      }
+
+      // copy up to 3 literals that trail the match
+      if (trailing > 0) {
+        needInput(ip, trailing + 1, ipEnd);
+        out[op++] = in[ip++];
+        if (trailing > 1) {
+          out[op++] = in[ip++];
+          if (trailing > 2) {
+            out[op++] = in[ip++];
+          }
+        }
+      }
+      lastLiterals = trailing;
+    }
+
+    // end of stream marker found
+    if (ip != ipEnd) {
+      throw new IOException("LZO1X decompression failed: " +
+          (ip < ipEnd ? "input not consumed" : "input overrun"));
+    }
+    return op - outOff;
+  }
+
+  private static void needInput(int ip, int n, int ipEnd) throws IOException {
+    if (ipEnd - ip < n) {
+      throw new IOException("LZO1X decompression failed: input overrun");
+    }
+  }
+
+  private static void needOutput(int op, int n, int opEnd) throws IOException {
+    if (opEnd - op < n) {
+      throw new IOException("LZO1X decompression failed: output overrun");
+    }
+  }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.util.Arrays;
+
+/**
+ * A pure-Java port of the lzo1x_1 family of compressors (lzo1x_1,
+ * lzo1x_1_11, lzo1x_1_12 and lzo1x_1_15) as liblzo 1.x, and liblzo2 before
+ * 2.04, implement them, used by {@link LzoCompressor} when the native-lzo
+ * library cannot be loaded.
+ * http://www.oberhumer.com/opensource/lzo/
+ *
+ * The match finder is that of liblzo 1.08's lzo1x_c.ch: a dictionary of the
+ * last position of each hash of 4 bytes, with a secondary slot tried when
+ * the primary one doesn't match (DINDEX1 and DINDEX2), and no skipping over
+ * incompressible literals. liblzo2 2.04 and later use a different match
+ * finder, and compress to different bytes. The variants differ only in the
+ * size of the dictionary.
+ *
+ * The output is plain LZO1X, so it can be read by lzop, liblzo2 and
+ * {@link Lzo1xDecoder} alike. An encoder owns its dictionary and reuses it
+ * for every block, so compressing a block allocates nothing, but empties it
+ * first, so a block compresses to the same bytes liblzo 1.08's compressor
+ * gives when its work memory is zeroed.
+ */
+final class Lzo1xEncoder {
+
+  private static final int M2_MAX_LEN = 8;
+  private static final int M4_MAX_LEN = 9;
+  private static final int M2_MAX_OFFSET = 0x0800;
+  private static final int M3_MAX_OFFSET = 0x4000;
+  private static final int M4_MAX_OFFSET = 0xbfff;
+  private static final int M3_MARKER = 32;
+  private static final int M4_MARKER = 16;
+
+  private final int dictBits;
+  private final int dictMask;
+  private final int dictHigh;
+  private final int[] dict;
+
+  /**
+   * Creates an encoder with a match-finder dictionary of
+   * <code>2^dictBits</code> entries.
+   *
+   * @param dictBits 11, 12, 14 or 15 for lzo1x_1_11, lzo1x_1_12, lzo1x_1 and
+   *        lzo1x_1_15 respectively
+   */
+  Lzo1xEncoder(int dictBits) {
+    this.dictBits = dictBits;
+    dictMask = (1 << dictBits) - 1;
+    dictHigh = (dictMask >> 1) + 1;
+    dict = new int[1 << dictBits];
+  }
+
+  /** Get the number of dictionary bits this encoder was created with. */
+  int getDictBits() {
+    return dictBits;
+  }
+
+  /**
+   * Get the number of dictionary bits used by a compression strategy.
+   *
+   * @return the dictionary size in bits, or -1 if the strategy is not
+   *         supported by this encoder
+   */
+  static int getDictBits(LzoCompressor.CompressionStrategy strategy) {
+    switch (strategy) {
+    case LZO1X_1:
+      return 14;
+    case LZO1X_11:
+      return 11;
+    case LZO1X_12:
+      return 12;
+    case LZO1X_15:
+      return 15;
+    default:
+      return -1;
+    }
+  }
+
+  /**
+   * Get the size of the output buffer needed to compress <code>len</code>
+   * bytes in the worst case, when the data is incompressible.
+   */
+  static int maxCompressedLength(int len) {
+    return len + (len >> 4) + 64 + 3;
+  }
+
+  /**
+   * Compress <code>inLen</code> bytes into a single LZO1X block.
+   *
+   * @param in buffer holding the data to compress
+   * @param inOff offset of the data in <code>in</code>
+   * @param inLen length of the data
+   * @param out buffer to compress into, which must have room for at least
+   *        {@link #maxCompressedLength(int)} bytes
+   * @param outOff offset in <code>out</code> to start writing at
+   * @return the number of compressed bytes
+   */
+  int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+    int op = outOff;
+    int t;
+    if (inLen <= M2_MAX_LEN + 5) {
+      t = inLen;
+    } else {
+      // Keep compression deterministic by forgetting the previous block.
+      Arrays.fill(dict, 0);
+      long r = compressCore(in, inOff, inLen, out, outOff);
+      op = (int) r;
+      t = (int) (r >>> 32);
+    }
+
+    if (t > 0) {
+      int ii = inOff + inLen - t;
+      if (op == outOff && t <= 238) {
+        out[op++] = (byte) (17 + t);
+      } else if (t <= 3) {
+        out[op - 2] |= (byte) t;
+      } else {
+        op = writeLiteralRunLength(out, op, t);
+      }
+      System.arraycopy(in, ii, out, op, t);
+      op += t;
+    }
+
+    // end of stream marker
+    out[op++] = (byte) (M4_MARKER | 1);
+    out[op++] = 0;
+    out[op++] = 0;
+    return op - outOff;
+  }
+
+  /**
+   * The main compression loop.
+   *
+   * @return the output position in the low 32 bits, and the number of
+   *         trailing literals still to be written in the high 32 bits
+   */
+  private long compressCore(byte[] in, int inOff, int inLen,
+      byte[] out, int outOff) {
+    final int inEnd = inOff + inLen;
+    final int ipEnd = inEnd - M2_MAX_LEN - 5;
+    int op = outOff;
+    int ip = inOff + 4;
+    int ii = inOff;
+
+    for (;;) {
+      int dindex = hash(in, ip);
+      int mPos = inOff + dict[dindex];
+      int mOff = ip - mPos;
+      boolean match = false;
+      // As in liblzo, an offset of 0 is an empty slot; no position before
+      // the fourth byte is ever stored.
+      if (dict[dindex] != 0 && mOff <= M4_MAX_OFFSET) {
+        if (mOff > M2_MAX_OFFSET && in[mPos + 3] != in[ip + 3]) {
+          // try the secondary slot
+          dindex = (dindex & (dictMask & 0x7ff)) ^ (dictHigh | 0x1f);
+          mPos = inOff + dict[dindex];
+          mOff = ip - mPos;
+          match = dict[dindex] != 0 && mOff <= M4_MAX_OFFSET &&
+              (mOff <= M2_MAX_OFFSET || in[mPos + 3] == in[ip + 3]);
+        } else {
+          match = true;
+        }
+        match = match && in[mPos] == in[ip] && in[mPos + 1] == in[ip + 1] &&
+            in[mPos + 2] == in[ip + 2];
+      }
+      dict[dindex] = ip - inOff;
+      if (!match) {
+        if (++ip >= ipEnd) {
+          break;
+        }
+        continue;
+      }
+
+      // store the current literal run
+      if (ip > ii) {
+        int t = ip - ii;
+        if (t <= 3) {
+          out[op - 2] |= (byte) t;
+        } else {
+          op = writeLiteralRunLength(out, op, t);
+        }
+        System.arraycopy(in, ii, out, op, t);
+        op += t;
+        ii = ip;
+      }
+
+      // code the match
+      ip += 3;
+      int mLen;
+      if (in[mPos + 3] != in[ip++] || in[mPos + 4] != in[ip++] ||
+          in[mPos + 5] != in[ip++] || in[mPos + 6] != in[ip++] ||
+          in[mPos + 7] != in[ip++] || in[mPos + 8] != in[ip++]) {
+        // short match of 3-8 bytes
+        --ip;
+        mLen = ip - ii;
+        if (mOff <= M2_MAX_OFFSET) {
+          mOff -= 1;
+          out[op++] = (byte) (((mLen - 1) << 5) | ((mOff & 7) << 2));
+          out[op++] = (byte) (mOff >> 3);
+        } else if (mOff <= M3_MAX_OFFSET) {
+          mOff -= 1;
+          out[op++] = (byte) (M3_MARKER | (mLen - 2));
+          op = writeMatchOffset(out, op, mOff);
+        } else {
+          mOff -= 0x4000;
+          out[op++] = (byte) (M4_MARKER | ((mOff & 0x4000) >> 11) | (mLen - 2));
+          op = writeMatchOffset(out, op, mOff);
+        }
+      } else {
+        // long match, extend it as far as it goes
+        int m = mPos + M2_MAX_LEN + 1;
+        while (ip < inEnd && in[m] == in[ip]) {
+          m++;
+          ip++;
+        }
+        mLen = ip - ii;
+        if (mOff <= M3_MAX_OFFSET) {
+          mOff -= 1;
+          if (mLen <= 33) {
+            out[op++] = (byte) (M3_MARKER | (mLen - 2));
+          } else {
+            out[op++] = (byte) M3_MARKER;
+            op = writeMatchLength(out, op, mLen - 33);
+          }
+        } else {
+          mOff -= 0x4000;
+          if (mLen <= M4_MAX_LEN) {
+            out[op++] = (byte) (M4_MARKER | ((mOff & 0x4000) >> 11) | (mLen - 2));
+          } else {
+            out[op++] = (byte) (M4_MARKER | ((mOff & 0x4000) >> 11));
+            op = writeMatchLength(out, op, mLen - M4_MAX_LEN);
+          }
+        }
+        op = writeMatchOffset(out, op, mOff);
+      }
+
+      ii = ip;
+      if (ip >= ipEnd) {
+        break;
+      }
+    }
+
+    return ((long) (inEnd - ii) << 32) | op;
+  }
+
+  /**
+   * The primary dictionary slot for the 4 bytes at <code>p</code>, as
+   * liblzo's <code>D_INDEX1(d,p)</code> computes it:
+   * <code>DM(DMUL(0x21,DX3(p,5,5,6)) &gt;&gt; 5)</code>.
+   */
+  private int hash(byte[] in, int p) {
+    int dv = ((((in[p + 3] & 0xFF) << 6 ^ (in[p + 2] & 0xFF)) << 5
+        ^ (in[p + 1] & 0xFF)) << 5) ^ (in[p] & 0xFF);
+    return ((0x21 * dv) >>> 5) & dictMask;
+  }
+
+  /** Write the instruction for a literal run of 4 or more bytes. */
+  private static int writeLiteralRunLength(byte[] out, int op, int t) {
+    if (t <= 18) {
+      out[op++] = (byte) (t - 3);
+    } else {
+      out[op++] = 0;
+      op = writeMatchLength(out, op, t - 18);
+    }
+    return op;
+  }
+
+  /** Write the zero-run encoding of a long length. */
+  private static int writeMatchLength(byte[] out, int op, int len) {
+    while (len > 255) {
+      len -= 255;
+      out[op++] = 0;
+    }
+    out[op++] = (byte) len;
+    return op;
+  }
+
+  /** Write the two byte offset of an M3 or M4 match. */
+  private static int writeMatchOffset(byte[] out, int op, int mOff) {
+    out[op++] = (byte) ((mOff & 63) << 2);
+    out[op++] = (byte) (mOff >> 6);
+    return op;
+  }
+}
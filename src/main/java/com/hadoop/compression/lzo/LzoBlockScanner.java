@@ -0,0 +1,255 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * Walks the block headers of an lzo file, for indexing. Rather than seeking
+ * past every block, the file is read sequentially through a large buffer and
+ * the headers are parsed from it, so that a scan runs at the speed of a
+ * sequential read instead of being bound by seek latency. The stream is only
+ * repositioned when a block doesn't fit in the buffer.
+ */
+public class LzoBlockScanner {
+  /** Size of the buffer the lzo file is read through while it is indexed. */
+  public static final String LZO_INDEX_SCAN_BUFFER_SIZE_KEY = "io.compression.codec.lzo.index.scan.buffersize";
+  public static final int DEFAULT_LZO_INDEX_SCAN_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private static final int SYNC_WINDOW_SIZE = 64 * 1024;
+
+  private final FSDataInputStream in;
+  private final int numDecompressedChecksums;
+  private final int numCompressedChecksums;
+
+  private final byte[] buf;
+  // File position of buf[0], and the number of valid bytes in buf.
+  private long bufStart;
+  private int bufLen = 0;
+
+  private long blockOffset = -1;
+  private int uncompressedSize;
+  private int compressedSize;
+  private long nextBlockOffset;
+
+  /**
+   * @param in the lzo file, positioned at its first block, just after the
+   *        header.
+   * @param numDecompressedChecksums number of uncompressed data checksums
+   *        after each block header, from the lzo header.
+   * @param numCompressedChecksums number of compressed data checksums after
+   *        the header of each compressed block, from the lzo header.
+   * @param bufferSize the size of the read buffer.
+   */
+  public LzoBlockScanner(FSDataInputStream in, int numDecompressedChecksums,
+      int numCompressedChecksums, int bufferSize) throws IOException {
+    this.in = in;
+    this.numDecompressedChecksums = numDecompressedChecksums;
+    this.numCompressedChecksums = numCompressedChecksums;
+    this.buf = new byte[Math.max(bufferSize, 8)];
+    this.bufStart = in.getPos();
+    this.nextBlockOffset = bufStart;
+  }
+
+  /**
+   * Read the header of the next block.
+   *
+   * @return false at the end of stream marker.
+   * @throws EOFException if the file ends before the end of stream marker.
+   */
+  public boolean next() throws IOException {
+    int uncompressed = readInt(nextBlockOffset);
+    if (uncompressed == 0) {
+      return false;
+    } else if (uncompressed < 0) {
+      throw new EOFException("Could not read uncompressed block size at position " +
+          nextBlockOffset);
+    }
+    int compressed = readInt(nextBlockOffset + 4);
+    if (compressed <= 0) {
+      throw new EOFException("Could not read compressed block size at position " +
+          (nextBlockOffset + 4));
+    }
+
+    // See LzopInputStream.getCompressedData
+    boolean isUncompressedBlock = compressed >= uncompressed;
+    int numChecksumsToSkip = isUncompressedBlock ?
+        numDecompressedChecksums : numDecompressedChecksums + numCompressedChecksums;
+
+    blockOffset = nextBlockOffset;
+    uncompressedSize = uncompressed;
+    compressedSize = compressed;
+    nextBlockOffset = blockOffset + 8 + 4 * numChecksumsToSkip + compressed;
+    return true;
+  }
+
+  /** @return the position of the current block in the file. */
+  public long getBlockOffset() {
+    return blockOffset;
+  }
+
+  /** @return the uncompressed size of the current block. */
+  public int getUncompressedSize() {
+    return uncompressedSize;
+  }
+
+  /** @return the compressed size of the current block. */
+  public int getCompressedSize() {
+    return compressedSize;
+  }
+
+  /**
+   * @return the position just after the current block, where the next block
+   *         or the end of stream marker starts.
+   */
+  public long getNextBlockOffset() {
+    return nextBlockOffset;
+  }
+
+  /**
+   * Find the first block of an lzo file which starts at or after
+   * <code>pos</code>, from somewhere in the middle of the file. A position is
+   * taken to be a block when its sizes are plausible, the sizes after it lead
+   * to another plausible block header or to the end of stream marker, and
+   * the block decompresses and passes its checksums.
+   *
+   * @param in the lzo file.
+   * @param lzoIn the stream which read the file's lzo header, which knows its
+   *        checksums and verifies blocks.
+   * @param numDecompressedChecksums see {@link #LzoBlockScanner}.
+   * @param numCompressedChecksums see {@link #LzoBlockScanner}.
+   * @param pos where to start looking.
+   * @param limit where to stop looking.
+   * @param fileLength the length of the lzo file.
+   * @return the position of the block, or of the end of stream marker, or
+   *         -1 if neither starts before <code>limit</code>.
+   */
+  public static long findBlock(FSDataInputStream in, LzopInputStream lzoIn,
+      int numDecompressedChecksums, int numCompressedChecksums, long pos,
+      long limit, long fileLength) throws IOException {
+    byte[] window = new byte[SYNC_WINDOW_SIZE];
+    limit = Math.min(limit, fileLength - 4);
+    while (pos <= limit) {
+      int n = (int)Math.min(window.length, fileLength - pos);
+      in.readFully(pos, window, 0, n);
+      int i = 0;
+      for (; pos + i <= limit; i++) {
+        long candidate = pos + i;
+        if (candidate == fileLength - 4) {
+          return getInt(window, i) == 0 ? candidate : -1;
+        }
+        if (i + 8 > n) {
+          if (pos + n < fileLength) {
+            break;
+          }
+          // Only the end of stream marker fits in what is left of the file.
+          continue;
+        }
+        int uncompressed = getInt(window, i);
+        int compressed = getInt(window, i + 4);
+        if (isPlausibleBlock(uncompressed, compressed) &&
+            isBlock(in, lzoIn, numDecompressedChecksums, numCompressedChecksums,
+                candidate, uncompressed, compressed, fileLength)) {
+          return candidate;
+        }
+      }
+      pos += i;
+    }
+    return -1;
+  }
+
+  private static boolean isPlausibleBlock(int uncompressed, int compressed) {
+    // lzop stores a block which doesn't compress rather than letting it grow.
+    return uncompressed > 0 && uncompressed <= LzoCodec.MAX_BLOCK_SIZE &&
+        compressed > 0 && compressed <= uncompressed;
+  }
+
+  private static boolean isBlock(FSDataInputStream in, LzopInputStream lzoIn,
+      int numDecompressedChecksums, int numCompressedChecksums, long pos,
+      int uncompressed, int compressed, long fileLength) throws IOException {
+    int numChecksums = compressed == uncompressed ?
+        numDecompressedChecksums : numDecompressedChecksums + numCompressedChecksums;
+    long next = pos + 8 + 4 * numChecksums + compressed;
+    if (next > fileLength - 4) {
+      return false;
+    }
+    // The block must be followed by another block or the end of stream.
+    byte[] b = new byte[8];
+    boolean last = next == fileLength - 4;
+    in.readFully(next, b, 0, last ? 4 : 8);
+    int nextUncompressed = getInt(b, 0);
+    if (nextUncompressed != 0 &&
+        (last || !isPlausibleBlock(nextUncompressed, getInt(b, 4)))) {
+      return false;
+    }
+    try {
+      lzoIn.readBlock(in, pos);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } catch (InternalError e) {
+      // The native decompressor reports corrupt input this way.
+      return false;
+    }
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) |
+        ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+  }
+
+  private int readInt(long pos) throws IOException {
+    if (pos < bufStart || pos + 4 > bufStart + bufLen) {
+      fill(pos);
+      if (pos + 4 > bufStart + bufLen) {
+        throw new EOFException("Unexpected end of lzo file at position " + pos);
+      }
+    }
+    return getInt(buf, (int)(pos - bufStart));
+  }
+
+  /**
+   * Refill the buffer so that it starts at <code>pos</code>, keeping what
+   * it already holds from there on, and reading on from the end of the
+   * buffer, or from <code>pos</code> if it is past the end.
+   */
+  private void fill(long pos) throws IOException {
+    long bufEnd = bufStart + bufLen;
+    if (pos >= bufStart && pos <= bufEnd) {
+      int keep = (int)(bufEnd - pos);
+      System.arraycopy(buf, (int)(pos - bufStart), buf, 0, keep);
+      bufLen = keep;
+    } else {
+      // The block was bigger than the buffer, or the scan went backwards.
+      in.seek(pos);
+      bufLen = 0;
+    }
+    bufStart = pos;
+    while (bufLen < buf.length) {
+      int n = in.read(buf, bufLen, buf.length - bufLen);
+      if (n < 0) {
+        break;
+      }
+      bufLen += n;
+    }
+  }
+}
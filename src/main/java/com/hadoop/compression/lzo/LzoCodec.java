@@ -80,6 +80,9 @@ public class LzoCodec implements Configurable, CompressionCodec {
     } else {
       LOG.error("Cannot load native-lzo without native-hadoop");
     }
+    if (!nativeLzoLoaded) {
+      LOG.warn("Falling back to the pure-Java LZO1X compressor and decompressor");
+    }
   }
 
   /**
@@ -94,6 +97,34 @@ public class LzoCodec implements Configurable, CompressionCodec {
     return nativeLzoLoaded && conf.getBoolean("hadoop.native.lib", true);
   }
 
+  /**
+   * Check if lzo data written with the given strategy can be decompressed,
+   * either by the native-lzo library or by the pure-Java LZO1X decoder.
+   *
+   * @param conf configuration
+   * @param strategy lzo decompression algorithm
+   * @return <code>true</code> if a decompressor is available for the strategy
+   */
+  public static boolean isLzoDecompressionAvailable(Configuration conf,
+      LzoDecompressor.CompressionStrategy strategy) {
+    return isNativeLzoLoaded(conf) ||
+        LzoDecompressor.isJavaDecompressionSupported(strategy);
+  }
+
+  /**
+   * Check if lzo data can be compressed with the given strategy, either by
+   * the native-lzo library or by the pure-Java LZO1X encoder.
+   *
+   * @param conf configuration
+   * @param strategy lzo compression algorithm
+   * @return <code>true</code> if a compressor is available for the strategy
+   */
+  public static boolean isLzoCompressionAvailable(Configuration conf,
+      LzoCompressor.CompressionStrategy strategy) {
+    return isNativeLzoLoaded(conf) ||
+        LzoCompressor.isJavaCompressionSupported(strategy);
+  }
+
   public static String getRevisionHash() {
     try {
       Properties p = new Properties();
@@ -113,8 +144,8 @@ public class LzoCodec implements Configurable, CompressionCodec {
   @Override
   public CompressionOutputStream createOutputStream(OutputStream out,
       Compressor compressor) throws IOException {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
+    // Ensure native-lzo library is loaded, or the Java encoder can be used
+    if (!isLzoCompressionAvailable(conf, getCompressionStrategy(conf))) {
       throw new RuntimeException("native-lzo library not available");
     }
 
@@ -150,8 +181,8 @@ public class LzoCodec implements Configurable, CompressionCodec {
 
   @Override
   public Class<? extends Compressor> getCompressorType() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
+    // Ensure native-lzo library is loaded, or the Java encoder can be used
+    if (!isLzoCompressionAvailable(conf, getCompressionStrategy(conf))) {
       throw new RuntimeException("native-lzo library not available");
     }
     return LzoCompressor.class;
@@ -161,7 +192,7 @@ public class LzoCodec implements Configurable, CompressionCodec {
   public Compressor createCompressor() {
     // Ensure native-lzo library is loaded & initialized
     assert conf != null : "Configuration cannot be null! You must call setConf() before creating a compressor.";
-    if (!isNativeLzoLoaded(conf)) {
+    if (!isLzoCompressionAvailable(conf, getCompressionStrategy(conf))) {
       throw new RuntimeException("native-lzo library not available");
     }
 
@@ -178,8 +209,8 @@ public class LzoCodec implements Configurable, CompressionCodec {
   public CompressionInputStream createInputStream(InputStream in,
       Decompressor decompressor)
   throws IOException {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
+    // Ensure native-lzo library is loaded, or the Java decoder can be used
+    if (!isLzoDecompressionAvailable(conf, getDecompressionStrategy(conf))) {
       throw new RuntimeException("native-lzo library not available");
     }
     return new BlockDecompressorStream(in, decompressor,
@@ -188,8 +219,8 @@ public class LzoCodec implements Configurable, CompressionCodec {
 
   @Override
   public Class<? extends Decompressor> getDecompressorType() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
+    // Ensure native-lzo library is loaded, or the Java decoder can be used
+    if (!isLzoDecompressionAvailable(conf, getDecompressionStrategy(conf))) {
       throw new RuntimeException("native-lzo library not available");
     }
     return LzoDecompressor.class;
@@ -197,14 +228,14 @@ public class LzoCodec implements Configurable, CompressionCodec {
 
   @Override
   public Decompressor createDecompressor() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
+    // Ensure native-lzo library is loaded, or the Java decoder can be used
+    LzoDecompressor.CompressionStrategy strategy = getDecompressionStrategy(conf);
+    if (!isLzoDecompressionAvailable(conf, strategy)) {
       throw new RuntimeException("native-lzo library not available");
     }
 
-    return new LzoDecompressor(
-      getDecompressionStrategy(conf),
-      getBufferSize(conf));
+    return new LzoDecompressor(strategy, getBufferSize(conf),
+      isNativeLzoLoaded(conf));
   }
 
   /**
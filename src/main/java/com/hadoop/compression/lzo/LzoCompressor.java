@@ -30,16 +30,15 @@ import org.apache.hadoop.io.compress.Compressor;
 /**
  * A {@link Compressor} based on the lzo algorithm.
  * http://www.oberhumer.com/opensource/lzo/
- * 
+ *
+ * If the native-lzo library is not available, the LZO1X_1, LZO1X_11,
+ * LZO1X_12 and LZO1X_15 strategies are compressed by the pure-Java
+ * {@link Lzo1xEncoder} instead, using heap buffers.
  */
 class LzoCompressor implements Compressor {
   private static final Log LOG = 
     LogFactory.getLog(LzoCompressor.class.getName());
 
-  // HACK - Use this as a global lock in the JNI layer
-  @SuppressWarnings({ "unchecked", "unused" })
-  private static Class clazz = LzoDecompressor.class;
-
   private int directBufferSize;
   private byte[] userBuf = null;
   private int userBufOff = 0, userBufLen = 0;
@@ -59,6 +58,10 @@ class LzoCompressor implements Compressor {
   @SuppressWarnings("unused")
   private ByteBuffer workingMemoryBuf;      // The 'working memory' for lzo.
   private int lzoCompressionLevel;
+  // Whether to use native-lzo, or fall back to the pure-Java encoder.
+  private boolean useNative;
+  // The pure-Java encoder, which keeps its dictionary between blocks.
+  private Lzo1xEncoder encoder;
 
   /**
    * Used when the user doesn't specify a configuration. We cache a single
@@ -163,6 +166,11 @@ class LzoCompressor implements Compressor {
 
   private static boolean nativeLzoLoaded;
   public static final int LZO_LIBRARY_VERSION;
+  /**
+   * The liblzo version, 1.08, whose lzo1x_1 compressors {@link Lzo1xEncoder}
+   * matches, which lzop headers record when it writes the blocks.
+   */
+  static final int JAVA_LZO_LIBRARY_VERSION = 0x1080;
 
   static {
     if (GPLNativeCodeLoader.isNativeCodeLoaded()) {
@@ -195,6 +203,17 @@ class LzoCompressor implements Compressor {
     return nativeLzoLoaded;
   }
 
+  /**
+   * Check if the given strategy can be compressed without the native-lzo
+   * library.
+   *
+   * @param strategy lzo compression algorithm
+   * @return <code>true</code> if the pure-Java encoder supports the strategy
+   */
+  public static boolean isJavaCompressionSupported(CompressionStrategy strategy) {
+    return Lzo1xEncoder.getDictBits(strategy) > 0;
+  }
+
   public LzoCompressor(Configuration conf) {
     reinit(conf);
   }
@@ -214,7 +233,7 @@ class LzoCompressor implements Compressor {
     int compressionLevel = LzoCodec.getCompressionLevel(conf);
     int bufferSize = LzoCodec.getBufferSize(conf);
 
-    init(strategy, compressionLevel, bufferSize);
+    init(strategy, compressionLevel, bufferSize, LzoCodec.isNativeLzoLoaded(conf));
   }
 
   /** 
@@ -224,7 +243,26 @@ class LzoCompressor implements Compressor {
    * @param directBufferSize size of the direct buffer to be used.
    */
   public LzoCompressor(CompressionStrategy strategy, int directBufferSize) {
-    init(strategy, LzoCodec.UNDEFINED_COMPRESSION_LEVEL, directBufferSize);
+    this(strategy, directBufferSize, nativeLzoLoaded);
+  }
+
+  /**
+   * Creates a new compressor using the specified {@link CompressionStrategy}.
+   *
+   * @param strategy lzo compression algorithm to use
+   * @param directBufferSize size of the direct buffer to be used.
+   * @param useNative whether to use native-lzo if it is loaded; if
+   *        <code>false</code>, the pure-Java encoder is used
+   */
+  LzoCompressor(CompressionStrategy strategy, int directBufferSize,
+      boolean useNative) {
+    this(strategy, LzoCodec.UNDEFINED_COMPRESSION_LEVEL, directBufferSize,
+        useNative);
+  }
+
+  LzoCompressor(CompressionStrategy strategy, int compressionLevel,
+      int directBufferSize, boolean useNative) {
+    init(strategy, compressionLevel, directBufferSize, useNative);
   }
 
   /**
@@ -237,7 +275,7 @@ class LzoCompressor implements Compressor {
    * data or cause a segfault by accessing it.
    */
   private ByteBuffer realloc(ByteBuffer buf, int newSize) {
-    if (buf != null) {
+    if (buf != null && buf.isDirect()) {
       if (buf.capacity() == newSize) {
         // Can use existing buffer
         buf.clear();
@@ -261,10 +299,42 @@ class LzoCompressor implements Compressor {
     return ByteBuffer.allocateDirect(newSize);
   }
 
-  private void init(CompressionStrategy strategy, int compressionLevel, int directBufferSize) {
+  /**
+   * Reallocates a heap byte buffer for the pure-Java encoder, unless the
+   * size is the same, in which case it is simply cleared and returned.
+   */
+  private static ByteBuffer reallocHeap(ByteBuffer buf, int newSize) {
+    if (buf != null && !buf.isDirect() && buf.capacity() == newSize) {
+      buf.clear();
+      return buf;
+    }
+    return ByteBuffer.allocate(newSize);
+  }
+
+  private void init(CompressionStrategy strategy, int compressionLevel,
+      int directBufferSize, boolean useNative) {
     this.strategy = strategy;
     this.lzoCompressionLevel = compressionLevel;
     this.directBufferSize = directBufferSize;
+    this.useNative = useNative && nativeLzoLoaded;
+
+    if (!this.useNative) {
+      int dictBits = Lzo1xEncoder.getDictBits(strategy);
+      if (dictBits < 0) {
+        throw new RuntimeException("native-lzo library not available, and " +
+            strategy + " cannot be compressed without it");
+      }
+      // LZO1X can expand incompressible data, so leave room for that in
+      // the output buffer instead of overrunning it.
+      uncompressedDirectBuf = reallocHeap(uncompressedDirectBuf, directBufferSize);
+      compressedDirectBuf = reallocHeap(compressedDirectBuf,
+          Lzo1xEncoder.maxCompressedLength(directBufferSize));
+      if (encoder == null || encoder.getDictBits() != dictBits) {
+        encoder = new Lzo1xEncoder(dictBits);
+      }
+      reset();
+      return;
+    }
 
     uncompressedDirectBuf = realloc(uncompressedDirectBuf, directBufferSize);
     compressedDirectBuf = realloc(compressedDirectBuf, directBufferSize);
@@ -379,7 +449,13 @@ class LzoCompressor implements Compressor {
     }
 
     // Compress data
-    n = compressBytesDirect(strategy.getCompressor());
+    if (useNative) {
+      n = compressBytesDirect(strategy.getCompressor());
+    } else {
+      n = encoder.compress(((ByteBuffer)uncompressedDirectBuf).array(), 0,
+          uncompressedDirectBufLen, ((ByteBuffer)compressedDirectBuf).array(), 0);
+      uncompressedDirectBufLen = 0;
+    }
     compressedDirectBuf.limit(n);
     uncompressedDirectBuf.clear(); // lzo consumes all buffer input
 
@@ -451,6 +527,18 @@ class LzoCompressor implements Compressor {
     return strategy;
   }
 
+  int getCompressionLevel() {
+    return lzoCompressionLevel;
+  }
+
+  /**
+   * @return true if blocks are compressed by native-lzo rather than the
+   *         pure-Java encoder.
+   */
+  boolean isNative() {
+    return useNative;
+  }
+
   private native static void initIDs();
   private native static int getLzoLibraryVersion();
   private native void init(int compressor);
@@ -29,16 +29,15 @@ import org.apache.hadoop.io.compress.Decompressor;
 /**
  * A {@link Decompressor} based on the lzo algorithm.
  * http://www.oberhumer.com/opensource/lzo/
- * 
+ *
+ * If the native-lzo library is not available, LZO1X data is decompressed by
+ * the pure-Java {@link Lzo1xDecoder} instead, straight from the byte[] handed
+ * to {@link #setInput(byte[], int, int)}.
  */
 class LzoDecompressor implements Decompressor {
   private static final Log LOG = 
     LogFactory.getLog(LzoDecompressor.class.getName());
 
-  // HACK - Use this as a global lock in the JNI layer
-  @SuppressWarnings({ "unchecked", "unused" })
-  private static Class clazz = LzoDecompressor.class;
-
   /**
    * The minimum version of LZO that we can read.
    * Set to 1.0 since there were a couple header
@@ -60,6 +59,10 @@ class LzoDecompressor implements Decompressor {
   private boolean isCurrentBlockUncompressed;
 
   private CompressionStrategy strategy;
+  // Whether to use native-lzo, or fall back to the pure-Java decoder.
+  private final boolean useNative;
+  // Position of the compressed data in userBuf when using the Java decoder.
+  private int compressedBufOff;
   @SuppressWarnings("unused")
   private long lzoDecompressor = 0;   // The actual lzo decompression function.
 
@@ -173,6 +176,18 @@ class LzoDecompressor implements Decompressor {
     return nativeLzoLoaded;
   }
 
+  /**
+   * Check if data written with the given strategy can be decompressed
+   * without the native-lzo library.
+   *
+   * @param strategy lzo decompression algorithm
+   * @return <code>true</code> if the pure-Java decoder supports the strategy
+   */
+  public static boolean isJavaDecompressionSupported(CompressionStrategy strategy) {
+    // The _ASM and _SAFE variants all read the same LZO1X format.
+    return strategy.name().startsWith("LZO1X");
+  }
+
   /**
    * Creates a new lzo decompressor.
    * 
@@ -180,17 +195,43 @@ class LzoDecompressor implements Decompressor {
    * @param directBufferSize size of the direct-buffer
    */
   public LzoDecompressor(CompressionStrategy strategy, int directBufferSize) {
+    this(strategy, directBufferSize, nativeLzoLoaded);
+  }
+
+  /**
+   * Creates a new lzo decompressor.
+   *
+   * @param strategy lzo decompression algorithm
+   * @param directBufferSize size of the direct-buffer
+   * @param useNative whether to use native-lzo if it is loaded; if
+   *        <code>false</code>, the pure-Java decoder is used
+   */
+  LzoDecompressor(CompressionStrategy strategy, int directBufferSize,
+      boolean useNative) {
     this.directBufferSize = directBufferSize;
     this.strategy = strategy;
+    this.useNative = useNative && nativeLzoLoaded;
 
-    compressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
-    uncompressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
+    if (this.useNative) {
+      compressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
+      uncompressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
+    } else {
+      if (!isJavaDecompressionSupported(strategy)) {
+        throw new RuntimeException("native-lzo library not available, and " +
+            strategy + " cannot be decompressed without it");
+      }
+      // The Java decoder reads the caller's array directly and needs no
+      // compressed buffer; decoded bytes go to a heap buffer.
+      uncompressedDirectBuf = ByteBuffer.allocate(directBufferSize);
+    }
     uncompressedDirectBuf.position(directBufferSize);
 
     /**
      * Initialize {@link #lzoDecompress}
      */
-    init(this.strategy.getDecompressor());
+    if (this.useNative) {
+      init(this.strategy.getDecompressor());
+    }
   }
 
   /**
@@ -201,7 +242,7 @@ class LzoDecompressor implements Decompressor {
   }
 
   public synchronized void setInput(byte[] b, int off, int len) {
-    if (!isCurrentBlockUncompressed()) {
+    if (useNative && !isCurrentBlockUncompressed()) {
       if (len > directBufferSize) {
         LOG.warn("Decompression will fail because compressed buffer size :" +
           len + " is greater than this decompressor's directBufferSize: " + 
@@ -234,11 +275,18 @@ class LzoDecompressor implements Decompressor {
     // to ready all the lzo machinery, because it will be bypassed.
     if (!isCurrentBlockUncompressed()) {
       compressedDirectBufLen = Math.min(userBufLen, directBufferSize);
-      
-      // Reinitialize lzo's input direct-buffer
-      compressedDirectBuf.rewind();
-      ((ByteBuffer)compressedDirectBuf).put(userBuf, userBufOff, 
-          compressedDirectBufLen);
+
+      if (useNative) {
+        // Reinitialize lzo's input direct-buffer
+        compressedDirectBuf.rewind();
+        ((ByteBuffer)compressedDirectBuf).put(userBuf, userBufOff,
+            compressedDirectBufLen);
+      } else {
+        // The Java decoder reads straight from the user's buffer, so the
+        // block does not have to fit in the direct buffer.
+        compressedDirectBufLen = userBufLen;
+        compressedBufOff = userBufOff;
+      }
 
       // Note how much data is being fed to lzo
       userBufOff += compressedDirectBufLen;
@@ -312,7 +360,14 @@ class LzoDecompressor implements Decompressor {
         uncompressedDirectBuf.limit(directBufferSize);
 
         // Decompress data
-        numBytes = decompressBytesDirect(strategy.getDecompressor());
+        if (useNative) {
+          numBytes = decompressBytesDirect(strategy.getDecompressor());
+        } else {
+          numBytes = Lzo1xDecoder.decompress(userBuf, compressedBufOff,
+              compressedDirectBufLen, ((ByteBuffer)uncompressedDirectBuf).array(),
+              0, directBufferSize);
+          compressedDirectBufLen = 0;
+        }
         uncompressedDirectBuf.limit(numBytes);
 
         // Return atmost 'len' bytes
@@ -373,6 +428,22 @@ class LzoDecompressor implements Decompressor {
     return isCurrentBlockUncompressed;
   }
 
+  int getDirectBufferSize() {
+    return directBufferSize;
+  }
+
+  CompressionStrategy getStrategy() {
+    return strategy;
+  }
+
+  /**
+   * @return true if blocks are decompressed by native-lzo rather than
+   *         the pure-Java decoder.
+   */
+  boolean isNative() {
+    return useNative;
+  }
+
   private native static void initIDs();
   private native static int getLzoLibraryVersion();
   private native void init(int decompressor);
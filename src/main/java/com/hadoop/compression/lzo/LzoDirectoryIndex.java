@@ -0,0 +1,379 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * The indexes of all the lzo files in a directory, kept in one file named
+ * {@value #LZO_DIRECTORY_INDEX_NAME} in the directory, so that planning a job
+ * over many files reads one file rather than an index file for each.
+ * Each entry holds the length and modification time of its lzo file, and is
+ * only used while they match. The file is
+ * <pre>
+ *   header  : 0x89 'L' 'Z' 'O' 'D' 'I' 'R' 0x01
+ *   count   : int number of entries
+ *   entries : for each lzo file, its UTF name, long length, long
+ *             modification time, int index length, and the contents of an
+ *             index file for it, in either version
+ *   trailer : int CRC32 of everything before it
+ * </pre>
+ * The name starts with an underscore, so that input formats don't take the
+ * file for input.
+ * <p>
+ * The directory index only adds to the index files of the lzo files, which
+ * are kept for the readers which don't know it, unless
+ * {@value #LZO_DIRECTORY_INDEX_REMOVE_FILES_KEY} is set. It is updated by
+ * reading, changing and rewriting it whole, with nothing to stop two
+ * indexers updating the same directory at once, in which case the entries
+ * one of them adds may be lost.
+ */
+public class LzoDirectoryIndex {
+  private static final Log LOG = LogFactory.getLog(LzoDirectoryIndex.class);
+
+  public static final String LZO_DIRECTORY_INDEX_NAME = "_lzo_index";
+
+  /**
+   * Whether {@link LzoIndexer} and {@link DistributedLzoIndexer} keep the
+   * indexes of each directory's lzo files in its
+   * {@value #LZO_DIRECTORY_INDEX_NAME} file, rather than in an index file
+   * for each lzo file. Off by default.
+   */
+  public static final String LZO_DIRECTORY_INDEX_KEY = "lzo.indexer.directory.index";
+  public static final boolean DEFAULT_LZO_DIRECTORY_INDEX = false;
+
+  /**
+   * Whether the indexers delete the index file of each lzo file once its
+   * index is in the directory index, and don't write index files for the lzo
+   * files they index. Readers which don't know the directory index, such as
+   * {@link LzoIndex#readIndex} and other tools which read .lzo.index files,
+   * then find no index for the files. Off by default.
+   */
+  public static final String LZO_DIRECTORY_INDEX_REMOVE_FILES_KEY =
+      "lzo.indexer.directory.index.remove.files";
+  public static final boolean DEFAULT_LZO_DIRECTORY_INDEX_REMOVE_FILES = false;
+
+  static final byte[] MAGIC = new byte[] {
+    (byte)0x89, 'L', 'Z', 'O', 'D', 'I', 'R', 1 };
+
+  private static class Entry {
+    final long length;
+    final long modificationTime;
+    final byte[] index;
+
+    Entry(long length, long modificationTime, byte[] index) {
+      this.length = length;
+      this.modificationTime = modificationTime;
+      this.index = index;
+    }
+
+    boolean isCurrent(FileStatus status) {
+      return length == status.getLen() && modificationTime == status.getModificationTime();
+    }
+  }
+
+  // By file name, sorted so that the file is the same for the same indexes.
+  private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+  /**
+   * @return the path of the directory index of <code>dir</code>.
+   */
+  public static Path getPath(Path dir) {
+    return new Path(dir, LZO_DIRECTORY_INDEX_NAME);
+  }
+
+  /**
+   * Read the directory index of <code>dir</code>.
+   *
+   * @param fs The directory is on this file system.
+   * @param dir the directory of the lzo files.
+   * @return the index, which is empty if the directory has none.
+   * @throws IOException if the index is corrupt.
+   */
+  public static LzoDirectoryIndex read(FileSystem fs, Path dir) throws IOException {
+    Path indexFile = getPath(dir);
+    LzoDirectoryIndex index = new LzoDirectoryIndex();
+    FSDataInputStream in;
+    try {
+      in = fs.open(indexFile);
+    } catch (FileNotFoundException e) {
+      return index;
+    }
+
+    DataOutputBuffer bytes = new DataOutputBuffer();
+    IOUtils.copyBytes(in, bytes, 64 * 1024, true);
+    byte[] b = bytes.getData();
+    int len = bytes.getLength();
+    if (len < MAGIC.length + 8 || !Arrays.equals(MAGIC, Arrays.copyOf(b, MAGIC.length))) {
+      throw new IOException("Not an lzo directory index: " + indexFile);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(b, 0, len - 4);
+    if ((int)crc.getValue() != ByteBuffer.wrap(b, len - 4, 4).getInt()) {
+      throw new IOException("Checksum error in lzo directory index " + indexFile);
+    }
+
+    DataInputStream entriesIn = new DataInputStream(
+        new ByteArrayInputStream(b, MAGIC.length, len - 4 - MAGIC.length));
+    try {
+      for (int count = entriesIn.readInt(); count > 0; count--) {
+        String name = entriesIn.readUTF();
+        long length = entriesIn.readLong();
+        long modificationTime = entriesIn.readLong();
+        byte[] fileIndex = new byte[entriesIn.readInt()];
+        entriesIn.readFully(fileIndex);
+        index.entries.put(name, new Entry(length, modificationTime, fileIndex));
+      }
+    } catch (EOFException e) {
+      throw new IOException("Truncated lzo directory index " + indexFile, e);
+    }
+    return index;
+  }
+
+  /**
+   * @return the number of lzo files indexed.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return whether the index holds an entry for this version of the file.
+   */
+  public boolean isCurrent(FileStatus lzoFile) {
+    Entry entry = entries.get(lzoFile.getPath().getName());
+    return entry != null && entry.isCurrent(lzoFile);
+  }
+
+  /**
+   * Get the index of an lzo file in the directory.
+   *
+   * @param lzoFile the lzo file.
+   * @return the file's index, or null if there is no entry for it or the
+   *         file has changed since it was indexed.
+   */
+  public LzoIndex getIndex(FileStatus lzoFile) throws IOException {
+    Entry entry = entries.get(lzoFile.getPath().getName());
+    if (entry == null || !entry.isCurrent(lzoFile)) {
+      return null;
+    }
+    return LzoIndex.readIndex(entry.index, entry.index.length, lzoFile.getPath());
+  }
+
+  /**
+   * Add or replace the entry of an lzo file in the directory.
+   *
+   * @param lzoFile the lzo file.
+   * @param index the contents of an index file for it.
+   */
+  public void put(FileStatus lzoFile, byte[] index) {
+    entries.put(lzoFile.getPath().getName(),
+        new Entry(lzoFile.getLen(), lzoFile.getModificationTime(), index));
+  }
+
+  /**
+   * Write the index to <code>dir</code>, replacing any it has.
+   */
+  public void write(FileSystem fs, Path dir) throws IOException {
+    Path indexFile = getPath(dir);
+    Path tmpIndexFile = indexFile.suffix(".tmp");
+    DataOutputBuffer bytes = new DataOutputBuffer();
+    bytes.write(MAGIC);
+    bytes.writeInt(entries.size());
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      bytes.writeUTF(e.getKey());
+      bytes.writeLong(entry.length);
+      bytes.writeLong(entry.modificationTime);
+      bytes.writeInt(entry.index.length);
+      bytes.write(entry.index);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes.getData(), 0, bytes.getLength());
+    bytes.writeInt((int)crc.getValue());
+
+    boolean written = false;
+    try {
+      FSDataOutputStream out = fs.create(tmpIndexFile, true);
+      try {
+        out.write(bytes.getData(), 0, bytes.getLength());
+      } finally {
+        out.close();
+      }
+      fs.delete(indexFile, false);
+      if (!fs.rename(tmpIndexFile, indexFile)) {
+        throw new IOException("Failed to rename " + tmpIndexFile + " to " + indexFile);
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        fs.delete(tmpIndexFile, false);
+      }
+    }
+  }
+
+  /**
+   * Bring the directory index of <code>dir</code> up to date with its lzo
+   * files. Entries of unchanged files are kept and those of files which are
+   * gone are dropped. The index files of the other lzo files are copied into
+   * the directory index. Lzo files without one, or whose index file is the
+   * one their stale entry was made from, are indexed into both, if
+   * <code>index</code> is set.
+   * <p>
+   * Updates of the same directory must not run at once; see above.
+   *
+   * @param fs The directory is on this file system.
+   * @param dir the directory of the lzo files.
+   * @param index whether to index lzo files which have no index file, which
+   *        are otherwise left out.
+   * @param removeIndexFiles whether to delete the index files copied in once
+   *        the directory index is written, and not write index files for the
+   *        lzo files indexed.
+   * @return the lzo files which were indexed; those which failed are logged
+   *         and left out.
+   * @throws IOException
+   */
+  public static List<FileStatus> update(FileSystem fs, Path dir, boolean index,
+      boolean removeIndexFiles) throws IOException {
+    return update(fs, dir, fs.listStatus(dir), index, removeIndexFiles);
+  }
+
+  /**
+   * Update the directory index as above, given the listing of the directory.
+   */
+  public static List<FileStatus> update(FileSystem fs, Path dir, FileStatus[] children,
+      boolean index, boolean removeIndexFiles) throws IOException {
+    LzoDirectoryIndex old = read(fs, dir);
+    LzoDirectoryIndex updated = new LzoDirectoryIndex();
+    List<Path> copied = new ArrayList<Path>();
+    List<FileStatus> indexed = new ArrayList<FileStatus>();
+
+    for (FileStatus status : children) {
+      Path file = status.getPath();
+      if (status.isDir() || !LzoInputFormatCommon.isLzoFile(file.toString())) {
+        continue;
+      }
+      Path indexFile = file.suffix(LzoIndex.LZO_INDEX_SUFFIX);
+      String name = file.getName();
+      if (old.isCurrent(status)) {
+        updated.entries.put(name, old.entries.get(name));
+        continue;
+      }
+      byte[] fileIndex = readIndexFile(fs, indexFile);
+      Entry stale = old.entries.get(name);
+      if (fileIndex != null && stale != null && Arrays.equals(stale.index, fileIndex)) {
+        // The index file is the one the stale entry was made from, so the
+        // lzo file has been rewritten since.
+        fileIndex = null;
+      }
+      if (fileIndex != null) {
+        updated.put(status, fileIndex);
+        copied.add(indexFile);
+      } else if (index) {
+        LOG.info("Indexing " + file + " into " + getPath(dir));
+        try {
+          byte[] bytes = LzoIndex.createIndexBytes(fs, file);
+          if (!removeIndexFiles) {
+            writeIndexFile(fs, file, bytes);
+          }
+          updated.put(status, bytes);
+          indexed.add(status);
+        } catch (IOException e) {
+          // Leave the file out, as LzoIndexer does when a file fails.
+          LOG.error("Error indexing " + file, e);
+        }
+      }
+    }
+
+    if (!copied.isEmpty() || !indexed.isEmpty() || !updated.entries.equals(old.entries)) {
+      updated.write(fs, dir);
+      if (removeIndexFiles) {
+        for (Path indexFile : copied) {
+          fs.delete(indexFile, false);
+        }
+      }
+      LOG.info("Wrote " + getPath(dir) + " indexing " + updated.size() + " lzo files, " +
+          copied.size() + " of them from their own index files");
+    }
+    return indexed;
+  }
+
+  /**
+   * @return the contents of an index file, or null if there is none.
+   */
+  private static byte[] readIndexFile(FileSystem fs, Path indexFile) throws IOException {
+    FSDataInputStream in;
+    try {
+      in = fs.open(indexFile);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    DataOutputBuffer bytes = new DataOutputBuffer();
+    IOUtils.copyBytes(in, bytes, 4 * 1024, true);
+    return Arrays.copyOf(bytes.getData(), bytes.getLength());
+  }
+
+  /**
+   * Write an index file, through a temporary file as
+   * {@link LzoIndex#createIndex} does.
+   */
+  private static void writeIndexFile(FileSystem fs, Path lzoFile, byte[] bytes)
+      throws IOException {
+    Path indexFile = lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX);
+    Path tmpIndexFile = lzoFile.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX);
+    boolean written = false;
+    try {
+      FSDataOutputStream out = fs.create(tmpIndexFile, true);
+      try {
+        out.write(bytes);
+      } finally {
+        out.close();
+      }
+      if (!fs.rename(tmpIndexFile, indexFile)) {
+        throw new IOException("Failed to rename " + tmpIndexFile + " to " + indexFile);
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        fs.delete(tmpIndexFile, false);
+      }
+    }
+  }
+}
@@ -18,17 +18,21 @@
 
 package com.hadoop.compression.lzo;
 
+import java.io.Closeable;
 import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.CRC32;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -37,12 +41,42 @@ import org.apache.hadoop.io.compress.CompressionCodecFactory;
 /**
  * Represents the lzo index.
  */
-public class LzoIndex {
+public class LzoIndex implements Closeable {
   public static final String LZO_INDEX_SUFFIX = ".index";
   public static final String LZO_TMP_INDEX_SUFFIX = ".index.tmp";
   public static final long NOT_FOUND = -1;
 
+  /**
+   * Version of the index files written by {@link #createIndex(FileSystem, Path)},
+   * LzopCodec and the DistributedLzoIndexer; see {@link LzoIndexWriter}.
+   * Both versions are always read. Version 2 is smaller and records block
+   * sizes, but older readers only understand version 1, the default.
+   */
+  public static final String LZO_INDEX_VERSION_KEY = "io.compression.codec.lzo.index.version";
+  public static final int DEFAULT_LZO_INDEX_VERSION = 1;
+
+  static final byte[] V2_MAGIC = new byte[] {
+    (byte)0x89, 'L', 'Z', 'O', 'I', 'D', 'X', 2 };
+  static final byte[] V2_TRAILER_MAGIC = new byte[] { 'L', 'Z', 'I', 'X' };
+  static final int V2_TRAILER_SIZE = 32;
+  static final int V2_RESTART_INTERVAL = 512;
+
+  /**
+   * An lzo file may embed its index after the lzop end of stream marker,
+   * where lzop and the readers here never look; see
+   * {@link LzopCodec#LZOP_EMBED_INDEX_KEY}. The embedded index is always in
+   * version 2 of the format, and is followed by a footer of the long position
+   * of the index in the file, its int length, and 'L' 'Z' 'E' 'I'.
+   */
+  static final byte[] EMBEDDED_FOOTER_MAGIC = new byte[] { 'L', 'Z', 'E', 'I' };
+  static final int EMBEDDED_FOOTER_SIZE = 16;
+
   private long[] blockPositions_;
+  // Uncompressed offset of each block and, last, the uncompressed length of
+  // the file; only recorded by version 2 indexes.
+  private long[] uncompressedOffsets_;
+  // Set on indexes shared through the LzoIndexCache, which callers mustn't change.
+  private boolean readOnly_;
 
   /**
    * Create an empty index, typically indicating no index file exists.
@@ -57,21 +91,39 @@ public class LzoIndex {
     blockPositions_ = new long[blocks];
   }
 
+  private LzoIndex(long[] blockPositions, long[] uncompressedOffsets) {
+    blockPositions_ = blockPositions;
+    uncompressedOffsets_ = uncompressedOffsets;
+  }
+
   /**
    * Set the position for the block.
    *
    * @param blockNumber Block to set pos for.
    * @param pos Position.
+   * @throws UnsupportedOperationException if the index is shared through an
+   *         {@link LzoIndexCache}.
    */
   public void set(int blockNumber, long pos) {
+    if (readOnly_) {
+      throw new UnsupportedOperationException("Cached lzo indexes are read-only");
+    }
     blockPositions_[blockNumber] = pos;
   }
 
+  /**
+   * Make the index read-only, so that one user of a shared index can't
+   * change it under the others.
+   */
+  void setReadOnly() {
+    readOnly_ = true;
+  }
+
   /**
    * Get the total number of blocks in the index file.
    */
   public int getNumberOfBlocks() {
-    return blockPositions_.length;
+    return blockPositions_ == null ? 0 : blockPositions_.length;
   }
 
   /**
@@ -85,6 +137,41 @@ public class LzoIndex {
     return blockPositions_[block];
   }
 
+  /**
+   * @return true if the index records where each block starts in the
+   *         uncompressed data, as version 2 indexes do.
+   */
+  public boolean hasUncompressedOffsets() {
+    return uncompressedOffsets_ != null;
+  }
+
+  /**
+   * Get the offset in the uncompressed data at which a block starts.
+   * @param block 0 <= block <= getNumberOfBlocks(); passing getNumberOfBlocks()
+   * returns the uncompressed length of the file.
+   * @return the offset, or NOT_FOUND if the index doesn't record it.
+   */
+  public long getUncompressedOffset(int block) {
+    return uncompressedOffsets_ == null ? NOT_FOUND : uncompressedOffsets_[block];
+  }
+
+  /**
+   * Get the uncompressed size of a block, from the index if it records the
+   * uncompressed offsets, or else from the header of the block.
+   * @param block 0 <= block < getNumberOfBlocks().
+   * @param lzoFile the lzo file, which is only read without uncompressed
+   * offsets in the index.
+   * @return the uncompressed size of the block.
+   */
+  public int getUncompressedSize(int block, PositionedReadable lzoFile) throws IOException {
+    if (hasUncompressedOffsets()) {
+      return (int)(getUncompressedOffset(block + 1) - getUncompressedOffset(block));
+    }
+    byte[] b = new byte[4];
+    lzoFile.readFully(getPosition(block), b, 0, b.length);
+    return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+  }
+
   /**
    * Find the next lzo block start from the given position.
    *
@@ -92,18 +179,66 @@ public class LzoIndex {
    * @return Either the start position of the block or -1 if it couldn't be found.
    */
   public long findNextPosition(long pos) {
-    int block = Arrays.binarySearch(blockPositions_, pos);
+    int block = findNextBlock(pos);
+    return block < getNumberOfBlocks() ? getPosition(block) : NOT_FOUND;
+  }
 
-    if (block >= 0) {
-      // direct hit on a block start position
-      return blockPositions_[block];
-    } else {
-      block = Math.abs(block) - 1;
-      if (block > blockPositions_.length - 1) {
-        return NOT_FOUND;
+  /**
+   * Find the lzo block start nearest to the given position, before or after
+   * it.
+   *
+   * @param pos The position to look around.
+   * @return Either the start position of the block or -1 if the index is empty.
+   */
+  public long findNearestPosition(long pos) {
+    int block = findNextBlock(pos);
+    long next = block < getNumberOfBlocks() ? getPosition(block) : NOT_FOUND;
+    long previous = block > 0 ? getPosition(block - 1) : NOT_FOUND;
+    if (previous == NOT_FOUND || (next != NOT_FOUND && next - pos <= pos - previous)) {
+      return next;
+    }
+    return previous;
+  }
+
+  /**
+   * Get the start positions of the blocks in a range of the file.
+   *
+   * @param start the start of the range.
+   * @param end the end of the range, exclusive.
+   * @return the positions of the blocks which start in the range.
+   */
+  public long[] getPositions(long start, long end) {
+    int first = findNextBlock(start);
+    int last = findNextBlock(end);
+    long[] positions = new long[Math.max(0, last - first)];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = getPosition(first + i);
+    }
+    return positions;
+  }
+
+  /**
+   * @return the first block which starts at or after the position, or
+   *         getNumberOfBlocks() if there is none.
+   */
+  private int findNextBlock(long pos) {
+    // Binary search through getPosition, so that indexes which don't hold
+    // every position in memory only read the ones probed.
+    int low = 0;
+    int high = getNumberOfBlocks() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midPos = getPosition(mid);
+      if (midPos < pos) {
+        low = mid + 1;
+      } else if (midPos > pos) {
+        high = mid - 1;
+      } else {
+        // direct hit on a block start position
+        return mid;
       }
-      return blockPositions_[block];
     }
+    return low;
   }
 
   /**
@@ -112,7 +247,14 @@ public class LzoIndex {
    * @return true if the index has no blocks set.
    */
   public boolean isEmpty() {
-    return blockPositions_ == null || blockPositions_.length == 0;
+    return getNumberOfBlocks() == 0;
+  }
+
+  /**
+   * Release any file the index reads positions from. Indexes read by
+   * {@link #readIndex(FileSystem, Path)} hold no resources.
+   */
+  public void close() throws IOException {
   }
 
   /**
@@ -158,7 +300,25 @@ public class LzoIndex {
   }
 
   /**
-   * Read the index of the lzo file.
+   * Nudge a boundary between two file slices to the nearest LZO block start,
+   * before or after it, so that whichever slice crosses the original
+   * boundary reads as little past it as possible.
+   *
+   * @param pos The current boundary
+   * @param fileSize The size of the file
+   * @return The nearest block start, or 0 or fileSize for a boundary at
+   *         either end of the file.
+   */
+  public long alignSliceBoundaryToNearest(long pos, long fileSize) {
+    if (pos <= 0 || pos >= fileSize) {
+      return pos <= 0 ? 0 : fileSize;
+    }
+    return findNearestPosition(pos);
+  }
+
+  /**
+   * Read the index of the lzo file, from its index file, or if it has none,
+   * from the file itself if it embeds one.
 
    * @param fs The index file is on this file system.
    * @param lzoFile the file whose index we are reading -- NOT the index file itself.  That is,
@@ -166,6 +326,36 @@ public class LzoIndex {
    * @throws IOException
    */
   public static LzoIndex readIndex(FileSystem fs, Path lzoFile) throws IOException {
+    LzoIndex index = readIndexFile(fs, lzoFile);
+    if (index.isEmpty()) {
+      LzoIndex embedded = readEmbeddedIndex(fs, lzoFile);
+      return embedded != null ? embedded : index;
+    }
+    return index;
+  }
+
+  /**
+   * Read the index of the lzo file as {@link #readIndex(FileSystem, Path)}
+   * does, taking its length from <code>lzoStatus</code> rather than asking
+   * the file system, if it has to look for an embedded index.
+   *
+   * @param fs The index file is on this file system.
+   * @param lzoStatus the status of the lzo file.
+   * @throws IOException
+   */
+  public static LzoIndex readIndex(FileSystem fs, FileStatus lzoStatus) throws IOException {
+    LzoIndex index = readIndexFile(fs, lzoStatus.getPath());
+    if (index.isEmpty()) {
+      LzoIndex embedded = readEmbeddedIndex(fs, lzoStatus.getPath(), lzoStatus.getLen());
+      return embedded != null ? embedded : index;
+    }
+    return index;
+  }
+
+  /**
+   * Read the index file of the lzo file, ignoring any index it embeds.
+   */
+  static LzoIndex readIndexFile(FileSystem fs, Path lzoFile) throws IOException {
     FSDataInputStream indexIn = null;
     Path indexFile = lzoFile.suffix(LZO_INDEX_SUFFIX);
 
@@ -182,7 +372,22 @@ public class LzoIndex {
     // copy indexIn and close it
     IOUtils.copyBytes(indexIn, bytes, 4*1024, true);
 
-    ByteBuffer bytesIn = ByteBuffer.wrap(bytes.getData(), 0, bytes.getLength());
+    return readIndex(bytes.getData(), bytes.getLength(), indexFile);
+  }
+
+  /**
+   * Parse the contents of an index file, of either version.
+   *
+   * @param b the index.
+   * @param len the length of the index.
+   * @param indexFile where the index is from, for errors.
+   */
+  static LzoIndex readIndex(byte[] b, int len, Path indexFile) throws IOException {
+    if (isV2(b, len)) {
+      return readV2Index(b, len, indexFile);
+    }
+
+    ByteBuffer bytesIn = ByteBuffer.wrap(b, 0, len);
     int blocks = bytesIn.remaining()/8;
     LzoIndex index = new LzoIndex(blocks);
 
@@ -193,6 +398,267 @@ public class LzoIndex {
     return index;
   }
 
+  static boolean isV2(byte[] header, int len) {
+    return len >= V2_MAGIC.length &&
+        Arrays.equals(V2_MAGIC, Arrays.copyOf(header, V2_MAGIC.length));
+  }
+
+  private static LzoIndex readV2Index(byte[] b, int len, Path indexFile)
+      throws IOException {
+    if (len < V2_MAGIC.length + V2_TRAILER_SIZE) {
+      throw new IOException("Truncated lzo index " + indexFile);
+    }
+    ByteBuffer trailer = ByteBuffer.wrap(b, len - V2_TRAILER_SIZE, V2_TRAILER_SIZE);
+    long blocks = trailer.getLong();
+    long uncompressedLength = trailer.getLong();
+    trailer.getLong(); // restart table position, only needed for lazy reads
+    int checksum = trailer.getInt();
+    CRC32 crc = new CRC32();
+    crc.update(b, 0, len - 8);
+    if (checksum != (int)crc.getValue()) {
+      throw new IOException("Checksum error in lzo index " + indexFile);
+    }
+    if (blocks < 0 || blocks > len) {
+      throw new IOException("Corrupt lzo index " + indexFile);
+    }
+
+    long[] positions = new long[(int)blocks];
+    long[] uncompressedOffsets = new long[(int)blocks + 1];
+    int off = V2_MAGIC.length;
+    for (int first = 0; first < blocks; first += V2_RESTART_INTERVAL) {
+      int count = (int)Math.min(V2_RESTART_INTERVAL, blocks - first);
+      off = decodeV2Entries(b, off, len - V2_TRAILER_SIZE, count,
+          uncompressedOffsets[first], positions, uncompressedOffsets, first);
+    }
+    if (uncompressedOffsets[(int)blocks] != uncompressedLength) {
+      throw new IOException("Corrupt lzo index " + indexFile);
+    }
+    return new LzoIndex(positions, uncompressedOffsets);
+  }
+
+  /**
+   * Decode the version 2 entries of up to a restart interval of blocks,
+   * starting at a restart block.
+   *
+   * @param b the encoded entries.
+   * @param off where the first entry starts.
+   * @param end the end of the encoded data.
+   * @param count number of entries to decode.
+   * @param uncompressedOffset uncompressed offset of the first block.
+   * @param positions receives the block positions, from <code>at</code>.
+   * @param uncompressedOffsets receives the uncompressed offsets, from
+   *        <code>at</code>, and the offset after the last block.
+   * @param at index of the first block in the arrays.
+   * @return the position after the last entry.
+   */
+  static int decodeV2Entries(byte[] b, int off, int end, int count,
+      long uncompressedOffset, long[] positions, long[] uncompressedOffsets,
+      int at) throws IOException {
+    long offset = 0;
+    long size = 0;
+    for (int i = 0; i < count; i++) {
+      // Two varints: the offset delta, then the zigzagged size delta.
+      for (int field = 0; field < 2; field++) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+          if (off >= end || shift > 63) {
+            throw new IOException("Corrupt lzo index entry");
+          }
+          byte x = b[off++];
+          v |= (long)(x & 0x7F) << shift;
+          if (x >= 0) {
+            break;
+          }
+        }
+        if (field == 0) {
+          offset += v;
+        } else {
+          size += (v >>> 1) ^ -(v & 1);
+        }
+      }
+      positions[at + i] = offset;
+      uncompressedOffsets[at + i] = uncompressedOffset;
+      uncompressedOffset += size;
+    }
+    uncompressedOffsets[at + count] = uncompressedOffset;
+    return off;
+  }
+
+  private static LzoIndex readEmbeddedIndex(FileSystem fs, Path lzoFile)
+      throws IOException {
+    long fileLength;
+    try {
+      fileLength = fs.getFileStatus(lzoFile).getLen();
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    return readEmbeddedIndex(fs, lzoFile, fileLength);
+  }
+
+  /**
+   * Read the index embedded at the end of the lzo file, if it has one.
+   *
+   * @param fs The lzo file is on this file system.
+   * @param lzoFile the lzo file.
+   * @param fileLength the length of the lzo file.
+   * @return the index, or null if the file doesn't embed one.
+   * @throws IOException
+   */
+  public static LzoIndex readEmbeddedIndex(FileSystem fs, Path lzoFile, long fileLength)
+      throws IOException {
+    if (fileLength < EMBEDDED_FOOTER_SIZE + V2_MAGIC.length + V2_TRAILER_SIZE) {
+      return null;
+    }
+    FSDataInputStream in = fs.open(lzoFile);
+    try {
+      long indexStart = findEmbeddedIndex(in, fileLength);
+      if (indexStart < 0) {
+        return null;
+      }
+      byte[] b = new byte[(int)(fileLength - EMBEDDED_FOOTER_SIZE - indexStart)];
+      in.readFully(indexStart, b, 0, b.length);
+      if (!isV2(b, b.length)) {
+        throw new IOException("Corrupt embedded lzo index in " + lzoFile);
+      }
+      return readV2Index(b, b.length, lzoFile);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param fs The lzo file is on this file system.
+   * @param lzoFile the lzo file.
+   * @param fileLength the length of the lzo file.
+   * @return whether the lzo file embeds its index.
+   * @throws IOException
+   */
+  public static boolean hasEmbeddedIndex(FileSystem fs, Path lzoFile, long fileLength)
+      throws IOException {
+    if (fileLength < EMBEDDED_FOOTER_SIZE + V2_MAGIC.length + V2_TRAILER_SIZE) {
+      return false;
+    }
+    FSDataInputStream in = fs.open(lzoFile);
+    try {
+      return findEmbeddedIndex(in, fileLength) >= 0;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Get the length of the lzop stream in an lzo file, which ends before the
+   * index if the file embeds one.
+   *
+   * @param in the lzo file.
+   * @param fileLength the length of the lzo file.
+   * @return the position after the end of stream marker.
+   * @throws IOException
+   */
+  public static long getLzopStreamLength(PositionedReadable in, long fileLength)
+      throws IOException {
+    long indexStart = findEmbeddedIndex(in, fileLength);
+    return indexStart < 0 ? fileLength : indexStart;
+  }
+
+  /**
+   * @return the position of the index embedded in the lzo file, or -1 if
+   *         the footer doesn't describe one.
+   */
+  private static long findEmbeddedIndex(PositionedReadable in, long fileLength)
+      throws IOException {
+    if (fileLength < EMBEDDED_FOOTER_SIZE + V2_MAGIC.length + V2_TRAILER_SIZE) {
+      return -1;
+    }
+    byte[] b = new byte[EMBEDDED_FOOTER_SIZE];
+    in.readFully(fileLength - b.length, b, 0, b.length);
+    // A plain lzop file ends with the zero end of stream marker instead.
+    if (!Arrays.equals(EMBEDDED_FOOTER_MAGIC, Arrays.copyOfRange(b, 12, 16))) {
+      return -1;
+    }
+    ByteBuffer footer = ByteBuffer.wrap(b);
+    long indexStart = footer.getLong();
+    int indexLength = footer.getInt();
+    if (indexStart < 0 || indexLength < 0 ||
+        indexStart + indexLength != fileLength - EMBEDDED_FOOTER_SIZE) {
+      return -1;
+    }
+    return indexStart;
+  }
+
+  /**
+   * Open the index of the lzo file without reading it. Positions are read
+   * from the index file as lookups need them, which makes opening the index
+   * of a huge file cheap; the returned index must be closed when done with.
+   * Only without an index file is the lzo file looked at for an embedded
+   * index, which is read whole.
+   *
+   * @param fs The index file is on this file system.
+   * @param lzoFile the file whose index we are opening -- NOT the index file itself.
+   * @return the index, which is empty if there is no index file.
+   * @throws IOException
+   */
+  public static LzoIndex openIndex(FileSystem fs, Path lzoFile) throws IOException {
+    LzoIndex index = openIndexFile(fs, lzoFile);
+    if (index.isEmpty()) {
+      index.close();
+      // An embedded index is small enough to read whole.
+      LzoIndex embedded = readEmbeddedIndex(fs, lzoFile);
+      return embedded != null ? embedded : new LzoIndex();
+    }
+    return index;
+  }
+
+  /**
+   * Open the index of the lzo file as {@link #openIndex(FileSystem, Path)}
+   * does, taking its length from <code>lzoStatus</code> rather than asking
+   * the file system, if it has to look for an embedded index.
+   *
+   * @param fs The index file is on this file system.
+   * @param lzoStatus the status of the lzo file.
+   * @return the index, which is empty if there is no index file.
+   * @throws IOException
+   */
+  public static LzoIndex openIndex(FileSystem fs, FileStatus lzoStatus) throws IOException {
+    LzoIndex index = openIndexFile(fs, lzoStatus.getPath());
+    if (index.isEmpty()) {
+      index.close();
+      LzoIndex embedded = readEmbeddedIndex(fs, lzoStatus.getPath(), lzoStatus.getLen());
+      return embedded != null ? embedded : new LzoIndex();
+    }
+    return index;
+  }
+
+  /**
+   * Open the index file of the lzo file, ignoring any index it embeds.
+   */
+  static LzoIndex openIndexFile(FileSystem fs, Path lzoFile) throws IOException {
+    FSDataInputStream indexIn = null;
+    Path indexFile = lzoFile.suffix(LZO_INDEX_SUFFIX);
+
+    try {
+      indexIn = fs.open(indexFile);
+    } catch (IOException fileNotFound) {
+      // return empty index, fall back to the unsplittable mode
+      return new LzoIndex();
+    }
+
+    long len = fs.getFileStatus(indexFile).getLen();
+    if (len >= V2_MAGIC.length) {
+      byte[] header = new byte[V2_MAGIC.length];
+      indexIn.readFully(0, header);
+      if (isV2(header, header.length)) {
+        return LazyLzoIndex.openV2(indexIn, len, indexFile);
+      }
+    }
+    long blocks = len / 8;
+    if (blocks == 0) {
+      indexIn.close();
+      return new LzoIndex();
+    }
+    return new LazyLzoIndex(indexIn, (int) blocks);
+  }
+
   /**
    * Index an lzo file to allow the input format to split them into separate map
    * jobs.
@@ -206,17 +672,9 @@ public class LzoIndex {
   throws IOException {
 
     Configuration conf = fs.getConf();
-    CompressionCodecFactory factory = new CompressionCodecFactory(conf);
-    CompressionCodec codec = factory.getCodec(lzoFile);
-    if (null == codec) {
-      throw new IOException("Could not find codec for file " + lzoFile +
-        " - you may need to add the LZO codec to your io.compression.codecs " +
-        "configuration in core-site.xml");
-    }
-    ((Configurable) codec).setConf(conf);
+    CompressionCodec codec = getCodec(lzoFile, conf);
 
-    FSDataInputStream is = null;
-    FSDataOutputStream os = null;
+    LzoIndexWriter os = null;
     Path outputFile = lzoFile.suffix(LZO_INDEX_SUFFIX);
     Path tmpOutputFile = lzoFile.suffix(LZO_TMP_INDEX_SUFFIX);
 
@@ -224,46 +682,13 @@ public class LzoIndex {
     // delete the tmp index file on failure, or rename it to the new index file on success.
     boolean indexingSucceeded = false;
     try {
-      is = fs.open(lzoFile);
-      os = fs.create(tmpOutputFile);
-      LzopDecompressor decompressor = (LzopDecompressor) codec.createDecompressor();
-      // Solely for reading the header
-      codec.createInputStream(is, decompressor);
-      int numCompressedChecksums = decompressor.getCompressedChecksumsCount();
-      int numDecompressedChecksums = decompressor.getDecompressedChecksumsCount();
-
-      while (true) {
-        // read and ignore, we just want to get to the next int
-        int uncompressedBlockSize = is.readInt();
-        if (uncompressedBlockSize == 0) {
-          break;
-        } else if (uncompressedBlockSize < 0) {
-          throw new EOFException();
-        }
-
-        int compressedBlockSize = is.readInt();
-        if (compressedBlockSize <= 0) {
-          throw new IOException("Could not read compressed block size");
-        }
-
-        // See LzopInputStream.getCompressedData
-        boolean isUncompressedBlock = (uncompressedBlockSize == compressedBlockSize);
-        int numChecksumsToSkip = isUncompressedBlock ?
-            numDecompressedChecksums : numDecompressedChecksums + numCompressedChecksums;
-        long pos = is.getPos();
-        // write the pos of the block start
-        os.writeLong(pos - 8);
-        // seek to the start of the next block, skip any checksums
-        is.seek(pos + compressedBlockSize + (4 * numChecksumsToSkip));
-      }
+      os = new LzoIndexWriter(fs.create(tmpOutputFile),
+          conf.getInt(LZO_INDEX_VERSION_KEY, DEFAULT_LZO_INDEX_VERSION));
+      indexBlocks(fs, lzoFile, codec, os);
       // If we're here, indexing was successful.
       indexingSucceeded = true;
     } finally {
       // Close any open streams.
-      if (is != null) {
-        is.close();
-      }
-
       if (os != null) {
         os.close();
       }
@@ -277,5 +702,65 @@ public class LzoIndex {
       }
     }
   }
-}
 
+  /**
+   * Index an lzo file in memory, as {@link #createIndex(FileSystem, Path)}
+   * would in its index file.
+   *
+   * @param fs File system that contains the file.
+   * @param lzoFile the lzo file to index.
+   * @return the contents of an index file for the lzo file.
+   * @throws IOException
+   */
+  public static byte[] createIndexBytes(FileSystem fs, Path lzoFile) throws IOException {
+    Configuration conf = fs.getConf();
+    DataOutputBuffer bytes = new DataOutputBuffer();
+    LzoIndexWriter os = new LzoIndexWriter(bytes,
+        conf.getInt(LZO_INDEX_VERSION_KEY, DEFAULT_LZO_INDEX_VERSION));
+    try {
+      indexBlocks(fs, lzoFile, getCodec(lzoFile, conf), os);
+    } finally {
+      os.close();
+    }
+    return Arrays.copyOf(bytes.getData(), bytes.getLength());
+  }
+
+  private static CompressionCodec getCodec(Path lzoFile, Configuration conf)
+      throws IOException {
+    CompressionCodecFactory factory = new CompressionCodecFactory(conf);
+    CompressionCodec codec = factory.getCodec(lzoFile);
+    if (null == codec) {
+      throw new IOException("Could not find codec for file " + lzoFile +
+        " - you may need to add the LZO codec to your io.compression.codecs " +
+        "configuration in core-site.xml");
+    }
+    ((Configurable) codec).setConf(conf);
+    return codec;
+  }
+
+  /**
+   * Scan the blocks of the lzo file, and write each to the index.
+   */
+  private static void indexBlocks(FileSystem fs, Path lzoFile, CompressionCodec codec,
+      LzoIndexWriter os) throws IOException {
+    Configuration conf = fs.getConf();
+    FSDataInputStream is = fs.open(lzoFile);
+    try {
+      LzopDecompressor decompressor = (LzopDecompressor) codec.createDecompressor();
+      // Solely for reading the header
+      codec.createInputStream(is, decompressor);
+      int numCompressedChecksums = decompressor.getCompressedChecksumsCount();
+      int numDecompressedChecksums = decompressor.getDecompressedChecksumsCount();
+
+      LzoBlockScanner scanner = new LzoBlockScanner(is, numDecompressedChecksums,
+          numCompressedChecksums, conf.getInt(LzoBlockScanner.LZO_INDEX_SCAN_BUFFER_SIZE_KEY,
+              LzoBlockScanner.DEFAULT_LZO_INDEX_SCAN_BUFFER_SIZE));
+      while (scanner.next()) {
+        // write the pos of the block start
+        os.writeBlock(scanner.getBlockOffset(), scanner.getUncompressedSize());
+      }
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -0,0 +1,360 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A cache of parsed lzo indexes, shared by every input format in the process,
+ * so that a long-lived process planning many jobs over the same files reads
+ * each index once. Entries are checked against the length and modification
+ * time of the index file, or of the lzo file for an index embedded in it, on
+ * every lookup, so that a rewritten index is read again. The cache is bounded
+ * by the memory its indexes take, and evicts the least recently used ones
+ * first.
+ * <p>
+ * Every caller gets the same cached index, so the indexes it returns are
+ * read-only: {@link LzoIndex#set} throws on them.
+ */
+public class LzoIndexCache {
+  private static final Log LOG = LogFactory.getLog(LzoIndexCache.class);
+
+  /**
+   * Bytes of memory the shared cache may hold indexes in. The cache is shared
+   * by every job in the process, so it takes the size from the first job
+   * which uses it, and later jobs can't resize it; a job may still set 0 to
+   * read its indexes without the cache.
+   */
+  public static final String LZO_INDEX_CACHE_SIZE_KEY = "lzo.index.cache.size";
+  public static final long DEFAULT_LZO_INDEX_CACHE_SIZE = 16L * 1024 * 1024;
+
+  // Rough size of an entry and the index object, besides the positions.
+  private static final long ENTRY_OVERHEAD = 256;
+
+  private static final LzoIndexCache shared = new LzoIndexCache(DEFAULT_LZO_INDEX_CACHE_SIZE);
+  // Whether the shared cache has taken its size from a job's configuration.
+  private static boolean sharedSized = false;
+
+  private static class Entry {
+    final long length;
+    final long modificationTime;
+    final LzoIndex index;
+    final long weight;
+
+    Entry(FileStatus status, LzoIndex index, long weight) {
+      this.length = status.getLen();
+      this.modificationTime = status.getModificationTime();
+      this.index = index;
+      this.weight = weight;
+    }
+
+    boolean isCurrent(FileStatus status) {
+      return length == status.getLen() && modificationTime == status.getModificationTime();
+    }
+  }
+
+  private final LinkedHashMap<Path, Entry> entries =
+      new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+  private long capacity;
+  private long size = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * @param capacity bytes of memory the cache may hold indexes in.
+   */
+  public LzoIndexCache(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return the cache shared by the whole process.
+   */
+  public static LzoIndexCache getSharedCache() {
+    return shared;
+  }
+
+  /**
+   * Get the index of an lzo file for planning splits, from the shared cache
+   * unless <code>lzo.index.cache.size</code> is 0. The shared cache takes the
+   * size in <code>conf</code> if it is the first to use it. The index must be
+   * closed when done with.
+   *
+   * @param fs The index file is on this file system.
+   * @param lzoFile the file whose index we are getting -- NOT the index file itself.
+   * @param conf the job configuration.
+   * @return the index, which is empty if there is no index file.
+   */
+  public static LzoIndex getIndex(FileSystem fs, Path lzoFile, Configuration conf)
+      throws IOException {
+    long cacheSize = conf.getLong(LZO_INDEX_CACHE_SIZE_KEY, DEFAULT_LZO_INDEX_CACHE_SIZE);
+    if (cacheSize <= 0) {
+      return LzoIndex.openIndex(fs, lzoFile);
+    }
+    return getSharedCache(cacheSize).get(fs, lzoFile);
+  }
+
+  /**
+   * Get the index of an lzo file as {@link #getIndex(FileSystem, Path,
+   * Configuration)} does, with the status the file was listed with, so that
+   * the lzo file needn't be looked up again.
+   *
+   * @param fs The index file is on this file system.
+   * @param lzoStatus the status of the file whose index we are getting.
+   * @param conf the job configuration.
+   * @return the index, which is empty if there is no index file.
+   */
+  public static LzoIndex getIndex(FileSystem fs, FileStatus lzoStatus, Configuration conf)
+      throws IOException {
+    long cacheSize = conf.getLong(LZO_INDEX_CACHE_SIZE_KEY, DEFAULT_LZO_INDEX_CACHE_SIZE);
+    if (cacheSize <= 0) {
+      return LzoIndex.openIndex(fs, lzoStatus);
+    }
+    return getSharedCache(cacheSize).get(fs, lzoStatus);
+  }
+
+  /**
+   * @return the shared cache, sized to <code>cacheSize</code> if this is the
+   *         first lookup through it.
+   */
+  private static LzoIndexCache getSharedCache(long cacheSize) {
+    synchronized (LzoIndexCache.class) {
+      if (!sharedSized) {
+        shared.setCapacity(cacheSize);
+        sharedSized = true;
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Get the index of an lzo file, reading it if it isn't cached or has
+   * changed since it was. An index too big for the cache is opened without
+   * reading it, as by {@link LzoIndex#openIndex(FileSystem, Path)}, so the
+   * index must be closed when done with.
+   *
+   * @param fs The index file is on this file system.
+   * @param lzoFile the file whose index we are getting -- NOT the index file itself.
+   * @return the index, which is empty if there is no index file.
+   */
+  public LzoIndex get(FileSystem fs, Path lzoFile) throws IOException {
+    return get(fs, fs.makeQualified(lzoFile), null);
+  }
+
+  /**
+   * Get the index of an lzo file as {@link #get(FileSystem, Path)} does,
+   * with the status the file was listed with. Only the index file is looked
+   * up, unless there is none.
+   *
+   * @param fs The index file is on this file system.
+   * @param lzoStatus the status of the file whose index we are getting.
+   * @return the index, which is empty if there is no index file.
+   */
+  public LzoIndex get(FileSystem fs, FileStatus lzoStatus) throws IOException {
+    return get(fs, fs.makeQualified(lzoStatus.getPath()), lzoStatus);
+  }
+
+  private LzoIndex get(FileSystem fs, Path lzoFile, FileStatus lzoStatus) throws IOException {
+    Path indexFile = lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX);
+    FileStatus status = getFileStatus(fs, indexFile);
+    if (status != null && status.getLen() > 0) {
+      Entry entry = getCurrent(indexFile, status);
+      if (entry != null) {
+        count(false);
+        return entry.index;
+      }
+      count(true);
+      if (status.getLen() > getCapacity()) {
+        // A version 1 index takes as much memory as it does on disk.
+        return LzoIndex.openIndexFile(fs, lzoFile);
+      }
+
+      // Read outside the lock, so that lookups of other indexes don't wait.
+      LzoIndex index = LzoIndex.readIndexFile(fs, lzoFile);
+      index.setReadOnly();
+      put(indexFile, new Entry(status, index, weigh(index)));
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Read lzo index " + indexFile + " of " + index.getNumberOfBlocks() + " blocks");
+      }
+      return index;
+    }
+    remove(indexFile);
+
+    // Without an index file, the lzo file may embed its index. The lzo
+    // file's entry holds it, or none, so that the footer of a file without
+    // one isn't read on every lookup either.
+    if (lzoStatus == null) {
+      lzoStatus = getFileStatus(fs, lzoFile);
+      if (lzoStatus == null) {
+        remove(lzoFile);
+        return new LzoIndex();
+      }
+    }
+    Entry entry = getCurrent(lzoFile, lzoStatus);
+    count(entry == null);
+    if (entry == null) {
+      LzoIndex embedded = LzoIndex.readEmbeddedIndex(fs, lzoFile, lzoStatus.getLen());
+      if (embedded != null) {
+        embedded.setReadOnly();
+      }
+      entry = new Entry(lzoStatus, embedded,
+          embedded == null ? ENTRY_OVERHEAD : weigh(embedded));
+      put(lzoFile, entry);
+    }
+    // Fall back to the unsplittable mode without either.
+    return entry.index != null ? entry.index : new LzoIndex();
+  }
+
+  private static FileStatus getFileStatus(FileSystem fs, Path file) throws IOException {
+    try {
+      return fs.getFileStatus(file);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the entry for the file, or null if there is none or it is older
+   *         than the file, in which case it is removed.
+   */
+  private synchronized Entry getCurrent(Path file, FileStatus status) {
+    Entry entry = entries.get(file);
+    if (entry != null && !entry.isCurrent(status)) {
+      removeEntry(file, entry);
+      entry = null;
+    }
+    return entry;
+  }
+
+  private synchronized void put(Path file, Entry entry) {
+    if (entry.weight <= capacity) {
+      Entry old = entries.put(file, entry);
+      if (old != null) {
+        size -= old.weight;
+      }
+      size += entry.weight;
+      evict();
+    }
+  }
+
+  private synchronized void count(boolean read) {
+    if (read) {
+      misses++;
+    } else {
+      hits++;
+    }
+  }
+
+  private static long weigh(LzoIndex index) {
+    long blocks = index.getNumberOfBlocks();
+    return ENTRY_OVERHEAD + 8 * blocks + (index.hasUncompressedOffsets() ? 8 * (blocks + 1) : 0);
+  }
+
+  private synchronized void remove(Path indexFile) {
+    Entry entry = entries.get(indexFile);
+    if (entry != null) {
+      removeEntry(indexFile, entry);
+    }
+  }
+
+  private void removeEntry(Path indexFile, Entry entry) {
+    entries.remove(indexFile);
+    size -= entry.weight;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+    while (size > capacity && it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      it.remove();
+      size -= eldest.weight;
+      evictions++;
+    }
+  }
+
+  /**
+   * Change the bytes of memory the cache may hold indexes in, evicting
+   * indexes if it now holds more.
+   */
+  public synchronized void setCapacity(long capacity) {
+    this.capacity = capacity;
+    evict();
+  }
+
+  public synchronized long getCapacity() {
+    return capacity;
+  }
+
+  /** @return the bytes of memory the cached indexes take, roughly. */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the number of cached indexes, and of lzo files known not to
+   *         embed one.
+   */
+  public synchronized int getCount() {
+    return entries.size();
+  }
+
+  /** @return the number of lookups which found a current cached index. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return the number of lookups which had to read the index file. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** @return the number of indexes evicted to make room for others. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Drop every cached index, and reset the counts.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "LzoIndexCache(" + entries.size() + " indexes, " + size + "/" + capacity +
+        " bytes, " + hits + " hits, " + misses + " misses, " + evictions + " evictions)";
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Writes an lzo index a block at a time, in either version of the format.
+ * <p>
+ * Version 1 is a bare array of big-endian longs, the offset of each block.
+ * <p>
+ * Version 2 is
+ * <pre>
+ *   header   : 0x89 'L' 'Z' 'O' 'I' 'D' 'X' 0x02
+ *   entries  : for each block, varint(offset - previous offset),
+ *              varint(zigzag(uncompressed size - previous uncompressed size))
+ *   restarts : for every {@link LzoIndex#V2_RESTART_INTERVAL}th block, from
+ *              the first, the long position of its entry in the index file
+ *              and the long uncompressed offset of the block
+ *   trailer  : long block count, long total uncompressed bytes, long position
+ *              of the restart table, int CRC32 of everything before it,
+ *              int 'L' 'Z' 'I' 'X'
+ * </pre>
+ * The previous offset and size are zero for the first block and for each
+ * restart block, so that the entries can be decoded a restart interval at a
+ * time. A version 1 index starts with a small positive offset, so its first
+ * byte is never the version 2 magic's 0x89.
+ */
+public class LzoIndexWriter implements Closeable {
+  private final DataOutputStream out;
+  private final int version;
+
+  private final CRC32 crc = new CRC32();
+  private final byte[] buf = new byte[20];
+  private final DataOutputBuffer restarts = new DataOutputBuffer();
+  private long bytesWritten = 0;
+  private long blocks = 0;
+  private long previousOffset = 0;
+  private int previousSize = 0;
+  private long uncompressedOffset = 0;
+
+  /**
+   * @param out the index file, which is closed when this is.
+   * @param version 1 or 2.
+   */
+  public LzoIndexWriter(DataOutputStream out, int version) throws IOException {
+    if (version != 1 && version != 2) {
+      throw new IllegalArgumentException("Unknown lzo index version " + version);
+    }
+    this.out = out;
+    this.version = version;
+    if (version == 2) {
+      write(LzoIndex.V2_MAGIC, LzoIndex.V2_MAGIC.length);
+    }
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Add the next block to the index.
+   *
+   * @param offset the position of the block in the lzo file.
+   * @param uncompressedSize the number of bytes the block decompresses to.
+   */
+  public void writeBlock(long offset, int uncompressedSize) throws IOException {
+    if (version == 1) {
+      out.writeLong(offset);
+      return;
+    }
+
+    if (blocks % LzoIndex.V2_RESTART_INTERVAL == 0) {
+      restarts.writeLong(bytesWritten);
+      restarts.writeLong(uncompressedOffset);
+      previousOffset = 0;
+      previousSize = 0;
+    }
+    int len = putVarLong(buf, 0, offset - previousOffset);
+    int delta = uncompressedSize - previousSize;
+    len = putVarLong(buf, len, (delta << 1) ^ (delta >> 31));
+    write(buf, len);
+
+    blocks++;
+    previousOffset = offset;
+    previousSize = uncompressedSize;
+    uncompressedOffset += uncompressedSize;
+  }
+
+  /**
+   * Write the restart table and trailer, if any, and close the index file.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (version == 2) {
+        long restartsPos = bytesWritten;
+        write(restarts.getData(), restarts.getLength());
+        DataOutputBuffer trailer = new DataOutputBuffer();
+        trailer.writeLong(blocks);
+        trailer.writeLong(uncompressedOffset);
+        trailer.writeLong(restartsPos);
+        write(trailer.getData(), trailer.getLength());
+        out.writeInt((int)crc.getValue());
+        out.write(LzoIndex.V2_TRAILER_MAGIC);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void write(byte[] b, int len) throws IOException {
+    out.write(b, 0, len);
+    crc.update(b, 0, len);
+    bytesWritten += len;
+  }
+
+  /**
+   * Write v as an unsigned little-endian base 128 varint.
+   *
+   * @return the position after the varint.
+   */
+  private static int putVarLong(byte[] b, int off, long v) {
+    while ((v & ~0x7FL) != 0) {
+      b[off++] = (byte)((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    b[off++] = (byte)v;
+    return off;
+  }
+}
@@ -19,8 +19,20 @@
 package com.hadoop.compression.lzo;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,15 +40,29 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class LzoIndexer {
   private static final Log LOG = LogFactory.getLog(LzoIndexer.class);
 
+  /**
+   * Number of threads which list directories and index files. With the
+   * default of 1, everything is done in turn on the calling thread.
+   */
+  public static final String LZO_INDEXER_THREADS_KEY = "lzo.indexer.threads";
+  public static final int DEFAULT_LZO_INDEXER_THREADS = 1;
+
   private final Configuration conf_;
   private final String LZO_EXTENSION = new LzopCodec().getDefaultExtension();
   private final String INDENT_STRING = "  ";
   private final DecimalFormat df_;
 
+  // Totals for the current call to index(), updated by every thread.
+  private final AtomicInteger filesIndexed_ = new AtomicInteger();
+  private final AtomicInteger filesSkipped_ = new AtomicInteger();
+  private final AtomicInteger filesFailed_ = new AtomicInteger();
+  private final AtomicLong bytesIndexed_ = new AtomicLong();
+
   public LzoIndexer(Configuration conf) {
     conf_ = conf;
     df_ = new DecimalFormat("#0.00");
@@ -49,7 +75,30 @@ public class LzoIndexer {
    * @throws IOException
    */
   public void index(Path lzoPath) throws IOException {
-    indexInternal(lzoPath, 0);
+    filesIndexed_.set(0);
+    filesSkipped_.set(0);
+    filesFailed_.set(0);
+    bytesIndexed_.set(0);
+    long startTime = System.currentTimeMillis();
+
+    FileSystem fs = FileSystem.get(URI.create(lzoPath.toString()), conf_);
+    FileStatus fileStatus = fs.getFileStatus(lzoPath);
+    int threads = conf_.getInt(LZO_INDEXER_THREADS_KEY, DEFAULT_LZO_INDEXER_THREADS);
+    if (threads > 1) {
+      indexParallel(fs, fileStatus, threads);
+    } else {
+      indexRecursively(fs, fileStatus, 0);
+    }
+
+    if (fileStatus.isDir()) {
+      double elapsed = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+      LOG.info("Indexed " + filesIndexed_.get() + " LZO files under " + lzoPath +
+               " totalling " + format(bytesIndexed_.get() / (1024.0 * 1024.0 * 1024.0)) +
+               " GB in " + format(elapsed) + " seconds (" +
+               format(bytesIndexed_.get() / (1024.0 * 1024.0 * elapsed)) + " MB/s) on " +
+               Math.max(1, threads) + " thread(s); skipped " + filesSkipped_.get() +
+               ", failed " + filesFailed_.get() + ".");
+    }
   }
 
   /**
@@ -67,43 +116,166 @@ public class LzoIndexer {
   }
 
   /**
-   * Lzo index a given path, calling recursively to index directories when encountered.
-   * Files are only indexed if they end in .lzo and have no existing .lzo.index file.
+   * DecimalFormat is not thread-safe, and the indexing threads share it.
+   */
+  private String format(double d) {
+    synchronized (df_) {
+      return df_.format(d);
+    }
+  }
+
+  private void indexRecursively(FileSystem fs, FileStatus fileStatus, int nestingLevel)
+      throws IOException {
+    FileStatus[] children = indexInternal(fs, fileStatus, nestingLevel);
+    if (children != null) {
+      for (FileStatus childStatus: children) {
+        indexRecursively(fs, childStatus, nestingLevel + 1);
+      }
+    }
+  }
+
+  /**
+   * Walk and index the path on a pool of threads. Listing a directory
+   * queues its children, so that files are indexed while the rest of the
+   * tree is still being listed. If listing a directory fails, the rest of
+   * the tree is still indexed, and then the first failure is thrown, as
+   * {@link #indexRecursively} would throw it.
+   */
+  private void indexParallel(FileSystem fs, FileStatus fileStatus, int threads)
+      throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads, new IndexerThreadFactory());
+    CompletionService<IndexTask> tasks = new ExecutorCompletionService<IndexTask>(pool);
+    Throwable failure = null;
+    try {
+      tasks.submit(new IndexTask(fs, fileStatus, 0));
+      int pending = 1;
+      while (pending > 0) {
+        IndexTask done;
+        try {
+          done = tasks.take().get();
+        } catch (ExecutionException e) {
+          // Listing failed; indexing failures are caught in indexSingleFile.
+          LOG.error("Error walking directory", e.getCause());
+          filesFailed_.incrementAndGet();
+          if (failure == null) {
+            failure = e.getCause();
+          }
+          continue;
+        } finally {
+          pending--;
+        }
+        if (done.children != null) {
+          for (FileStatus childStatus: done.children) {
+            tasks.submit(new IndexTask(fs, childStatus, done.nestingLevel + 1));
+            pending++;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted indexing " + fileStatus.getPath());
+    } finally {
+      pool.shutdownNow();
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new IOException("Error walking " + fileStatus.getPath(), failure);
+    }
+  }
+
+  /**
+   * Index the lzo files of a directory into its {@link LzoDirectoryIndex}.
+   *
+   * @return The subdirectories, to index next.
+   */
+  private FileStatus[] indexDirectory(FileSystem fs, Path dir, FileStatus[] children,
+      int nestingLevel) throws IOException {
+    long startTime = System.currentTimeMillis();
+    List<FileStatus> subdirectories = new ArrayList<FileStatus>();
+    int lzoFiles = 0;
+    for (FileStatus child : children) {
+      if (child.isDir()) {
+        subdirectories.add(child);
+      } else if (child.getPath().toString().endsWith(LZO_EXTENSION)) {
+        lzoFiles++;
+      }
+    }
+
+    List<FileStatus> indexed = LzoDirectoryIndex.update(fs, dir, children, true,
+        conf_.getBoolean(LzoDirectoryIndex.LZO_DIRECTORY_INDEX_REMOVE_FILES_KEY,
+            LzoDirectoryIndex.DEFAULT_LZO_DIRECTORY_INDEX_REMOVE_FILES));
+    long bytes = 0;
+    for (FileStatus file : indexed) {
+      bytes += file.getLen();
+    }
+    filesIndexed_.addAndGet(indexed.size());
+    filesSkipped_.addAndGet(lzoFiles - indexed.size());
+    bytesIndexed_.addAndGet(bytes);
+    if (!indexed.isEmpty()) {
+      double elapsed = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+      LOG.info(getNesting(nestingLevel) + "Completed LZO Indexing of " + indexed.size() +
+               " files into " + LzoDirectoryIndex.getPath(dir) + " in " + format(elapsed) +
+               " seconds (" + format(bytes / (1024.0 * 1024.0 * elapsed)) + " MB/s).\n");
+    }
+    return subdirectories.toArray(new FileStatus[subdirectories.size()]);
+  }
+
+  /**
+   * Lzo index a given path.  Files are only indexed if they end in .lzo and have
+   * no existing .lzo.index file.
    * 
-   * @param lzoPath The base path to index.
+   * @param fs The filesystem of the path.
+   * @param fileStatus The path to index.
    * @param nestingLevel For pretty printing, the nesting level.
+   * @return The children to index next, if the path is a directory.
    * @throws IOException
    */
-  private void indexInternal(Path lzoPath, int nestingLevel) throws IOException {
-    FileSystem fs = FileSystem.get(URI.create(lzoPath.toString()), conf_);
-    FileStatus fileStatus = fs.getFileStatus(lzoPath);
+  private FileStatus[] indexInternal(FileSystem fs, FileStatus fileStatus, int nestingLevel)
+      throws IOException {
+    Path lzoPath = fileStatus.getPath();
 
     // Recursively walk
     if (fileStatus.isDir()) {
       LOG.info(getNesting(nestingLevel) + "LZO Indexing directory " + lzoPath + "...");
-      FileStatus[] statuses = fs.listStatus(lzoPath);
-      for (FileStatus childStatus: statuses) {
-        indexInternal(childStatus.getPath(), nestingLevel + 1);
+      FileStatus[] children = fs.listStatus(lzoPath);
+      if (conf_.getBoolean(LzoDirectoryIndex.LZO_DIRECTORY_INDEX_KEY,
+          LzoDirectoryIndex.DEFAULT_LZO_DIRECTORY_INDEX)) {
+        return indexDirectory(fs, lzoPath, children, nestingLevel);
       }
+      return children;
     } else if (lzoPath.toString().endsWith(LZO_EXTENSION)) {
       Path lzoIndexPath = new Path(lzoPath.toString() + LzoIndex.LZO_INDEX_SUFFIX);
       if (fs.exists(lzoIndexPath)) {
+        filesSkipped_.incrementAndGet();
         LOG.info(getNesting(nestingLevel) + "[SKIP] LZO index file already exists for " + lzoPath + "\n");
+      } else if (LzoIndex.hasEmbeddedIndex(fs, lzoPath, fileStatus.getLen())) {
+        filesSkipped_.incrementAndGet();
+        LOG.info(getNesting(nestingLevel) + "[SKIP] LZO file already embeds its index " + lzoPath + "\n");
       } else {
         long startTime = System.currentTimeMillis();
         long fileSize = fileStatus.getLen();
 
         LOG.info(getNesting(nestingLevel) + "[INDEX] LZO Indexing file " + lzoPath + ", size " + 
-                 df_.format(fileSize / (1024.0 * 1024.0 * 1024.0)) + " GB...");
+                 format(fileSize / (1024.0 * 1024.0 * 1024.0)) + " GB...");
         if (indexSingleFile(fs, lzoPath)) {
+          filesIndexed_.incrementAndGet();
+          bytesIndexed_.addAndGet(fileSize);
           long indexSize = fs.getFileStatus(lzoIndexPath).getLen();
-          double elapsed = (System.currentTimeMillis() - startTime) / 1000.0;
-          LOG.info(getNesting(nestingLevel) + "Completed LZO Indexing in " + df_.format(elapsed) + " seconds (" + 
-                   df_.format(fileSize / (1024.0 * 1024.0 * elapsed)) + " MB/s).  Index size is " + 
-                   df_.format(indexSize / 1024.0) + " KB.\n");
+          double elapsed = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+          LOG.info(getNesting(nestingLevel) + "Completed LZO Indexing of " + lzoPath + " in " + format(elapsed) +
+                   " seconds (" + format(fileSize / (1024.0 * 1024.0 * elapsed)) + " MB/s).  Index size is " + 
+                   format(indexSize / 1024.0) + " KB.\n");
+        } else {
+          filesFailed_.incrementAndGet();
         }
       }
     }
+    return null;
   }
 
   /**
@@ -122,16 +294,56 @@ public class LzoIndexer {
     }
   }
 
+  /**
+   * Lists or indexes one path on the pool, and records what to do next.
+   */
+  private class IndexTask implements Callable<IndexTask> {
+    private final FileSystem fs;
+    private final FileStatus fileStatus;
+    private final int nestingLevel;
+    private FileStatus[] children;
+
+    IndexTask(FileSystem fs, FileStatus fileStatus, int nestingLevel) {
+      this.fs = fs;
+      this.fileStatus = fileStatus;
+      this.nestingLevel = nestingLevel;
+    }
+
+    @Override
+    public IndexTask call() throws IOException {
+      children = indexInternal(fs, fileStatus, nestingLevel);
+      return this;
+    }
+  }
+
+  private static class IndexerThreadFactory implements ThreadFactory {
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "LzoIndexer-" + threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
   /**
    * Run the LzoIndexer on each argument passed via stdin.  The files should be HDFS locations.
    */
   public static void main(String[] args) {
+    Configuration conf = new Configuration();
+    try {
+      args = new GenericOptionsParser(conf, args).getRemainingArgs();
+    } catch (IOException e) {
+      LOG.error("Error parsing arguments", e);
+      System.exit(1);
+    }
     if (args.length == 0) {
       printUsage();
       System.exit(1);
     }
 
-    LzoIndexer lzoIndexer = new LzoIndexer(new Configuration());
+    LzoIndexer lzoIndexer = new LzoIndexer(conf);
     for (String arg: args) {
       try {
         lzoIndexer.index(new Path(arg));
@@ -142,6 +354,7 @@ public class LzoIndexer {
   }
 
   public static void printUsage() {
-    System.out.println("Usage: hadoop jar /path/to/this/jar com.hadoop.compression.lzo.LzoIndexer <file.lzo | directory> [file2.lzo directory3 ...]");
+    System.out.println("Usage: hadoop jar /path/to/this/jar com.hadoop.compression.lzo.LzoIndexer [-D " +
+        LZO_INDEXER_THREADS_KEY + "=<threads>] <file.lzo | directory> [file2.lzo directory3 ...]");
   }
-}
\ No newline at end of file
+}
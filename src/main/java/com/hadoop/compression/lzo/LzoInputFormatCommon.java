@@ -18,7 +18,30 @@
 
 package com.hadoop.compression.lzo;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.Decompressor;
 
 import com.hadoop.compression.lzo.LzopCodec;
 
@@ -26,6 +49,8 @@ import com.hadoop.compression.lzo.LzopCodec;
  * Utilities used by the two LzoInputFormat implementations.
  */
 public abstract class LzoInputFormatCommon {
+  private static final double UNCOMPRESSED_SPLIT_SLOP = 1.1;
+
   /**
    * The boolean property <code>lzo.text.input.format.ignore.nonlzo</code> tells
    * the LZO text input format whether it should silently ignore non-LZO input
@@ -44,6 +69,70 @@ public abstract class LzoInputFormatCommon {
    */
   public static final String FULL_LZO_INDEX_SUFFIX =
     LzopCodec.DEFAULT_LZO_EXTENSION + LzoIndex.LZO_INDEX_SUFFIX;
+  /**
+   * The integer property <code>lzo.text.input.format.index.threads</code> is
+   * the number of threads the LZO text input formats get the indexes of
+   * their input files on while planning splits.
+   */
+  public static final String INDEX_THREADS_KEY = "lzo.text.input.format.index.threads";
+  /**
+   * Default value of the <code>lzo.text.input.format.index.threads</code>
+   * property.
+   */
+  public static final int DEFAULT_INDEX_THREADS = 1;
+  /**
+   * The boolean property
+   * <code>lzo.text.input.format.split.by.uncompressed.size</code> tells the
+   * LZO text input format to size the splits of indexed files by the amount
+   * of data their blocks hold uncompressed, rather than by their size in the
+   * file. Each file is split into about as many splits as it would be
+   * otherwise, but each split holds about the same amount of data
+   * uncompressed: the split size times the file's compression ratio. The
+   * uncompressed sizes come from a version 2 index, or else from the header
+   * of every block. Both LZO text input formats support it.
+   */
+  public static final String SPLIT_BY_UNCOMPRESSED_SIZE_KEY =
+    "lzo.text.input.format.split.by.uncompressed.size";
+  /**
+   * Default value of the
+   * <code>lzo.text.input.format.split.by.uncompressed.size</code> property.
+   */
+  public static final boolean DEFAULT_SPLIT_BY_UNCOMPRESSED_SIZE = false;
+  /**
+   * The boolean property <code>lzo.text.input.format.align.nearest</code>
+   * tells the LZO text input formats to move each split boundary to the
+   * nearest LZO block, before or after it, rather than to the next one. A
+   * split boundary usually falls on an HDFS block boundary, so this keeps
+   * the part of a split which lies on its neighbour's HDFS block, and is
+   * likely to be read remotely, as small as possible.
+   */
+  public static final String ALIGN_NEAREST_KEY = "lzo.text.input.format.align.nearest";
+  /**
+   * Default value of the <code>lzo.text.input.format.align.nearest</code>
+   * property.
+   */
+  public static final boolean DEFAULT_ALIGN_NEAREST = false;
+  /**
+   * The boolean property <code>lzo.text.input.format.split.header</code>
+   * tells the LZO text input formats of both APIs to read the lzop header of
+   * each file they split in several while planning, and to give every split
+   * which doesn't start at the header a copy of it, along with the positions
+   * of its blocks. The map task then starts reading at its split, rather than
+   * first reading the header from the start of the file, which is usually on
+   * another node.
+   */
+  public static final String SPLIT_HEADER_KEY = "lzo.text.input.format.split.header";
+  /**
+   * Default value of the <code>lzo.text.input.format.split.header</code>
+   * property.
+   */
+  public static final boolean DEFAULT_SPLIT_HEADER = true;
+  /**
+   * The property <code>textinputformat.record.delimiter</code>, as for
+   * TextInputFormat, gives the bytes, in UTF-8, which records of LZO text
+   * end with instead of line ends.
+   */
+  public static final String RECORD_DELIMITER_KEY = "textinputformat.record.delimiter";
 
   /**
    * @param conf the Configuration object
@@ -55,6 +144,210 @@ public abstract class LzoInputFormatCommon {
     return conf.getBoolean(IGNORE_NONLZO_KEY, DEFAULT_IGNORE_NONLZO);
   }
 
+  /**
+   * @param conf the Configuration object
+   * @return the value of the
+   *         <code>lzo.text.input.format.split.by.uncompressed.size</code>
+   *         property in <code>conf</code>, or
+   *         <code>DEFAULT_SPLIT_BY_UNCOMPRESSED_SIZE</code> if the property is
+   *         not set.
+   */
+  public static boolean getSplitByUncompressedSizeProperty(Configuration conf) {
+    return conf.getBoolean(SPLIT_BY_UNCOMPRESSED_SIZE_KEY, DEFAULT_SPLIT_BY_UNCOMPRESSED_SIZE);
+  }
+
+  /**
+   * @param conf the Configuration object
+   * @return the value of the <code>lzo.text.input.format.align.nearest</code>
+   *         property in <code>conf</code>, or
+   *         <code>DEFAULT_ALIGN_NEAREST</code> if the property is not set.
+   */
+  public static boolean getAlignNearestProperty(Configuration conf) {
+    return conf.getBoolean(ALIGN_NEAREST_KEY, DEFAULT_ALIGN_NEAREST);
+  }
+
+  /**
+   * Find the hosts holding the most of a range of a file, for a split of it.
+   *
+   * @param locations the locations of the file's blocks.
+   * @param start the start of the range.
+   * @param length the length of the range.
+   * @return the hosts holding any of the range, those holding the most bytes
+   *         first, as many as hold any one of its blocks.
+   */
+  public static String[] getSplitHosts(BlockLocation[] locations, long start, long length)
+      throws IOException {
+    final Map<String, Long> bytes = new HashMap<String, Long>();
+    int replicas = 0;
+    long end = start + length;
+    for (BlockLocation location : locations) {
+      long overlap = Math.min(end, location.getOffset() + location.getLength()) -
+          Math.max(start, location.getOffset());
+      if (overlap <= 0) {
+        continue;
+      }
+      String[] hosts = location.getHosts();
+      replicas = Math.max(replicas, hosts.length);
+      for (String host : hosts) {
+        Long b = bytes.get(host);
+        bytes.put(host, b == null ? overlap : b + overlap);
+      }
+    }
+
+    List<String> hosts = new ArrayList<String>(bytes.keySet());
+    Collections.sort(hosts, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        long diff = bytes.get(b) - bytes.get(a);
+        return diff < 0 ? -1 : diff > 0 ? 1 : a.compareTo(b);
+      }
+    });
+    return hosts.subList(0, Math.min(replicas, hosts.size())).toArray(new String[0]);
+  }
+
+  /**
+   * A range of an lzo file planned as one split by
+   * {@link LzoInputFormatCommon#getUncompressedSizeSplits}.
+   */
+  public static final class UncompressedSizeSplit {
+    private final long start;
+    private final long end;
+    private final long uncompressedLength;
+
+    UncompressedSizeSplit(long start, long end, long uncompressedLength) {
+      this.start = start;
+      this.end = end;
+      this.uncompressedLength = uncompressedLength;
+    }
+
+    /** @return the position in the file the split starts at. */
+    public long getStart() {
+      return start;
+    }
+
+    /** @return the position in the file the split ends at, exclusive. */
+    public long getEnd() {
+      return end;
+    }
+
+    /** @return the size of the split's blocks uncompressed. */
+    public long getUncompressedLength() {
+      return uncompressedLength;
+    }
+  }
+
+  /**
+   * Split an indexed lzo file at block boundaries into splits which hold
+   * about the same amount of data uncompressed, so that highly compressible
+   * parts of the file don't make map tasks which process much more data than
+   * others. The split size is scaled by the file's compression ratio, so that
+   * the file makes about as many splits as it would split by size in the
+   * file, and only the boundaries move. As FileInputFormat, a split much
+   * smaller than the rest isn't left at the end of the file.
+   *
+   * @param fs The lzo file is on this file system.
+   * @param lzoFile the status of the lzo file.
+   * @param index the index of the lzo file, which must not be empty.
+   * @param splitSize the size of a split in the file.
+   * @return the splits, in file order; the first starts with the lzo header,
+   *         and the last ends with the end of stream marker.
+   */
+  public static List<UncompressedSizeSplit> getUncompressedSizeSplits(FileSystem fs,
+      FileStatus lzoFile, LzoIndex index, long splitSize) throws IOException {
+    int blocks = index.getNumberOfBlocks();
+    long[] sizes = new long[blocks];
+    long remaining = 0;
+    // Without uncompressed offsets in the index, read each block's header.
+    FSDataInputStream in = index.hasUncompressedOffsets() ? null : fs.open(lzoFile.getPath());
+    try {
+      for (int i = 0; i < blocks; i++) {
+        sizes[i] = index.getUncompressedSize(i, in);
+        remaining += sizes[i];
+      }
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+    }
+
+    // The uncompressed bytes a split of splitSize holds on average.
+    long target = Math.max(1, (long) ((double) splitSize * remaining / lzoFile.getLen()));
+
+    List<UncompressedSizeSplit> splits = new ArrayList<UncompressedSizeSplit>();
+    int first = 0;
+    long uncompressed = 0;
+    for (int i = 0; i < blocks; i++) {
+      uncompressed += sizes[i];
+      remaining -= sizes[i];
+      boolean last = i == blocks - 1 ||
+          (uncompressed >= target && remaining <= (UNCOMPRESSED_SPLIT_SLOP - 1) * target);
+      if (last || uncompressed >= target) {
+        if (last) {
+          uncompressed += remaining;
+          i = blocks - 1;
+        }
+        long start = first == 0 ? 0 : index.getPosition(first);
+        long end = i == blocks - 1 ? lzoFile.getLen() : index.getPosition(i + 1);
+        splits.add(new UncompressedSizeSplit(start, end, uncompressed));
+        first = i + 1;
+        uncompressed = 0;
+      }
+    }
+    return splits;
+  }
+
+  /**
+   * @param conf the Configuration object
+   * @return the value of the <code>lzo.text.input.format.split.header</code>
+   *         property in <code>conf</code>, or <code>DEFAULT_SPLIT_HEADER</code>
+   *         if the property is not set.
+   */
+  public static boolean getSplitHeaderProperty(Configuration conf) {
+    return conf.getBoolean(SPLIT_HEADER_KEY, DEFAULT_SPLIT_HEADER);
+  }
+
+  /**
+   * @param conf the Configuration object
+   * @return the bytes of the <code>textinputformat.record.delimiter</code>
+   *         property in <code>conf</code>, or null if the property is not set
+   *         or empty.
+   */
+  public static byte[] getRecordDelimiter(Configuration conf) {
+    String delimiter = conf.get(RECORD_DELIMITER_KEY);
+    if (delimiter == null || delimiter.length() == 0) {
+      return null;
+    }
+    try {
+      return delimiter.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Internal error", e);
+    }
+  }
+
+  /**
+   * Read the lzop header of an lzo file.
+   *
+   * @param fs The lzo file is on this file system.
+   * @param lzoFile the lzo file.
+   * @param conf the job configuration.
+   * @return the header.
+   */
+  public static LzopHeader readHeader(FileSystem fs, Path lzoFile, Configuration conf)
+      throws IOException {
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    FSDataInputStream in = fs.open(lzoFile);
+    try {
+      // Creating the stream just reads the header.
+      return new LzopInputStream(in, decompressor,
+          conf.getInt(LzoCodec.LZO_BUFFER_SIZE_KEY, LzoCodec.DEFAULT_LZO_BUFFER_SIZE)).getHeader();
+    } finally {
+      in.close();
+      CodecPool.returnDecompressor(decompressor);
+    }
+  }
+
   /**
    * Checks if the given filename ends in ".lzo".
    *
@@ -74,4 +367,115 @@ public abstract class LzoInputFormatCommon {
   public static boolean isLzoIndexFile(String filename) {
     return filename.endsWith(FULL_LZO_INDEX_SUFFIX);
   }
+
+  /**
+   * Get the indexes of lzo files. Those of files in a directory with a
+   * {@link LzoDirectoryIndex} are taken from it, reading one file per
+   * directory; the rest are got through {@link LzoIndexCache#getIndex}, on
+   * <code>lzo.text.input.format.index.threads</code> threads.
+   *
+   * @param lzoFiles the lzo files.
+   * @param conf the job configuration.
+   * @return the index of each file, by its path, which must be closed when
+   *         done with.
+   */
+  public static Map<Path, LzoIndex> getIndexes(List<FileStatus> lzoFiles,
+      final Configuration conf) throws IOException {
+    Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+    Map<Path, LzoDirectoryIndex> directoryIndexes = new HashMap<Path, LzoDirectoryIndex>();
+    final List<FileStatus> files = new ArrayList<FileStatus>();
+    for (FileStatus status : lzoFiles) {
+      Path file = status.getPath();
+      Path dir = file.getParent();
+      LzoDirectoryIndex directoryIndex = directoryIndexes.get(dir);
+      if (directoryIndex == null) {
+        directoryIndex = LzoDirectoryIndex.read(file.getFileSystem(conf), dir);
+        directoryIndexes.put(dir, directoryIndex);
+      }
+      LzoIndex index = directoryIndex.getIndex(status);
+      if (index != null) {
+        indexes.put(file, index);
+      } else {
+        files.add(status);
+      }
+    }
+
+    int threads = Math.min(files.size(), conf.getInt(INDEX_THREADS_KEY, DEFAULT_INDEX_THREADS));
+    boolean done = false;
+    try {
+      if (threads <= 1) {
+        for (FileStatus status : files) {
+          indexes.put(status.getPath(), getIndex(status, conf));
+        }
+      } else {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new IndexThreadFactory());
+        try {
+          List<Future<LzoIndex>> futures = new ArrayList<Future<LzoIndex>>(files.size());
+          for (final FileStatus status : files) {
+            futures.add(pool.submit(new Callable<LzoIndex>() {
+              @Override
+              public LzoIndex call() throws IOException {
+                return getIndex(status, conf);
+              }
+            }));
+          }
+          // Collect every index, even after a failure, so that all are closed.
+          IOException failure = null;
+          for (int i = 0; i < files.size(); i++) {
+            try {
+              indexes.put(files.get(i).getPath(), futures.get(i).get());
+            } catch (ExecutionException e) {
+              if (failure == null) {
+                failure = e.getCause() instanceof IOException ? (IOException)e.getCause() :
+                    new IOException("Failed to get the index of " + files.get(i).getPath(),
+                        e.getCause());
+              }
+            }
+          }
+          if (failure != null) {
+            throw failure;
+          }
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while getting lzo indexes", e);
+        } finally {
+          pool.shutdownNow();
+        }
+      }
+      done = true;
+      return indexes;
+    } finally {
+      if (!done) {
+        closeIndexes(indexes);
+      }
+    }
+  }
+
+  /**
+   * Get the index of an lzo file through the cache, with the status it was
+   * listed with, so that the cache needn't look the lzo file up again.
+   */
+  private static LzoIndex getIndex(FileStatus status, Configuration conf) throws IOException {
+    return LzoIndexCache.getIndex(status.getPath().getFileSystem(conf), status, conf);
+  }
+
+  /**
+   * Close the indexes returned by {@link #getIndexes}, and forget them.
+   */
+  public static void closeIndexes(Map<Path, LzoIndex> indexes) throws IOException {
+    for (LzoIndex index : indexes.values()) {
+      index.close();
+    }
+    indexes.clear();
+  }
+
+  private static class IndexThreadFactory implements ThreadFactory {
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "LzoIndexLoader-" + threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
 }
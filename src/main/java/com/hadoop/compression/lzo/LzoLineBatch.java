@@ -0,0 +1,189 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A batch of lines of text, as the batch record readers return them: the
+ * lines one after another in a byte buffer, without their line terminators,
+ * with the offset of each line in the buffer and its key. Line i is the
+ * bytes from <code>getOffsets()[i]</code> to <code>getOffsets()[i + 1]</code>
+ * of {@link #getBytes()}, and its key is <code>getKeys()[i]</code>.
+ * <p>
+ * A batch is reused from one call to the next, and its arrays grow to fit
+ * the largest batch read, usually the lines of one lzo block.
+ */
+public class LzoLineBatch implements Writable {
+  private byte[] bytes = new byte[0];
+  private int length = 0;
+  private int size = 0;
+  // Line i is bytes[offsets[i]..offsets[i + 1]).
+  private int[] offsets = new int[1];
+  private long[] keys = new long[0];
+
+  /**
+   * @return the number of lines in the batch.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the buffer holding the lines; only the first
+   *         {@link #getLength()} bytes are valid.
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of bytes of all the lines.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return the offsets of the lines in the buffer, and the end of the last
+   *         line; only the first {@link #size()} + 1 are valid.
+   */
+  public int[] getOffsets() {
+    return offsets;
+  }
+
+  /**
+   * @return the keys of the lines; only the first {@link #size()} are valid.
+   */
+  public long[] getKeys() {
+    return keys;
+  }
+
+  public long getKey(int line) {
+    return keys[line];
+  }
+
+  /**
+   * @return the offset of a line in the buffer.
+   */
+  public int getStart(int line) {
+    return offsets[line];
+  }
+
+  /**
+   * @return the length of a line in bytes.
+   */
+  public int getLength(int line) {
+    return offsets[line + 1] - offsets[line];
+  }
+
+  /**
+   * Copy a line into a {@link Text}.
+   */
+  public void getLine(int line, Text str) {
+    str.set(bytes, offsets[line], getLength(line));
+  }
+
+  /**
+   * Empty the batch, keeping its buffers.
+   */
+  public void clear() {
+    length = 0;
+    size = 0;
+  }
+
+  /**
+   * Add a line to the batch.
+   *
+   * @param key the line's key.
+   * @param b the line, without its terminator.
+   */
+  public void add(long key, byte[] b, int off, int len) {
+    append(b, off, len);
+    endLine(key);
+  }
+
+  /**
+   * Add bytes to the line being read.
+   */
+  void append(byte[] b, int off, int len) {
+    if (length + len > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(length + len, 2 * bytes.length));
+    }
+    System.arraycopy(b, off, bytes, length, len);
+    length += len;
+  }
+
+  /**
+   * End the line being read, which is the bytes appended since the last one.
+   */
+  void endLine(long key) {
+    if (size == keys.length) {
+      int capacity = Math.max(16, 2 * size);
+      keys = Arrays.copyOf(keys, capacity);
+      offsets = Arrays.copyOf(offsets, capacity + 1);
+    }
+    keys[size] = key;
+    offsets[++size] = length;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVLong(out, keys[i]);
+      WritableUtils.writeVInt(out, getLength(i));
+    }
+    out.write(bytes, 0, length);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    clear();
+    int lines = WritableUtils.readVInt(in);
+    long[] lineKeys = new long[lines];
+    int[] lineLengths = new int[lines];
+    int total = 0;
+    for (int i = 0; i < lines; i++) {
+      lineKeys[i] = WritableUtils.readVLong(in);
+      lineLengths[i] = WritableUtils.readVInt(in);
+      total += lineLengths[i];
+    }
+    if (total > bytes.length) {
+      bytes = new byte[total];
+    }
+    in.readFully(bytes, 0, total);
+    for (int i = 0; i < lines; i++) {
+      length += lineLengths[i];
+      endLine(lineKeys[i]);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return size + " lines, " + length + " bytes";
+  }
+}
@@ -47,6 +47,42 @@ public class LzopCodec extends LzoCodec {
   public static final int LZOP_COMPAT_VERSION = 0x0940;
   public static final String DEFAULT_LZO_EXTENSION = ".lzo";
 
+  /**
+   * Number of blocks an {@link LzopInputStream} reads and decompresses ahead
+   * of its caller on a pool of worker threads. 0, the default, decompresses
+   * each block on the caller's thread as it is needed.
+   */
+  public static final String LZOP_READAHEAD_BLOCKS_KEY = "io.compression.codec.lzop.readahead.blocks";
+  public static final int DEFAULT_LZOP_READAHEAD_BLOCKS = 0;
+  /**
+   * Number of worker threads in read-ahead mode, which defaults to the
+   * number of processors. Each stream starts a pool of its own, which it
+   * shuts down when it is closed, so a task reading several files at once
+   * runs this many threads for each of them.
+   */
+  public static final String LZOP_READAHEAD_THREADS_KEY = "io.compression.codec.lzop.readahead.threads";
+
+  /**
+   * Number of threads an {@link LzopOutputStream} compresses blocks on while
+   * its caller fills the next one. 0, the default, compresses each block on
+   * the caller's thread.
+   */
+  public static final String LZOP_COMPRESS_THREADS_KEY = "io.compression.codec.lzop.compress.threads";
+  public static final int DEFAULT_LZOP_COMPRESS_THREADS = 0;
+
+  /** Number of decompressed blocks an {@link LzopSeekableInputStream} keeps. */
+  public static final String LZOP_SEEKABLE_CACHE_BLOCKS_KEY = "io.compression.codec.lzop.seekable.cache.blocks";
+  public static final int DEFAULT_LZOP_SEEKABLE_CACHE_BLOCKS = 4;
+
+  /**
+   * Whether an {@link LzopOutputStream} embeds the index of its blocks at the
+   * end of the lzo file, after the end of stream marker, so that the file
+   * can be split without a separate index file. lzop and older readers
+   * ignore the embedded index. Off by default.
+   */
+  public static final String LZOP_EMBED_INDEX_KEY = "io.compression.codec.lzop.embed.index";
+  public static final boolean DEFAULT_LZOP_EMBED_INDEX = false;
+
   /**
    * CodecPool.getCompressor() that takes conf is supported only in CDH3.
    * The change is yet to make it to Apache Hadoop. Fall back to old
@@ -86,48 +122,80 @@ public class LzopCodec extends LzoCodec {
 
   public CompressionOutputStream createIndexedOutputStream(OutputStream out,
         DataOutputStream indexOut, Compressor compressor) throws IOException {
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
     LzoCompressor.CompressionStrategy strategy = LzoCompressor.CompressionStrategy.valueOf(
           getConf().get(LZO_COMPRESSOR_KEY, LzoCompressor.CompressionStrategy.LZO1X_1.name()));
+    if (!isLzoCompressionAvailable(getConf(), strategy)) {
+      throw new RuntimeException("native-lzo library not available");
+    }
     int bufferSize = getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE);
-    return new LzopOutputStream(out, indexOut, compressor, bufferSize, strategy);
+    return new LzopOutputStream(out, indexOut, compressor, bufferSize, strategy,
+        getConf().getInt(LZOP_COMPRESS_THREADS_KEY, DEFAULT_LZOP_COMPRESS_THREADS),
+        getConf().getInt(LzoIndex.LZO_INDEX_VERSION_KEY, LzoIndex.DEFAULT_LZO_INDEX_VERSION),
+        getConf().getBoolean(LZOP_EMBED_INDEX_KEY, DEFAULT_LZOP_EMBED_INDEX));
   }
 
   @Override
   public CompressionInputStream createInputStream(InputStream in,
           Decompressor decompressor) throws IOException {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
+    // lzop only uses LZO1X, which the Java decoder handles when native-lzo
+    // is not available.
+    Configuration conf = getConf();
     return new LzopInputStream(in, decompressor,
-            getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE));
+            conf.getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE),
+            conf.getInt(LZOP_READAHEAD_BLOCKS_KEY, DEFAULT_LZOP_READAHEAD_BLOCKS),
+            conf.getInt(LZOP_READAHEAD_THREADS_KEY,
+                Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Create a stream which starts reading at the block <code>in</code> is
+   * positioned at, given the header of the file, so that the header at the
+   * start of the file needn't be read. The stream takes a decompressor from
+   * the pool, as {@link #createInputStream(InputStream)} does.
+   */
+  public CompressionInputStream createInputStream(InputStream in, LzopHeader header)
+      throws IOException {
+    Configuration conf = getConf();
+    return new LzopInputStream(in, getPooledDecompressor(),
+            conf.getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE),
+            conf.getInt(LZOP_READAHEAD_BLOCKS_KEY, DEFAULT_LZOP_READAHEAD_BLOCKS),
+            conf.getInt(LZOP_READAHEAD_THREADS_KEY,
+                Runtime.getRuntime().availableProcessors()),
+            header);
   }
 
   @Override
   public CompressionInputStream createInputStream(InputStream in) throws IOException {
     // get a decompressor from a pool which will be returned to the pool
     // when LzoInputStream is closed
-    return createInputStream(in, CodecPool.getDecompressor(this));
+    return createInputStream(in, getPooledDecompressor());
+  }
+
+  /**
+   * Take a decompressor from the pool, unless it is too small for this
+   * codec's blocks, as the pool is shared by codecs configured with
+   * different buffer sizes. A small one is left out of the pool, and a new
+   * one takes its place when the stream is closed.
+   */
+  private Decompressor getPooledDecompressor() {
+    Decompressor decompressor = CodecPool.getDecompressor(this);
+    if (decompressor instanceof LzoDecompressor &&
+        ((LzoDecompressor) decompressor).getDirectBufferSize() <
+        getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE)) {
+      decompressor = createDecompressor();
+    }
+    return decompressor;
   }
 
   @Override
   public Class<? extends Decompressor> getDecompressorType() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
     return LzopDecompressor.class;
   }
 
   @Override
   public Decompressor createDecompressor() {
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
-    return new LzopDecompressor(getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE));
+    return new LzopDecompressor(getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE),
+        isNativeLzoLoaded(getConf()));
   }
 
   private Compressor getCompressor() {
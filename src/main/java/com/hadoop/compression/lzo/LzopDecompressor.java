@@ -36,6 +36,14 @@ public class LzopDecompressor extends LzoDecompressor {
     super(LzoDecompressor.CompressionStrategy.LZO1X_SAFE, bufferSize);
   }
 
+  /**
+   * Create an LzoDecompressor with LZO1X strategy, choosing whether to use
+   * native-lzo or the pure-Java decoder.
+   */
+  LzopDecompressor(int bufferSize, boolean useNative) {
+    super(LzoDecompressor.CompressionStrategy.LZO1X_SAFE, bufferSize, useNative);
+  }
+
   /**
    * Given a set of decompressed and compressed checksums,
    */
@@ -0,0 +1,120 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.EnumSet;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The parts of an lzop header which reading its blocks depends on: the
+ * compression method and level, and the flags which say which checksums
+ * each block carries. A reader given the header of a file can start at any
+ * block without reading the header at the start of the file; see
+ * {@link LzopCodec#createInputStream(java.io.InputStream, LzopHeader)}.
+ */
+public class LzopHeader implements Writable {
+  private int method;
+  private int level;
+  private int flags;
+
+  public LzopHeader() {
+  }
+
+  public LzopHeader(int method, int level, int flags) {
+    this.method = method;
+    this.level = level;
+    this.flags = flags;
+  }
+
+  /** @return the lzop compression method, 1 to 3. */
+  public int getMethod() {
+    return method;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  /** @return the flags word of the header. */
+  public int getFlags() {
+    return flags;
+  }
+
+  /**
+   * @return the strategy the lzop method stands for, as
+   *         {@link LzopOutputStream} writes it.
+   */
+  public LzoCompressor.CompressionStrategy getStrategy() {
+    switch (method) {
+    case 1:
+      return LzoCompressor.CompressionStrategy.LZO1X_1;
+    case 2:
+      return LzoCompressor.CompressionStrategy.LZO1X_15;
+    case 3:
+      return LzoCompressor.CompressionStrategy.LZO1X_999;
+    default:
+      throw new IllegalStateException("Invalid strategy: " + method);
+    }
+  }
+
+  /** @return the checksums of the uncompressed data of each block. */
+  public EnumSet<DChecksum> getDChecksums() {
+    EnumSet<DChecksum> dflags = EnumSet.noneOf(DChecksum.class);
+    for (DChecksum f : DChecksum.values()) {
+      if (0 != (f.getHeaderMask() & flags)) {
+        dflags.add(f);
+      }
+    }
+    return dflags;
+  }
+
+  /** @return the checksums of the compressed data of each block. */
+  public EnumSet<CChecksum> getCChecksums() {
+    EnumSet<CChecksum> cflags = EnumSet.noneOf(CChecksum.class);
+    for (CChecksum f : CChecksum.values()) {
+      if (0 != (f.getHeaderMask() & flags)) {
+        cflags.add(f);
+      }
+    }
+    return cflags;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(method);
+    out.writeByte(level);
+    out.writeInt(flags);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    method = in.readUnsignedByte();
+    level = in.readUnsignedByte();
+    flags = in.readInt();
+  }
+
+  @Override
+  public String toString() {
+    return "method " + method + ", level " + level + ", flags 0x" + Integer.toHexString(flags);
+  }
+}
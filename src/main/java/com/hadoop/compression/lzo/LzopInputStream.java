@@ -21,15 +21,30 @@ package com.hadoop.compression.lzo;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Adler32;
 import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.compress.BlockDecompressorStream;
 import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.Decompressor;
@@ -47,12 +62,74 @@ public class LzopInputStream extends BlockDecompressorStream {
 
   private int noUncompressedBytes = 0;
   private int noCompressedBytes = 0;
+  // The length of the header read from the stream, 0 if it was given.
+  private int headerLength = 0;
   private int uncompressedBlockSize = 0;
 
+  // Read-ahead mode: blocks being decompressed by the pool, oldest first, and
+  // the decoded block currently being returned to the caller.
+  private int readAheadBlocks = 0;
+  private ExecutorService readAheadPool = null;
+  private final Queue<ReadAheadBlock> readAhead = new ArrayDeque<ReadAheadBlock>();
+  private final Queue<LzoDecompressor> idleDecompressors =
+      new ConcurrentLinkedQueue<LzoDecompressor>();
+  private boolean readAheadEof = false;
+  private byte[] block = null;
+  private int blockOff = 0;
+  private long blockEndPos = -1;
+  // The block last returned whole by readBlock.
+  private byte[] blockBuffer = null;
+
+  private LzopHeader header;
+
   public LzopInputStream(InputStream in, Decompressor decompressor,
       int bufferSize) throws IOException {
+    this(in, decompressor, bufferSize, null);
+  }
+
+  /**
+   * Creates a stream which, given the <code>header</code> of the file, starts
+   * reading at the block <code>in</code> is positioned at, rather than
+   * reading the header from <code>in</code>. If it is null, the header is
+   * read as usual.
+   */
+  public LzopInputStream(InputStream in, Decompressor decompressor,
+      int bufferSize, LzopHeader header) throws IOException {
     super(in, decompressor, bufferSize);
-    readHeader(in);
+    if (header == null) {
+      readHeader(in);
+    } else {
+      initHeader(header);
+    }
+  }
+
+  /**
+   * Creates a stream which, if <code>readAheadBlocks</code> is positive, reads
+   * up to that many blocks ahead of the caller and decompresses and verifies
+   * them on <code>readAheadThreads</code> worker threads. Blocks are still
+   * returned in order, and {@link #getCompressedPos()} reports the end of the
+   * block being returned rather than how far the stream has read ahead.
+   */
+  public LzopInputStream(InputStream in, Decompressor decompressor,
+      int bufferSize, int readAheadBlocks, int readAheadThreads)
+      throws IOException {
+    this(in, decompressor, bufferSize, readAheadBlocks, readAheadThreads, null);
+  }
+
+  /**
+   * Creates a stream as above, which starts at the block <code>in</code> is
+   * positioned at if given the <code>header</code> of the file.
+   */
+  public LzopInputStream(InputStream in, Decompressor decompressor,
+      int bufferSize, int readAheadBlocks, int readAheadThreads,
+      LzopHeader header) throws IOException {
+    this(in, decompressor, bufferSize, header);
+    if (readAheadBlocks > 0) {
+      this.readAheadBlocks = readAheadBlocks;
+      this.readAheadPool = Executors.newFixedThreadPool(
+          Math.max(1, Math.min(readAheadThreads, readAheadBlocks)),
+          new ReadAheadThreadFactory());
+    }
   }
 
   /**
@@ -136,36 +213,16 @@ public class LzopInputStream extends BlockDecompressorStream {
           Integer.toHexString(hitem) + " (expected 0x" +
           Integer.toHexString(LzopCodec.LZOP_VERSION) + ")");
     }
-    hitem = readHeaderItem(in, buf, 1, adler, crc32); // method
-    if (hitem < 1 || hitem > 3) {
+    int method = readHeaderItem(in, buf, 1, adler, crc32); // method
+    if (method < 1 || method > 3) {
       throw new IOException("Invalid strategy: " +
-          Integer.toHexString(hitem));
+          Integer.toHexString(method));
     }
-    readHeaderItem(in, buf, 1, adler, crc32); // ignore level
+    int level = readHeaderItem(in, buf, 1, adler, crc32); // level
 
     // flags
     hitem = readHeaderItem(in, buf, 4, adler, crc32);
-    try {
-      for (DChecksum f : dflags) {
-        if (0 == (f.getHeaderMask() & hitem)) {
-          dflags.remove(f);
-        } else {
-          dcheck.put(f, (int)f.getChecksumClass().newInstance().getValue());
-        }
-      }
-      for (CChecksum f : cflags) {
-        if (0 == (f.getHeaderMask() & hitem)) {
-          cflags.remove(f);
-        } else {
-          ccheck.put(f, (int)f.getChecksumClass().newInstance().getValue());
-        }
-      }
-    } catch (InstantiationException e) {
-      throw new RuntimeException("Internal error", e);
-    } catch (IllegalAccessException e) {
-      throw new RuntimeException("Internal error", e);
-    }
-    ((LzopDecompressor)decompressor).initHeaderFlags(dflags, cflags);
+    initHeader(new LzopHeader(method, level, hitem));
     boolean useCRC32 = 0 != (hitem & 0x00001000);   // F_H_CRC32
     boolean extraField = 0 != (hitem & 0x00000040); // F_H_EXTRA_FIELD
     if (0 != (hitem & 0x400)) {                     // F_MULTIPART
@@ -183,6 +240,7 @@ public class LzopInputStream extends BlockDecompressorStream {
     readHeaderItem(in, buf, 4, adler, crc32); // ignore mtime
     readHeaderItem(in, buf, 4, adler, crc32); // ignore gmtdiff
     hitem = readHeaderItem(in, buf, 1, adler, crc32); // fn len
+    headerLength = 9 + 2 + 2 + 2 + 1 + 1 + 4 + 4 + 4 + 4 + 1 + hitem + 4;
     if (hitem > 0) {
       // skip filename
       int filenameLen = Math.max(4, hitem); // buffer must be at least 4 bytes for readHeaderItem to work.
@@ -201,6 +259,7 @@ public class LzopInputStream extends BlockDecompressorStream {
       crc32.reset();
       hitem = readHeaderItem(in, buf, 4, adler, crc32);
       readHeaderItem(in, new byte[hitem], hitem, adler, crc32);
+      headerLength += 4 + hitem + 4;
       checksum = (int)(useCRC32 ? crc32.getValue() : adler.getValue());
       if (checksum != readHeaderItem(in, buf, 4, adler, crc32)) {
         throw new IOException("Invalid checksum for extra header field");
@@ -208,6 +267,41 @@ public class LzopInputStream extends BlockDecompressorStream {
     }
   }
 
+  /**
+   * Set the block checksum options of the header.
+   */
+  private void initHeader(LzopHeader header) {
+    this.header = header;
+    try {
+      for (DChecksum f : dflags) {
+        if (0 == (f.getHeaderMask() & header.getFlags())) {
+          dflags.remove(f);
+        } else {
+          dcheck.put(f, (int)f.getChecksumClass().newInstance().getValue());
+        }
+      }
+      for (CChecksum f : cflags) {
+        if (0 == (f.getHeaderMask() & header.getFlags())) {
+          cflags.remove(f);
+        } else {
+          ccheck.put(f, (int)f.getChecksumClass().newInstance().getValue());
+        }
+      }
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Internal error", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Internal error", e);
+    }
+    ((LzopDecompressor)decompressor).initHeaderFlags(dflags, cflags);
+  }
+
+  /**
+   * @return the header of the file, whether read from the stream or given.
+   */
+  public LzopHeader getHeader() {
+    return header;
+  }
+
   /**
    * Take checksums recorded from block header and verify them against
    * those recorded by the decomrpessor.
@@ -230,6 +324,10 @@ public class LzopInputStream extends BlockDecompressorStream {
 
   @Override
   protected int decompress(byte[] b, int off, int len) throws IOException {
+    if (readAheadPool != null) {
+      return readAheadDecompress(b, off, len);
+    }
+
     // Check if we are the beginning of a block
     if (noUncompressedBytes == uncompressedBlockSize) {
       // Get original data size
@@ -322,19 +420,365 @@ public class LzopInputStream extends BlockDecompressorStream {
     return compressedLen;
   }
 
+  /**
+   * Return bytes from the oldest read-ahead block, waiting for it to be
+   * decompressed if necessary, and keep the pipeline full.
+   */
+  private int readAheadDecompress(byte[] b, int off, int len)
+      throws IOException {
+    while (block == null || blockOff == block.length) {
+      if (!nextReadAheadBlock()) {
+        return -1;
+      }
+    }
+
+    int n = Math.min(len, block.length - blockOff);
+    System.arraycopy(block, blockOff, b, off, n);
+    blockOff += n;
+    return n;
+  }
+
+  /**
+   * Make the oldest read-ahead block the current one, waiting for it to be
+   * decompressed if necessary.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean nextReadAheadBlock() throws IOException {
+    fillReadAhead();
+    ReadAheadBlock next = readAhead.poll();
+    if (next == null) {
+      block = null;
+      blockEndPos = -1;
+      eof = true;
+      return false;
+    }
+    block = next.get();
+    blockOff = 0;
+    blockEndPos = next.endPos;
+    // Queue another block while the caller consumes this one.
+    fillReadAhead();
+    return true;
+  }
+
+  /**
+   * Decompress the next block whole, for readers which work on the data a
+   * block at a time rather than copying it out through {@link #read}. The
+   * block's bytes are the first ones of {@link #getBlock()}, which is reused
+   * for later blocks unless the stream reads ahead.
+   * {@link #getCompressedPos()} is then the position just after the block. Don't mix this with reading the
+   * stream, which would leave part of a block behind.
+   *
+   * @return the uncompressed length of the block, or -1 at the end of the
+   *         stream.
+   */
+  public int readBlock() throws IOException {
+    checkStream();
+    if (readAheadPool != null) {
+      if (!nextReadAheadBlock()) {
+        return -1;
+      }
+      // Read-ahead blocks are decompressed into arrays of their own.
+      blockBuffer = block;
+      blockOff = block.length;
+      return block.length;
+    }
+    if (eof) {
+      return -1;
+    }
+
+    int len = 0;
+    do {
+      if (blockBuffer == null || len == blockBuffer.length) {
+        int capacity = Math.max(uncompressedBlockSize, 2 * len);
+        blockBuffer = blockBuffer == null ? new byte[Math.max(capacity, 64 * 1024)] :
+            Arrays.copyOf(blockBuffer, capacity);
+      }
+      int n = decompress(blockBuffer, len, blockBuffer.length - len);
+      if (n < 0) {
+        // A truncated block ends the stream, as it does for read.
+        return len > 0 ? len : -1;
+      }
+      len += n;
+    } while (noUncompressedBytes < uncompressedBlockSize);
+    return len;
+  }
+
+  /**
+   * @return the buffer holding the block last returned by
+   *         {@link #readBlock()}.
+   */
+  public byte[] getBlock() {
+    return blockBuffer;
+  }
+
+  /**
+   * Read block headers, checksums and compressed data from the underlying
+   * stream and submit them for decompression, until
+   * <code>readAheadBlocks</code> blocks are queued or the stream ends.
+   */
+  private void fillReadAhead() throws IOException {
+    while (!readAheadEof && readAhead.size() < readAheadBlocks) {
+      int uncompressedLen;
+      byte[] compressed;
+      EnumMap<DChecksum,Integer> dsums = new EnumMap<DChecksum,Integer>(DChecksum.class);
+      EnumMap<CChecksum,Integer> csums = new EnumMap<CChecksum,Integer>(CChecksum.class);
+      try {
+        uncompressedLen = readInt(in, buf, 4);
+        noCompressedBytes += 4;
+        if (uncompressedLen == 0) {
+          // End of stream marker
+          readAheadEof = true;
+          break;
+        }
+        int compressedLen = readInt(in, buf, 4);
+        noCompressedBytes += 4;
+        if (compressedLen > LzoCodec.MAX_BLOCK_SIZE ||
+            uncompressedLen > LzoCodec.MAX_BLOCK_SIZE) {
+          throw new IOException("Block lengths " + compressedLen + "/" +
+            uncompressedLen + " exceed max block size " +
+            LzoCodec.MAX_BLOCK_SIZE + " (probably corrupt file)");
+        }
+        for (DChecksum chk : dflags) {
+          dsums.put(chk, readInt(in, buf, 4));
+          noCompressedBytes += 4;
+        }
+        // Blocks which did not compress are stored as is, without
+        // compressed checksums.
+        if (compressedLen < uncompressedLen) {
+          for (CChecksum chk : cflags) {
+            csums.put(chk, readInt(in, buf, 4));
+            noCompressedBytes += 4;
+          }
+        }
+        compressed = new byte[compressedLen];
+        readFully(in, compressed, 0, compressedLen);
+        noCompressedBytes += compressedLen;
+      } catch (EOFException e) {
+        // Truncated files end quietly, as they do without read-ahead.
+        readAheadEof = true;
+        break;
+      }
+      Future<byte[]> data = readAheadPool.submit(
+          new BlockDecoder(compressed, uncompressedLen, dsums, csums));
+      readAhead.add(new ReadAheadBlock(data, getInputPos()));
+    }
+  }
+
+  /**
+   * Read, verify and decompress the block which starts at <code>pos</code>
+   * in <code>in</code>, the file this stream read its header from, with
+   * positional reads. This stream's own position is unaffected, and several
+   * blocks may be read at once.
+   *
+   * @return the uncompressed block.
+   */
+  byte[] readBlock(PositionedReadable in, long pos) throws IOException {
+    byte[] lengths = new byte[8];
+    in.readFully(pos, lengths, 0, lengths.length);
+    ByteBuffer header = ByteBuffer.wrap(lengths);
+    int uncompressedLen = header.getInt();
+    int compressedLen = header.getInt();
+    if (uncompressedLen <= 0 || compressedLen <= 0 ||
+        compressedLen > LzoCodec.MAX_BLOCK_SIZE ||
+        uncompressedLen > LzoCodec.MAX_BLOCK_SIZE) {
+      throw new IOException("Invalid block lengths " + compressedLen + "/" +
+          uncompressedLen + " at " + pos + " (probably corrupt file or index)");
+    }
+
+    // Blocks which did not compress are stored as is, without compressed
+    // checksums.
+    boolean stored = compressedLen >= uncompressedLen;
+    int sumsLen = 4 * (dflags.size() + (stored ? 0 : cflags.size()));
+    byte[] b = new byte[sumsLen + compressedLen];
+    in.readFully(pos + lengths.length, b, 0, b.length);
+    ByteBuffer sums = ByteBuffer.wrap(b, 0, sumsLen);
+    EnumMap<DChecksum,Integer> dsums = new EnumMap<DChecksum,Integer>(DChecksum.class);
+    EnumMap<CChecksum,Integer> csums = new EnumMap<CChecksum,Integer>(CChecksum.class);
+    for (DChecksum chk : dflags) {
+      dsums.put(chk, sums.getInt());
+    }
+    if (!stored) {
+      for (CChecksum chk : cflags) {
+        csums.put(chk, sums.getInt());
+      }
+    }
+    byte[] compressed = Arrays.copyOfRange(b, sumsLen, b.length);
+    return new BlockDecoder(compressed, uncompressedLen, dsums, csums).call();
+  }
+
+  private LzoDecompressor newBlockDecompressor() {
+    LzoDecompressor ldecompressor = (LzoDecompressor)decompressor;
+    return new LzoDecompressor(ldecompressor.getStrategy(),
+        ldecompressor.getDirectBufferSize(), ldecompressor.isNative());
+  }
+
+  private static boolean checksumMatches(Class<? extends Checksum> clazz,
+      int expected, byte[] data) {
+    Checksum sum;
+    try {
+      sum = clazz.newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Internal error", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Internal error", e);
+    }
+    sum.update(data, 0, data.length);
+    return (int)sum.getValue() == expected;
+  }
+
+  /**
+   * Verifies and decompresses one block on a read-ahead worker thread, or
+   * for {@link #readBlock}, with a decompressor of its own.
+   */
+  private class BlockDecoder implements Callable<byte[]> {
+    private final byte[] compressed;
+    private final int uncompressedLen;
+    private final EnumMap<DChecksum,Integer> dsums;
+    private final EnumMap<CChecksum,Integer> csums;
+
+    BlockDecoder(byte[] compressed, int uncompressedLen,
+        EnumMap<DChecksum,Integer> dsums, EnumMap<CChecksum,Integer> csums) {
+      this.compressed = compressed;
+      this.uncompressedLen = uncompressedLen;
+      this.dsums = dsums;
+      this.csums = csums;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      byte[] uncompressed;
+      if (compressed.length >= uncompressedLen) {
+        uncompressed = compressed;
+      } else {
+        for (Map.Entry<CChecksum,Integer> chk : csums.entrySet()) {
+          if (!checksumMatches(chk.getKey().getChecksumClass(), chk.getValue(), compressed)) {
+            throw new IOException("Corrupted compressed block");
+          }
+        }
+        uncompressed = new byte[uncompressedLen];
+        LzoDecompressor ldecompressor = idleDecompressors.poll();
+        if (ldecompressor == null) {
+          ldecompressor = newBlockDecompressor();
+        }
+        try {
+          ldecompressor.reset();
+          ldecompressor.setInput(compressed, 0, compressed.length);
+          int n = ldecompressor.decompress(uncompressed, 0, uncompressedLen);
+          if (n != uncompressedLen || !ldecompressor.needsInput()) {
+            throw new IOException("Corrupted compressed block: expected " +
+                uncompressedLen + " uncompressed bytes");
+          }
+        } finally {
+          idleDecompressors.add(ldecompressor);
+        }
+      }
+      for (Map.Entry<DChecksum,Integer> chk : dsums.entrySet()) {
+        if (!checksumMatches(chk.getKey().getChecksumClass(), chk.getValue(), uncompressed)) {
+          throw new IOException("Corrupted uncompressed block");
+        }
+      }
+      return uncompressed;
+    }
+  }
+
+  /**
+   * A block queued for decompression, and the position of the underlying
+   * stream just after it.
+   */
+  private static class ReadAheadBlock {
+    private final Future<byte[]> data;
+    private final long endPos;
+
+    ReadAheadBlock(Future<byte[]> data, long endPos) {
+      this.data = data;
+      this.endPos = endPos;
+    }
+
+    byte[] get() throws IOException {
+      try {
+        return data.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted waiting for lzo block");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          LOG.warn("IOException decompressing lzo block; likely LZO corruption.", cause);
+          throw (IOException)cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  private static class ReadAheadThreadFactory implements ThreadFactory {
+    private static final AtomicInteger streams = new AtomicInteger();
+    private final int stream = streams.incrementAndGet();
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "LzopInputStream-" + stream + "-readahead-" +
+          threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+  /**
+   * Get the position of the underlying stream, as it would be without
+   * read-ahead: in read-ahead mode, just after the block currently being
+   * returned. This is not CompressionInputStream.getPos(), which older
+   * versions of Hadoop don't have.
+   */
+  public long getCompressedPos() throws IOException {
+    if (blockEndPos >= 0) {
+      return blockEndPos;
+    }
+    return getInputPos();
+  }
+
+  /**
+   * @return the position of the underlying stream, or, if it isn't seekable,
+   *         the number of bytes read from it.
+   */
+  private long getInputPos() throws IOException {
+    if (in instanceof Seekable) {
+      return ((Seekable) in).getPos();
+    }
+    return headerLength + noCompressedBytes;
+  }
+
   public long getCompressedBytesRead() {
     return noCompressedBytes;
   }
 
   @Override
   public void close() throws IOException {
+    if (readAheadPool != null) {
+      for (ReadAheadBlock pending : readAhead) {
+        pending.data.cancel(true);
+      }
+      readAhead.clear();
+      readAheadPool.shutdownNow();
+      idleDecompressors.clear();
+      block = null;
+      blockEndPos = -1;
+    }
+    blockBuffer = null;
     byte[] b = new byte[4096];
     while (!decompressor.finished()) {
       decompressor.decompress(b, 0, b.length);
     }
     super.close();
     try {
-      verifyChecksums();
+      if (readAheadPool == null) {
+        verifyChecksums();
+      }
     } catch (IOException e) {
       // LZO requires that each file ends with 4 trailing zeroes.  If we are here,
       // the file didn't.  It's not critical, though, so log and eat it in this case.
@@ -0,0 +1,346 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Splits an lzop stream into lines as {@link org.apache.hadoop.util.LineReader}
+ * does, ending them at a linefeed, a carriage-return, or both, but works
+ * directly on each decompressed block rather than on a copy of it. Line ends
+ * are found eight bytes at a time, and each line is copied once, into the
+ * {@link Text} it is read into. Lines may run across blocks.
+ * <p>
+ * {@link #getPos()} is the position in the file just after the block the
+ * last line ended in, which is where the stream's position would be after
+ * the line was read through a {@link org.apache.hadoop.util.LineReader}, so
+ * record readers split files at the same lines either way.
+ * <p>
+ * Given a record delimiter, records end at it instead. It is searched for
+ * with a Horspool skip table, and a delimiter which runs across blocks is
+ * followed from one block into the next with its KMP failure function.
+ * {@link #getPos()} is then the position just after the block the last
+ * record's delimiter started in, so that a record reader whose split ends
+ * at the block after a delimiter which runs across the boundary reads the
+ * record after it, which the reader of the next split, searching for the
+ * first delimiter which starts in its split, skips.
+ */
+public class LzopLineReader {
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+  private static final long LFS = 0x0a0a0a0a0a0a0a0aL;
+  private static final long CRS = 0x0d0d0d0d0d0d0d0dL;
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGHS = 0x8080808080808080L;
+
+  private final LzopInputStream in;
+  // The record delimiter, or null for line ends; how far the Horspool search
+  // may move on after each byte; and the KMP failure function, the longest
+  // border of each prefix of the delimiter.
+  private final byte[] delimiter;
+  private final int[] skip;
+  private final int[] border;
+  private byte[] block;
+  // The block as little-endian words, for the newline scan.
+  private ByteBuffer words;
+  private int blockLength = 0;
+  private int blockOff = 0;
+  // The position after the block being read, and the one reported.
+  private long blockPos;
+  private long pos;
+
+  /**
+   * @param in the stream to read, which must not have been read from yet,
+   *        other than its header.
+   */
+  public LzopLineReader(LzopInputStream in) throws IOException {
+    this(in, null);
+  }
+
+  /**
+   * @param in the stream to read, which must not have been read from yet,
+   *        other than its header.
+   * @param recordDelimiter the bytes records end with, or null to end them
+   *        at line ends.
+   */
+  public LzopLineReader(LzopInputStream in, byte[] recordDelimiter) throws IOException {
+    this.in = in;
+    this.blockPos = in.getCompressedPos();
+    this.pos = blockPos;
+    if (recordDelimiter == null || recordDelimiter.length == 0) {
+      delimiter = null;
+      skip = null;
+      border = null;
+      return;
+    }
+    delimiter = recordDelimiter.clone();
+    int last = delimiter.length - 1;
+    skip = new int[256];
+    Arrays.fill(skip, delimiter.length);
+    for (int i = 0; i < last; i++) {
+      skip[delimiter[i] & 0xff] = last - i;
+    }
+    border = new int[delimiter.length];
+    for (int i = 2, k = 0; i < delimiter.length; i++) {
+      while (k > 0 && delimiter[i - 1] != delimiter[k]) {
+        k = border[k];
+      }
+      if (delimiter[i - 1] == delimiter[k]) {
+        k++;
+      }
+      border[i] = k;
+    }
+  }
+
+  /**
+   * Read a line, without its line terminator, or a record, without its
+   * delimiter.
+   *
+   * @param str the line read.
+   * @return the number of bytes consumed, including the line terminator, or
+   *         0 at the end of the stream.
+   */
+  public int readLine(Text str) throws IOException {
+    str.clear();
+    return readLine(str, null);
+  }
+
+  /**
+   * Read a line, without its line terminator, into the end of a batch.
+   *
+   * @param batch the batch to add the line to.
+   * @param key the line's key.
+   * @return the number of bytes consumed, including the line terminator, or
+   *         0 at the end of the stream, when no line is added.
+   */
+  public int readLine(LzoLineBatch batch, long key) throws IOException {
+    int consumed = readLine(null, batch);
+    if (consumed > 0) {
+      batch.endLine(key);
+    }
+    return consumed;
+  }
+
+  /**
+   * Read a line into either <code>str</code> or <code>batch</code>.
+   */
+  private int readLine(Text str, LzoLineBatch batch) throws IOException {
+    if (delimiter != null) {
+      return readRecord(str, batch);
+    }
+    int consumed = 0;
+    while (blockOff < blockLength || nextBlock()) {
+      int eol = findLineEnd(blockOff, blockLength);
+      if (eol < 0) {
+        // The line runs on into the next block.
+        append(str, batch, block, blockOff, blockLength - blockOff);
+        consumed += blockLength - blockOff;
+        blockOff = blockLength;
+        continue;
+      }
+      append(str, batch, block, blockOff, eol - blockOff);
+      consumed += eol - blockOff + 1;
+      blockOff = eol + 1;
+      if (block[eol] == CR && (blockOff < blockLength || nextBlock()) &&
+          block[blockOff] == LF) {
+        blockOff++;
+        consumed++;
+      }
+      return consumed;
+    }
+    return consumed;
+  }
+
+  /**
+   * Read a record ending with the delimiter into either <code>str</code> or
+   * <code>batch</code>.
+   */
+  private int readRecord(Text str, LzoLineBatch batch) throws IOException {
+    int consumed = 0;
+    // The length of the start of the delimiter at the end of the blocks
+    // read, which isn't in the record unless the rest doesn't follow, and
+    // the position after the block it starts in.
+    int matched = 0;
+    long matchPos = blockPos;
+    while (blockOff < blockLength || nextBlock()) {
+      int i = blockOff;
+      while (matched > 0 && i < blockLength) {
+        if (block[i] == delimiter[matched]) {
+          i++;
+          if (++matched == delimiter.length) {
+            consumed += i - blockOff;
+            blockOff = i;
+            pos = matchPos;
+            return consumed;
+          }
+        } else {
+          // Keep the longest part which could still start the delimiter.
+          int shorter = border[matched];
+          append(str, batch, delimiter, 0, matched - shorter);
+          matched = shorter;
+          if (i - matched >= 0) {
+            matchPos = blockPos;
+          }
+        }
+      }
+      if (matched > 0) {
+        // The delimiter may go on into the next block.
+        consumed += i - blockOff;
+        blockOff = i;
+        continue;
+      }
+
+      int found = indexOfDelimiter(i, blockLength);
+      if (found >= 0) {
+        append(str, batch, block, i, found - i);
+        consumed += found + delimiter.length - blockOff;
+        blockOff = found + delimiter.length;
+        pos = blockPos;
+        return consumed;
+      }
+      matched = startOfDelimiterAtEnd(i, blockLength);
+      matchPos = blockPos;
+      append(str, batch, block, i, blockLength - matched - i);
+      consumed += blockLength - blockOff;
+      blockOff = blockLength;
+    }
+    // At the end of the stream, a partial delimiter is part of the record.
+    append(str, batch, delimiter, 0, matched);
+    pos = blockPos;
+    return consumed;
+  }
+
+  private static void append(Text str, LzoLineBatch batch, byte[] b, int off, int len) {
+    if (str != null) {
+      str.append(b, off, len);
+    } else {
+      batch.append(b, off, len);
+    }
+  }
+
+  /**
+   * @return the position in the file just after the block being read.
+   */
+  public long getPos() {
+    return pos;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Decompress the next block.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean nextBlock() throws IOException {
+    int n;
+    do {
+      n = in.readBlock();
+      if (n < 0) {
+        // Past the end of stream marker.
+        blockPos = in.getCompressedPos();
+        if (delimiter == null) {
+          pos = blockPos;
+        }
+        return false;
+      }
+    } while (n == 0);
+    if (in.getBlock() != block) {
+      block = in.getBlock();
+      words = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    blockLength = n;
+    blockOff = 0;
+    blockPos = in.getCompressedPos();
+    if (delimiter == null) {
+      pos = blockPos;
+    }
+    return true;
+  }
+
+  /**
+   * Find the first delimiter in the block, with the Horspool skip table.
+   *
+   * @return the position it starts at, or -1 if there is none.
+   */
+  private int indexOfDelimiter(int from, int to) {
+    int last = delimiter.length - 1;
+    for (int i = from; i + last < to; i += skip[block[i + last] & 0xff]) {
+      int k = last;
+      while (block[i + k] == delimiter[k]) {
+        if (k-- == 0) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the length of the longest start of the delimiter which ends the
+   *         block.
+   */
+  private int startOfDelimiterAtEnd(int from, int to) {
+    for (int m = Math.min(delimiter.length - 1, to - from); m > 0; m--) {
+      int k = 0;
+      while (k < m && block[to - m + k] == delimiter[k]) {
+        k++;
+      }
+      if (k == m) {
+        return m;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Find the first linefeed or carriage-return in the block, a word at a
+   * time. A byte of a word equal to c is zero in the word xor c, and
+   * (x - ONES) & ~x & HIGHS sets the high bit of the lowest zero byte of x;
+   * higher bytes may be set wrongly by the borrow, but not lower ones, so the
+   * lowest bit set is the first match.
+   *
+   * @return the position of the line end, or -1 if there is none.
+   */
+  private int findLineEnd(int from, int to) {
+    int i = from;
+    for (; i + 8 <= to; i += 8) {
+      long word = words.getLong(i);
+      long lf = word ^ LFS;
+      long cr = word ^ CRS;
+      long found = ((lf - ONES) & ~lf | (cr - ONES) & ~cr) & HIGHS;
+      if (found != 0) {
+        return i + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+    }
+    for (; i < to; i++) {
+      if (block[i] == LF || block[i] == CR) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
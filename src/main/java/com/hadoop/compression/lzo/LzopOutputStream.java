@@ -22,6 +22,17 @@ import java.io.DataOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Adler32;
 
 import org.apache.hadoop.io.DataOutputBuffer;
@@ -33,7 +44,25 @@ public class LzopOutputStream extends CompressorStream {
 
   final int MAX_INPUT_SIZE;
   protected DataOutputStream indexOut;
+  private LzoIndexWriter indexWriter;
   private CountingOutputStream cout;
+  // The index to append after the end of stream marker, if embedding one.
+  private DataOutputBuffer embeddedIndex;
+  private LzoIndexWriter embeddedIndexWriter;
+
+  // Parallel mode: blocks being compressed by the pool, oldest first, and
+  // the block currently being filled by write().
+  private ExecutorService compressPool = null;
+  private int maxPendingBlocks;
+  private final Queue<Future<CompressedBlock>> pendingBlocks =
+      new ArrayDeque<Future<CompressedBlock>>();
+  private final Queue<LzoCompressor> idleCompressors =
+      new ConcurrentLinkedQueue<LzoCompressor>();
+  private final Queue<byte[]> freeInputs = new ArrayDeque<byte[]>();
+  private final Queue<byte[]> freeOutputs = new ConcurrentLinkedQueue<byte[]>();
+  private byte[] input = null;
+  private int inputLen = 0;
+  private boolean parallelFinished = false;
 
   /**
    * Write an lzop-compatible header to the OutputStream provided.
@@ -43,7 +72,10 @@ public class LzopOutputStream extends CompressorStream {
     DataOutputBuffer dob = new DataOutputBuffer();
     try {
       dob.writeShort(LzopCodec.LZOP_VERSION);
-      dob.writeShort(LzoCompressor.LZO_LIBRARY_VERSION);
+      // Without liblzo2, record the liblzo version the pure-Java encoder matches.
+      dob.writeShort(LzoCompressor.isNativeLzoLoaded()
+          ? LzoCompressor.LZO_LIBRARY_VERSION
+          : LzoCompressor.JAVA_LZO_LIBRARY_VERSION);
       dob.writeShort(LzopCodec.LZOP_COMPAT_VERSION);
       switch (strategy) {
       case LZO1X_1:
@@ -87,15 +119,68 @@ public class LzopOutputStream extends CompressorStream {
       Compressor compressor, int bufferSize,
       LzoCompressor.CompressionStrategy strategy)
       throws IOException {
+    this(out, indexOut, compressor, bufferSize, strategy, 0);
+  }
+
+  /**
+   * Creates a stream which, if <code>compressThreads</code> is positive,
+   * compresses full blocks on that many worker threads, each with its own
+   * {@link LzoCompressor}, while the caller fills the next block. Blocks are
+   * written, and their offsets recorded in <code>indexOut</code>, in order.
+   */
+  public LzopOutputStream(OutputStream out, DataOutputStream indexOut,
+      Compressor compressor, int bufferSize,
+      LzoCompressor.CompressionStrategy strategy, int compressThreads)
+      throws IOException {
+    this(out, indexOut, compressor, bufferSize, strategy, compressThreads,
+        LzoIndex.DEFAULT_LZO_INDEX_VERSION);
+  }
+
+  /**
+   * Creates a stream as above, which writes <code>indexOut</code> in the
+   * given version of the index format; see {@link LzoIndexWriter}.
+   */
+  public LzopOutputStream(OutputStream out, DataOutputStream indexOut,
+      Compressor compressor, int bufferSize,
+      LzoCompressor.CompressionStrategy strategy, int compressThreads,
+      int indexVersion) throws IOException {
+    this(out, indexOut, compressor, bufferSize, strategy, compressThreads,
+        indexVersion, false);
+  }
+
+  /**
+   * Creates a stream as above which, if <code>embedIndex</code> is set, also
+   * appends a version 2 index of its blocks after the end of stream marker,
+   * followed by a footer through which {@link LzoIndex#readIndex} finds it.
+   * lzop stops reading at the end of stream marker, so the file can still be
+   * decompressed by it.
+   */
+  public LzopOutputStream(OutputStream out, DataOutputStream indexOut,
+      Compressor compressor, int bufferSize,
+      LzoCompressor.CompressionStrategy strategy, int compressThreads,
+      int indexVersion, boolean embedIndex) throws IOException {
     super(new CountingOutputStream(out), compressor, bufferSize);
 
     this.cout = (CountingOutputStream) this.out;
     this.indexOut = indexOut;
+    if (indexOut != null) {
+      this.indexWriter = new LzoIndexWriter(indexOut, indexVersion);
+    }
+    if (embedIndex) {
+      this.embeddedIndex = new DataOutputBuffer();
+      this.embeddedIndexWriter = new LzoIndexWriter(embeddedIndex, 2);
+    }
     int overhead = strategy.name().contains("LZO1") ?
       (bufferSize >> 4) + 64 + 3 : (bufferSize >> 3) + 128 + 3;
     MAX_INPUT_SIZE = bufferSize - overhead;
 
     writeLzopHeader(this.out, strategy);
+    if (compressThreads > 0) {
+      // Bound the blocks held in memory while keeping every worker busy.
+      maxPendingBlocks = 2 * compressThreads;
+      compressPool = Executors.newFixedThreadPool(compressThreads,
+          new CompressThreadFactory());
+    }
   }
 
   /**
@@ -104,11 +189,20 @@ public class LzopOutputStream extends CompressorStream {
   @Override
   public void close() throws IOException {
     if (!closed) {
-      finish();
-      out.write(new byte[]{ 0, 0, 0, 0 });
-      out.close();
-      if (indexOut != null) {
-        indexOut.close();
+      try {
+        finish();
+        out.write(new byte[]{ 0, 0, 0, 0 });
+        if (embeddedIndexWriter != null) {
+          writeEmbeddedIndex();
+        }
+        out.close();
+        if (indexWriter != null) {
+          indexWriter.close();
+        }
+      } finally {
+        if (compressPool != null) {
+          compressPool.shutdownNow();
+        }
       }
       closed = true;
       //return the compressor to the pool for later reuse;
@@ -117,6 +211,32 @@ public class LzopOutputStream extends CompressorStream {
     }
   }
 
+  /**
+   * Append the embedded index and its footer; see {@link LzoIndex}.
+   */
+  private void writeEmbeddedIndex() throws IOException {
+    long indexStart = cout.bytesWritten;
+    embeddedIndexWriter.close();
+    out.write(embeddedIndex.getData(), 0, embeddedIndex.getLength());
+    DataOutputBuffer footer = new DataOutputBuffer(LzoIndex.EMBEDDED_FOOTER_SIZE);
+    footer.writeLong(indexStart);
+    footer.writeInt(embeddedIndex.getLength());
+    footer.write(LzoIndex.EMBEDDED_FOOTER_MAGIC);
+    out.write(footer.getData(), 0, footer.getLength());
+  }
+
+  /**
+   * Record a new block in the index file and the embedded index, if any.
+   */
+  private void indexBlock(int uncompressedSize) throws IOException {
+    if (indexWriter != null) {
+      indexWriter.writeBlock(cout.bytesWritten, uncompressedSize);
+    }
+    if (embeddedIndexWriter != null) {
+      embeddedIndexWriter.writeBlock(cout.bytesWritten, uncompressedSize);
+    }
+  }
+
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
     // TODO: LzopOutputStream used to inherit from BlockCompressorStream
@@ -126,6 +246,11 @@ public class LzopOutputStream extends CompressorStream {
     // as it could be, now that it's LZOP-specific.
     // See: http://github.com/toddlipcon/hadoop-lzo/commit/5fe6dd4736a73fa33b86656ce8aeb011e7f2046c
 
+    if (compressPool != null) {
+      parallelWrite(b, off, len);
+      return;
+    }
+
     // Sanity checks
     if (compressor.finished()) {
       throw new IOException("write beyond end of stream");
@@ -176,6 +301,18 @@ public class LzopOutputStream extends CompressorStream {
 
   @Override
   public void finish() throws IOException {
+    if (compressPool != null) {
+      if (!parallelFinished) {
+        if (inputLen > 0) {
+          submitBlock();
+        }
+        while (!pendingBlocks.isEmpty()) {
+          writeBlock(pendingBlocks.poll());
+        }
+        parallelFinished = true;
+      }
+      return;
+    }
     if (!compressor.finished()) {
       compressor.finish();
       while (!compressor.finished()) {
@@ -188,9 +325,7 @@ public class LzopOutputStream extends CompressorStream {
     int len = compressor.compress(buffer, 0, buffer.length);
     if (len > 0) {
       // new lzo block. write current position to index file.
-      if (indexOut != null) {
-        indexOut.writeLong(cout.bytesWritten);
-      }
+      indexBlock((int)compressor.getBytesRead());
 
       rawWriteInt((int)compressor.getBytesRead());
 
@@ -211,6 +346,175 @@ public class LzopOutputStream extends CompressorStream {
     }
   }
 
+  @Override
+  public void resetState() throws IOException {
+    parallelFinished = false;
+    super.resetState();
+  }
+
+  /**
+   * Copy data into MAX_INPUT_SIZE blocks, handing each one to the pool as it
+   * fills up.
+   */
+  private void parallelWrite(byte[] b, int off, int len) throws IOException {
+    if (parallelFinished) {
+      throw new IOException("write beyond end of stream");
+    }
+    if (b == null) {
+      throw new NullPointerException();
+    } else if ((off < 0) || (off > b.length) || (len < 0) ||
+               ((off + len) > b.length)) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    while (len > 0) {
+      if (input == null) {
+        input = freeInputs.poll();
+        if (input == null) {
+          input = new byte[MAX_INPUT_SIZE];
+        }
+      }
+      int n = Math.min(len, MAX_INPUT_SIZE - inputLen);
+      System.arraycopy(b, off, input, inputLen, n);
+      inputLen += n;
+      off += n;
+      len -= n;
+      if (inputLen == MAX_INPUT_SIZE) {
+        submitBlock();
+      }
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    pendingBlocks.add(compressPool.submit(new BlockCompressor(input, inputLen)));
+    input = null;
+    inputLen = 0;
+    while (pendingBlocks.size() > maxPendingBlocks) {
+      writeBlock(pendingBlocks.poll());
+    }
+  }
+
+  /**
+   * Wait for the oldest block to be compressed and write it out, exactly as
+   * {@link #compress()} would have.
+   */
+  private void writeBlock(Future<CompressedBlock> pending) throws IOException {
+    CompressedBlock block;
+    try {
+      block = pending.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted waiting for lzo block");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IOException(cause);
+    }
+
+    // new lzo block. write current position to index file.
+    indexBlock(block.uncompressedLen);
+    rawWriteInt(block.uncompressedLen);
+    if (block.stored) {
+      rawWriteInt(block.uncompressedLen);
+      out.write(block.input, 0, block.uncompressedLen);
+    } else {
+      rawWriteInt(block.compressedLen);
+      out.write(block.output, 0, block.compressedLen);
+    }
+    freeInputs.add(block.input);
+    freeOutputs.add(block.output);
+  }
+
+  private LzoCompressor newBlockCompressor() {
+    // Sized for this stream's blocks, so that each is compressed in one go.
+    LzoCompressor lcompressor = (LzoCompressor)compressor;
+    return new LzoCompressor(lcompressor.getStrategy(),
+        lcompressor.getCompressionLevel(), buffer.length,
+        lcompressor.isNative());
+  }
+
+  /**
+   * Compresses one block on a worker thread, with a compressor of its own.
+   */
+  private class BlockCompressor implements Callable<CompressedBlock> {
+    private final byte[] input;
+    private final int len;
+
+    BlockCompressor(byte[] input, int len) {
+      this.input = input;
+      this.len = len;
+    }
+
+    @Override
+    public CompressedBlock call() throws IOException {
+      byte[] output = freeOutputs.poll();
+      if (output == null) {
+        output = new byte[buffer.length];
+      }
+      LzoCompressor lcompressor = idleCompressors.poll();
+      if (lcompressor == null) {
+        lcompressor = newBlockCompressor();
+      }
+      try {
+        lcompressor.reset();
+        lcompressor.setInput(input, 0, len);
+        lcompressor.finish();
+        int compressedLen = 0;
+        while (!lcompressor.finished()) {
+          compressedLen += lcompressor.compress(output, compressedLen,
+              output.length - compressedLen);
+          if (compressedLen == output.length && !lcompressor.finished()) {
+            throw new IOException("Compressed block exceeds buffer size " +
+                output.length);
+          }
+        }
+        return new CompressedBlock(input, len, output, compressedLen);
+      } finally {
+        idleCompressors.add(lcompressor);
+      }
+    }
+  }
+
+  /**
+   * A compressed block. As in {@link #compress()}, blocks which do not get
+   * smaller are stored uncompressed.
+   */
+  private static class CompressedBlock {
+    private final byte[] input;
+    private final int uncompressedLen;
+    private final byte[] output;
+    private final int compressedLen;
+    private final boolean stored;
+
+    CompressedBlock(byte[] input, int uncompressedLen, byte[] output,
+        int compressedLen) {
+      this.input = input;
+      this.uncompressedLen = uncompressedLen;
+      this.output = output;
+      this.compressedLen = compressedLen;
+      this.stored = uncompressedLen <= compressedLen;
+    }
+  }
+
+  private static class CompressThreadFactory implements ThreadFactory {
+    private static final AtomicInteger streams = new AtomicInteger();
+    private final int stream = streams.incrementAndGet();
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "LzopOutputStream-" + stream + "-compress-" +
+          threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
   private void rawWriteInt(int v) throws IOException {
     out.write((v >>> 24) & 0xFF);
     out.write((v >>> 16) & 0xFF);
@@ -0,0 +1,296 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * Random access to the uncompressed data of an indexed lzo file. Positions
+ * are uncompressed offsets; a read finds the block holding its position
+ * through the {@link LzoIndex}, reads just that block from the file with
+ * positional reads, and decompresses it. The most recently used blocks are
+ * kept decompressed, so that nearby reads don't decompress a block again.
+ * <p>
+ * A version 2 index records the uncompressed offset of each block. For a
+ * version 1 index they are found when the stream is opened, by reading the
+ * uncompressed size at the start of every block.
+ */
+public class LzopSeekableInputStream extends InputStream
+    implements Seekable, PositionedReadable {
+  private static final Log LOG = LogFactory.getLog(LzopSeekableInputStream.class);
+
+  private final FSDataInputStream in;
+  private final LzoIndex index;
+  // Parses the header, and verifies and decompresses blocks.
+  private final LzopInputStream blockReader;
+  // Uncompressed offset of each block and of the end of the file, when the
+  // index doesn't record them.
+  private final long[] uncompressedOffsets;
+  private final long length;
+  private final Map<Integer, byte[]> cache;
+  private final byte[] oneByte = new byte[1];
+  private long pos = 0;
+  private boolean closed = false;
+
+  /**
+   * Open the lzo file, and its index without reading it.
+   */
+  public static LzopSeekableInputStream open(FileSystem fs, Path lzoFile)
+      throws IOException {
+    FSDataInputStream in = fs.open(lzoFile);
+    LzoIndex index = null;
+    boolean opened = false;
+    try {
+      index = LzoIndex.openIndex(fs, lzoFile);
+      LzopSeekableInputStream stream =
+          new LzopSeekableInputStream(in, index, fs.getConf());
+      opened = true;
+      return stream;
+    } finally {
+      if (!opened) {
+        in.close();
+        if (index != null) {
+          index.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * @param in the lzo file, which this stream now owns.
+   * @param index the index of the lzo file, which this stream now owns.
+   * @param conf the codec settings, and the number of decompressed blocks to
+   *        keep, {@link LzopCodec#LZOP_SEEKABLE_CACHE_BLOCKS_KEY}.
+   */
+  public LzopSeekableInputStream(FSDataInputStream in, LzoIndex index,
+      Configuration conf) throws IOException {
+    this.in = in;
+    this.index = index;
+
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    in.seek(0);
+    blockReader = new LzopInputStream(in, codec.createDecompressor(),
+        conf.getInt(LzoCodec.LZO_BUFFER_SIZE_KEY, LzoCodec.DEFAULT_LZO_BUFFER_SIZE));
+
+    int blocks = index.getNumberOfBlocks();
+    if (blocks == 0) {
+      // An empty index either covers an empty file or is a missing one.
+      byte[] b = new byte[4];
+      in.readFully(in.getPos(), b, 0, b.length);
+      if (b[0] != 0 || b[1] != 0 || b[2] != 0 || b[3] != 0) {
+        throw new IOException("lzo file is not indexed");
+      }
+    }
+    if (index.hasUncompressedOffsets()) {
+      uncompressedOffsets = null;
+      length = index.getUncompressedOffset(blocks);
+    } else {
+      uncompressedOffsets = new long[blocks + 1];
+      for (int i = 0; i < blocks; i++) {
+        uncompressedOffsets[i + 1] = uncompressedOffsets[i] + index.getUncompressedSize(i, in);
+      }
+      length = uncompressedOffsets[blocks];
+    }
+
+    final int cacheBlocks = Math.max(1, conf.getInt(
+        LzopCodec.LZOP_SEEKABLE_CACHE_BLOCKS_KEY,
+        LzopCodec.DEFAULT_LZOP_SEEKABLE_CACHE_BLOCKS));
+    cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+        return size() > cacheBlocks;
+      }
+    };
+  }
+
+  /**
+   * @return the uncompressed length of the file.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  private long uncompressedOffset(int block) {
+    return uncompressedOffsets != null ? uncompressedOffsets[block] :
+        index.getUncompressedOffset(block);
+  }
+
+  /**
+   * @return the block holding the uncompressed position, which must be
+   *         within the file.
+   */
+  private int findBlock(long position) {
+    int low = 0;
+    int high = index.getNumberOfBlocks() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (uncompressedOffset(mid) <= position) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  private byte[] getBlock(int block) throws IOException {
+    byte[] data = cache.get(block);
+    if (data == null) {
+      data = blockReader.readBlock(in, index.getPosition(block));
+      if (data.length != uncompressedOffset(block + 1) - uncompressedOffset(block)) {
+        throw new IOException("Block " + block + " is " + data.length +
+            " bytes, but the index expects " +
+            (uncompressedOffset(block + 1) - uncompressedOffset(block)));
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Decompressed block " + block + " at " + index.getPosition(block));
+      }
+      cache.put(block, data);
+    }
+    return data;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  @Override
+  public synchronized int read(long position, byte[] b, int off, int len)
+      throws IOException {
+    checkOpen();
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (position < 0) {
+      throw new EOFException("Cannot read from negative position " + position);
+    }
+    if (position >= length) {
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+    int block = findBlock(position);
+    byte[] data = getBlock(block);
+    int blockOff = (int)(position - uncompressedOffset(block));
+    int n = Math.min(len, data.length - blockOff);
+    System.arraycopy(data, blockOff, b, off, n);
+    return n;
+  }
+
+  @Override
+  public synchronized void readFully(long position, byte[] b, int off, int len)
+      throws IOException {
+    while (len > 0) {
+      int n = read(position, b, off, len);
+      if (n < 0) {
+        throw new EOFException("End of file reached before reading fully");
+      }
+      position += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void readFully(long position, byte[] b) throws IOException {
+    readFully(position, b, 0, b.length);
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    int n = read(pos, b, off, len);
+    if (n > 0) {
+      pos += n;
+    }
+    return n;
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    int n = read(oneByte, 0, 1);
+    return n <= 0 ? -1 : oneByte[0] & 0xFF;
+  }
+
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    checkOpen();
+    long skipped = Math.max(0, Math.min(n, length - pos));
+    pos += skipped;
+    return skipped;
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    checkOpen();
+    return (int)Math.min(Integer.MAX_VALUE, length - pos);
+  }
+
+  /**
+   * Move to an uncompressed position. Nothing is read until the next read.
+   */
+  @Override
+  public synchronized void seek(long newPos) throws IOException {
+    checkOpen();
+    if (newPos < 0 || newPos > length) {
+      throw new EOFException("Cannot seek to " + newPos +
+          ", outside the uncompressed length " + length);
+    }
+    pos = newPos;
+  }
+
+  @Override
+  public synchronized long getPos() throws IOException {
+    return pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      cache.clear();
+      try {
+        index.close();
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
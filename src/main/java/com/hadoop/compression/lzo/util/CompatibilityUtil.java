@@ -22,6 +22,7 @@ public class CompatibilityUtil {
   private static final Constructor<?> TASK_ATTEMPT_CONTEXT_CONSTRUCTOR;
 
   private static final Method GET_CONFIGURATION;
+  private static final Method GET_TASK_ATTEMPT_ID;
   private static final Method GET_COUNTER_ENUM_METHOD;
   private static final Method INCREMENT_COUNTER_METHOD;
   private static final Method GET_COUNTER_VALUE_METHOD;
@@ -48,6 +49,7 @@ public class CompatibilityUtil {
                                              TaskAttemptID.class);
 
       GET_CONFIGURATION = getMethod(".JobContext", "getConfiguration");
+      GET_TASK_ATTEMPT_ID = getMethod(".TaskAttemptContext", "getTaskAttemptID");
       INCREMENT_COUNTER_METHOD = getMethod(".Counter", "increment", Long.TYPE);
       GET_COUNTER_VALUE_METHOD = getMethod(".Counter", "getValue");
 
@@ -128,6 +130,14 @@ public class CompatibilityUtil {
     return (Configuration)invoke(GET_CONFIGURATION, context);
   }
 
+  /**
+   * Invokes getTaskAttemptID() on TaskAttemptContext. Works with both
+   * hadoop 1 and 2.
+   */
+  public static TaskAttemptID getTaskAttemptID(TaskAttemptContext context) {
+    return (TaskAttemptID)invoke(GET_TASK_ATTEMPT_ID, context);
+  }
+
   /**
    * Invoke getCounter() on TaskInputOutputContext. Works with both
    * Hadoop 1 and 2.
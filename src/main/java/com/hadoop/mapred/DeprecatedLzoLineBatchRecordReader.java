@@ -0,0 +1,70 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapred;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.RecordReader;
+
+import com.hadoop.compression.lzo.LzoLineBatch;
+
+/**
+ * Reads the lines of an lzo compressed text file a batch at a time, with
+ * {@link DeprecatedLzoLineRecordReader#nextBatch(LzoLineBatch)}. The key is
+ * the key of the batch's first line.
+ */
+@SuppressWarnings("deprecation")
+public class DeprecatedLzoLineBatchRecordReader implements RecordReader<LongWritable, LzoLineBatch> {
+  private final DeprecatedLzoLineRecordReader reader;
+
+  DeprecatedLzoLineBatchRecordReader(Configuration conf, FileSplit split) throws IOException {
+    reader = new DeprecatedLzoLineRecordReader(conf, split);
+  }
+
+  public LongWritable createKey() {
+    return new LongWritable();
+  }
+
+  public LzoLineBatch createValue() {
+    return new LzoLineBatch();
+  }
+
+  public boolean next(LongWritable key, LzoLineBatch value) throws IOException {
+    if (!reader.nextBatch(value)) {
+      return false;
+    }
+    key.set(value.getKey(0));
+    return true;
+  }
+
+  public float getProgress() throws IOException {
+    return reader.getProgress();
+  }
+
+  public synchronized long getPos() throws IOException {
+    return reader.getPos();
+  }
+
+  public synchronized void close() throws IOException {
+    reader.close();
+  }
+}
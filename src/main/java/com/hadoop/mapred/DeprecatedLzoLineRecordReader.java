@@ -28,22 +28,34 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.util.LineReader;
 
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.LzopHeader;
+import com.hadoop.compression.lzo.LzoLineBatch;
+import com.hadoop.compression.lzo.LzopInputStream;
+import com.hadoop.compression.lzo.LzopLineReader;
+
 @SuppressWarnings("deprecation")
 public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable, Text> {
   private CompressionCodecFactory codecFactory = null;
   private long start;
   private long pos;
   private final long end;
+  // Lzop streams are split into lines over their blocks, and others by a LineReader.
+  private final LzopLineReader lzopIn;
   private final LineReader in;
   private final FSDataInputStream fileIn;
+  // Lines read by a LineReader for a batch.
+  private final Text batchValue = new Text();
 
   DeprecatedLzoLineRecordReader(Configuration conf, FileSplit split) throws IOException {
     start = split.getStart();
-    end = start + split.getLength();
+    end = start + DeprecatedLzoFileSplit.getCompressedLength(split);
     final Path file = split.getPath();
 
     FileSystem fs = file.getFileSystem(conf);
@@ -55,14 +67,32 @@ public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable,
 
     // Open the file and seek to the next split.
     fileIn = fs.open(file);
-    // Create input stream and read the file header.
-    in = new LineReader(codec.createInputStream(fileIn), conf);
-    if (start != 0) {
+    CompressionInputStream compressedIn;
+    LzopHeader header = split instanceof DeprecatedLzoFileSplit ?
+        ((DeprecatedLzoFileSplit) split).getHeader() : null;
+    if (start != 0 && header != null && codec instanceof LzopCodec) {
+      // The split carries the file header, so start reading at the split.
       fileIn.seek(start);
-
+      compressedIn = ((LzopCodec) codec).createInputStream(fileIn, header);
+    } else {
+      // Create input stream and read the file header.
+      compressedIn = codec.createInputStream(fileIn);
+      if (start != 0) {
+        fileIn.seek(start);
+      }
+    }
+    byte[] recordDelimiter = LzoInputFormatCommon.getRecordDelimiter(conf);
+    if (compressedIn instanceof LzopInputStream) {
+      lzopIn = new LzopLineReader((LzopInputStream) compressedIn, recordDelimiter);
+      in = null;
+    } else {
+      lzopIn = null;
+      in = new LineReader(compressedIn, conf, recordDelimiter);
+    }
+    if (start != 0) {
       // Read and ignore the first line.
-      in.readLine(new Text());
-      start = fileIn.getPos();
+      readLine(new Text());
+      start = getStreamPos();
     }
 
     pos = start;
@@ -82,11 +112,11 @@ public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable,
     while (pos <= end) {
       key.set(pos);
 
-      int newSize = in.readLine(value);
+      int newSize = readLine(value);
       if (newSize == 0) {
         return false;
       }
-      pos = fileIn.getPos();
+      pos = getStreamPos();
       return true;
     }
     return false;
@@ -105,8 +135,55 @@ public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable,
   }
 
   public synchronized void close() throws IOException {
-    if (in != null) {
+    if (lzopIn != null) {
+      lzopIn.close();
+    } else if (in != null) {
       in.close();
     }
   }
+
+  /**
+   * Read the next lines of the split into a batch, rather than one at a
+   * time: the lines up to and including the first which ends in a later
+   * lzo block than the first line of the batch. Keys are those the lines
+   * would be returned with one at a time.
+   *
+   * @return false if there are no more lines in the split.
+   */
+  public boolean nextBatch(LzoLineBatch batch) throws IOException {
+    batch.clear();
+    long firstPos = -1;
+    while (pos <= end) {
+      long key = pos;
+      int newSize;
+      if (lzopIn != null) {
+        newSize = lzopIn.readLine(batch, key);
+      } else {
+        newSize = in.readLine(batchValue);
+        if (newSize > 0) {
+          batch.add(key, batchValue.getBytes(), 0, batchValue.getLength());
+        }
+      }
+      if (newSize == 0) {
+        break;
+      }
+      pos = getStreamPos();
+      if (firstPos < 0) {
+        firstPos = pos;
+      } else if (pos != firstPos) {
+        break;
+      }
+    }
+    return batch.size() > 0;
+  }
+
+  private int readLine(Text str) throws IOException {
+    return lzopIn != null ? lzopIn.readLine(str) : in.readLine(str);
+  }
+
+  private long getStreamPos() throws IOException {
+    // LzopLineReader's positions allow for lzop read-ahead; other codecs'
+    // streams read from fileIn as they need to.
+    return lzopIn != null ? lzopIn.getPos() : fileIn.getPos();
+  }
 }
\ No newline at end of file
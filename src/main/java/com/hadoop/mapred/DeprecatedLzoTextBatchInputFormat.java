@@ -0,0 +1,65 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapred;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobConfigurable;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.LzoLineBatch;
+
+/**
+ * The old API version of {@link com.hadoop.mapreduce.LzoTextBatchInputFormat},
+ * which returns the lines of lzop compressed text files in batches. Files
+ * are split as {@link DeprecatedLzoTextInputFormat} splits them.
+ */
+@SuppressWarnings("deprecation")
+public class DeprecatedLzoTextBatchInputFormat extends FileInputFormat<LongWritable, LzoLineBatch>
+    implements JobConfigurable {
+  private final DeprecatedLzoTextInputFormat lineFormat = new DeprecatedLzoTextInputFormat();
+
+  @Override
+  public void configure(JobConf conf) {
+    lineFormat.configure(conf);
+  }
+
+  @Override
+  public InputSplit[] getSplits(JobConf conf, int numSplits) throws IOException {
+    return lineFormat.getSplits(conf, numSplits);
+  }
+
+  @Override
+  public RecordReader<LongWritable, LzoLineBatch> getRecordReader(InputSplit split,
+      JobConf conf, Reporter reporter) throws IOException {
+    FileSplit fileSplit = (FileSplit) split;
+    if (!LzoInputFormatCommon.isLzoFile(fileSplit.getPath().toString())) {
+      throw new IOException("Not an lzo file: " + fileSplit.getPath());
+    }
+    reporter.setStatus(split.toString());
+    return new DeprecatedLzoLineBatchRecordReader(conf, fileSplit);
+  }
+}
@@ -22,10 +22,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -40,6 +43,7 @@ import org.apache.hadoop.mapred.TextInputFormat;
 
 import com.hadoop.compression.lzo.LzoIndex;
 import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.LzopHeader;
 
 /**
  * This class conforms to the old (org.apache.hadoop.mapred.*) hadoop API style 
@@ -63,13 +67,22 @@ import com.hadoop.compression.lzo.LzoInputFormatCommon;
 
 @SuppressWarnings("deprecation")
 public class DeprecatedLzoTextInputFormat extends TextInputFormat {
-  private final Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+  private Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+  // The lzo files from listStatus, so getSplits needn't ask for them again.
+  private final Map<Path, FileStatus> statuses = new HashMap<Path, FileStatus>();
+  // Block locations of the lzo files, fetched as getSplits needs them.
+  private final Map<Path, BlockLocation[]> locations = new HashMap<Path, BlockLocation[]>();
+  // Headers of the lzo files, read as getSplits needs them.
+  private final Map<Path, LzopHeader> headers = new HashMap<Path, LzopHeader>();
 
   @Override
   protected FileStatus[] listStatus(JobConf conf) throws IOException {
+    // Forget the indexes of an earlier listing which getSplits didn't follow.
+    closeIndexes();
     List<FileStatus> files = new ArrayList<FileStatus>(Arrays.asList(super.listStatus(conf)));
 
     boolean ignoreNonLzo = LzoInputFormatCommon.getIgnoreNonLzoProperty(conf);
+    List<FileStatus> lzoFiles = new ArrayList<FileStatus>();
 
     Iterator<FileStatus> it = files.iterator();
     while (it.hasNext()) {
@@ -85,12 +98,13 @@ public class DeprecatedLzoTextInputFormat extends TextInputFormat {
           it.remove();
         }
       } else {
-        FileSystem fs = file.getFileSystem(conf);
-        LzoIndex index = LzoIndex.readIndex(fs, file);
-        indexes.put(file, index);
+        lzoFiles.add(fileStatus);
+        statuses.put(file, fileStatus);
       }
     }
 
+    indexes = LzoInputFormatCommon.getIndexes(lzoFiles, conf);
+
     return files.toArray(new FileStatus[] {});
   }
 
@@ -107,44 +121,160 @@ public class DeprecatedLzoTextInputFormat extends TextInputFormat {
 
   @Override
   public InputSplit[] getSplits(JobConf conf, int numSplits) throws IOException {
-    FileSplit[] splits = (FileSplit[])super.getSplits(conf, numSplits);
-    // Find new starts/ends of the filesplit that align with the LZO blocks.
+    try {
+      FileSplit[] splits = (FileSplit[])super.getSplits(conf, numSplits);
+      // Find new starts/ends of the filesplit that align with the LZO blocks.
 
-    List<FileSplit> result = new ArrayList<FileSplit>();
+      List<FileSplit> result = new ArrayList<FileSplit>();
+      boolean byUncompressedSize = LzoInputFormatCommon.getSplitByUncompressedSizeProperty(conf);
+      boolean alignNearest = LzoInputFormatCommon.getAlignNearestProperty(conf);
+      boolean splitHeader = LzoInputFormatCommon.getSplitHeaderProperty(conf);
+      Set<Path> splitByUncompressedSize = new HashSet<Path>();
+      long goalSize = 0;
+      if (byUncompressedSize) {
+        // As FileInputFormat, aim for numSplits splits of the whole input.
+        for (FileSplit fileSplit : splits) {
+          goalSize += fileSplit.getLength();
+        }
+        goalSize /= Math.max(1, numSplits);
+      }
 
-    for (FileSplit fileSplit: splits) {
-      Path file = fileSplit.getPath();
-      FileSystem fs = file.getFileSystem(conf);
+      for (FileSplit fileSplit: splits) {
+        Path file = fileSplit.getPath();
 
-      if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
-        // non-LZO file, keep the input split as is.
-        result.add(fileSplit);
-        continue;
-      }
+        if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
+          // non-LZO file, keep the input split as is.
+          result.add(fileSplit);
+          continue;
+        }
 
-      // LZO file, try to split if the .index file was found
-      LzoIndex index = indexes.get(file);
-      if (index == null) {
-        throw new IOException("Index not found for " + file);
-      }
-      if (index.isEmpty()) {
-        // Empty index, keep it as is.
-        result.add(fileSplit);
-        continue;
+        // LZO file, try to split if the .index file was found
+        LzoIndex index = indexes.get(file);
+        if (index == null) {
+          throw new IOException("Index not found for " + file);
+        }
+        if (index.isEmpty()) {
+          // Empty index, keep it as is.
+          result.add(fileSplit);
+          continue;
+        }
+
+        if (byUncompressedSize) {
+          // Replace the file's splits with ones planned from its blocks.
+          if (splitByUncompressedSize.add(file)) {
+            result.addAll(getUncompressedSizeSplits(conf, file, index, goalSize));
+          }
+          continue;
+        }
+
+        long start = fileSplit.getStart();
+        long end = start + fileSplit.getLength();
+
+        long length = getLength(file, conf);
+        long lzoStart;
+        long lzoEnd;
+        if (alignNearest) {
+          lzoStart = index.alignSliceBoundaryToNearest(start, length);
+          lzoEnd = index.alignSliceBoundaryToNearest(end, length);
+          if (lzoStart >= lzoEnd) {
+            continue;
+          }
+        } else {
+          lzoStart = index.alignSliceStartToIndex(start, end);
+          lzoEnd = index.alignSliceEndToIndex(end, length);
+        }
+
+        if (lzoStart != LzoIndex.NOT_FOUND  && lzoEnd != LzoIndex.NOT_FOUND) {
+          // The hosts of the original split needn't hold much of the aligned one.
+          String[] hosts = lzoStart == 0 && lzoEnd == length ? fileSplit.getLocations() :
+              getHosts(file, lzoStart, lzoEnd - lzoStart, conf);
+          if (splitHeader && lzoStart != 0) {
+            result.add(new DeprecatedLzoFileSplit(file, lzoStart, lzoEnd - lzoStart, hosts, -1,
+                getHeader(file, conf), index.getPositions(lzoStart, lzoEnd)));
+          } else {
+            result.add(new FileSplit(file, lzoStart, lzoEnd - lzoStart, hosts));
+          }
+        }
       }
 
-      long start = fileSplit.getStart();
-      long end = start + fileSplit.getLength();
+      return result.toArray(new FileSplit[result.size()]);
+    } finally {
+      closeIndexes();
+    }
+  }
 
-      long lzoStart = index.alignSliceStartToIndex(start, end);
-      long lzoEnd = index.alignSliceEndToIndex(end, fs.getFileStatus(file).getLen());
+  /**
+   * Split an indexed lzo file by uncompressed size; see
+   * {@link LzoInputFormatCommon#getUncompressedSizeSplits}.
+   */
+  private List<FileSplit> getUncompressedSizeSplits(JobConf conf, Path file, LzoIndex index,
+      long goalSize) throws IOException {
+    FileStatus status = getFileStatus(file, conf);
+    long minSize = conf.getLong("mapred.min.split.size", 1);
+    long splitSize = computeSplitSize(goalSize, minSize, status.getBlockSize());
 
-      if (lzoStart != LzoIndex.NOT_FOUND  && lzoEnd != LzoIndex.NOT_FOUND) {
-        result.add(new FileSplit(file, lzoStart, lzoEnd - lzoStart, fileSplit.getLocations()));
+    boolean splitHeader = LzoInputFormatCommon.getSplitHeaderProperty(conf);
+    List<FileSplit> splits = new ArrayList<FileSplit>();
+    for (LzoInputFormatCommon.UncompressedSizeSplit range :
+        LzoInputFormatCommon.getUncompressedSizeSplits(file.getFileSystem(conf), status, index,
+            splitSize)) {
+      long start = range.getStart();
+      long end = range.getEnd();
+      String[] hosts = getHosts(file, start, end - start, conf);
+      if (splitHeader && start != 0) {
+        splits.add(new DeprecatedLzoFileSplit(file, start, end - start, hosts,
+            range.getUncompressedLength(), getHeader(file, conf), index.getPositions(start, end)));
+      } else {
+        splits.add(new DeprecatedLzoFileSplit(file, start, end - start, hosts,
+            range.getUncompressedLength()));
       }
     }
+    return splits;
+  }
+
+  /**
+   * Close the indexes opened by listStatus, once the splits are planned.
+   */
+  private void closeIndexes() throws IOException {
+    LzoInputFormatCommon.closeIndexes(indexes);
+    statuses.clear();
+    locations.clear();
+    headers.clear();
+  }
+
+  /**
+   * @return the hosts holding the most of a range of an lzo file.
+   */
+  private String[] getHosts(Path file, long start, long length, JobConf conf)
+      throws IOException {
+    BlockLocation[] blocks = locations.get(file);
+    if (blocks == null) {
+      FileStatus status = getFileStatus(file, conf);
+      blocks = file.getFileSystem(conf).getFileBlockLocations(status, 0, status.getLen());
+      locations.put(file, blocks);
+    }
+    return LzoInputFormatCommon.getSplitHosts(blocks, start, length);
+  }
+
+  /**
+   * @return the lzop header of an lzo file, read once for all its splits.
+   */
+  private LzopHeader getHeader(Path file, JobConf conf) throws IOException {
+    LzopHeader header = headers.get(file);
+    if (header == null) {
+      header = LzoInputFormatCommon.readHeader(file.getFileSystem(conf), file, conf);
+      headers.put(file, header);
+    }
+    return header;
+  }
+
+  private FileStatus getFileStatus(Path file, JobConf conf) throws IOException {
+    FileStatus status = statuses.get(file);
+    return status != null ? status : file.getFileSystem(conf).getFileStatus(file);
+  }
 
-    return result.toArray(new FileSplit[result.size()]);
+  private long getLength(Path file, JobConf conf) throws IOException {
+    return getFileStatus(file, conf).getLen();
   }
 
   @Override
@@ -0,0 +1,140 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * Reads the lines of each file range of a {@link CombineFileSplit} in turn.
+ * Keys are the position in the range's file, and values are the line of
+ * text.
+ * <p>
+ * Each range is closed before the next is opened, which returns its
+ * decompressor to the codec pool just before the next range takes it out
+ * again, so that every range of the split reuses the same decompressor and
+ * its buffers.
+ */
+public class CombineLzoLineRecordReader extends RecordReader<LongWritable, Text> {
+  private CombineFileSplit split;
+  private TaskAttemptContext context;
+  // The range being read, and the total length of the ranges before it.
+  private int segment = -1;
+  private long bytesBefore = 0;
+  private RecordReader<LongWritable, Text> reader;
+
+  @Override
+  public void initialize(InputSplit genericSplit, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    this.split = (CombineFileSplit) genericSplit;
+    this.context = context;
+    segment = -1;
+    bytesBefore = 0;
+  }
+
+  /**
+   * Close the current range, and open the next one.
+   *
+   * @return false if there are no more ranges.
+   */
+  private boolean nextSegment() throws IOException, InterruptedException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+      bytesBefore += split.getLength(segment);
+    }
+    if (++segment >= split.getNumPaths()) {
+      return false;
+    }
+    Path file = split.getPath(segment);
+    FileSplit fileSplit = new FileSplit(file, split.getOffset(segment),
+        split.getLength(segment), split.getLocations());
+    if (LzoInputFormatCommon.isLzoFile(file.toString())) {
+      reader = new LzoLineRecordReader();
+    } else {
+      reader = new LineRecordReader(LzoInputFormatCommon.getRecordDelimiter(
+          CompatibilityUtil.getConfiguration(context)));
+    }
+    reader.initialize(fileSplit, context);
+    return true;
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    while (reader == null || !reader.nextKeyValue()) {
+      if (!nextSegment()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() throws IOException, InterruptedException {
+    return reader.getCurrentKey();
+  }
+
+  @Override
+  public Text getCurrentValue() throws IOException, InterruptedException {
+    return reader.getCurrentValue();
+  }
+
+  /**
+   * @return the path of the file the current record is from.
+   */
+  public Path getCurrentPath() {
+    return split.getPath(segment);
+  }
+
+  /**
+   * Get the progress within the split, weighting each range by its length.
+   */
+  @Override
+  public float getProgress() throws IOException, InterruptedException {
+    if (segment >= split.getNumPaths()) {
+      return 1.0f;
+    }
+    long total = split.getLength();
+    if (total == 0) {
+      return 0.0f;
+    }
+    float current = reader == null ? 0.0f : reader.getProgress() * split.getLength(segment);
+    return Math.min(1.0f, (bytesBefore + current) / total);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+  }
+}
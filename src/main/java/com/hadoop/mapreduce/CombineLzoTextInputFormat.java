@@ -0,0 +1,193 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * An input format for many small lzop compressed text files, which packs
+ * them into fewer splits than {@link LzoTextInputFormat} would make, rather
+ * than running a short map task for each file. Whole files, and the block
+ * ranges of indexed files too big for one split, are grouped into splits of
+ * up to the job's maximum split size
+ * (<code>mapreduce.input.fileinputformat.split.maxsize</code>), on the same
+ * node or rack where possible. The ranges of indexed files are then moved to
+ * lzo block boundaries, as {@link LzoTextInputFormat} does.
+ * <p>
+ * See {@link LzoInputFormatCommon} for a description of the boolean property
+ * <code>lzo.text.input.format.ignore.nonlzo</code> and how it affects the
+ * behavior of this input format.
+ */
+public class CombineLzoTextInputFormat extends CombineFileInputFormat<LongWritable, Text> {
+  private Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+  // Lengths of the lzo files, from listStatus, so getSplits needn't ask again.
+  private final Map<Path, Long> lengths = new HashMap<Path, Long>();
+
+  @Override
+  protected List<FileStatus> listStatus(JobContext job) throws IOException {
+    // Forget the indexes of an earlier listing which getSplits didn't follow.
+    closeIndexes();
+    List<FileStatus> files = super.listStatus(job);
+
+    Configuration conf = CompatibilityUtil.getConfiguration(job);
+    boolean ignoreNonLzo = LzoInputFormatCommon.getIgnoreNonLzoProperty(conf);
+    List<FileStatus> lzoFiles = new ArrayList<FileStatus>();
+
+    for (Iterator<FileStatus> iterator = files.iterator(); iterator.hasNext();) {
+      FileStatus fileStatus = iterator.next();
+      Path file = fileStatus.getPath();
+
+      if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
+        // Get rid of non-LZO files, unless the conf explicitly tells us to
+        // keep them.
+        // However, always skip over files that end with ".lzo.index", since
+        // they are not part of the input.
+        if (ignoreNonLzo || LzoInputFormatCommon.isLzoIndexFile(file.toString())) {
+          iterator.remove();
+        }
+      } else {
+        lzoFiles.add(fileStatus);
+        lengths.put(file, fileStatus.getLen());
+      }
+    }
+
+    indexes = LzoInputFormatCommon.getIndexes(lzoFiles, conf);
+    return files;
+  }
+
+  @Override
+  protected boolean isSplitable(JobContext context, Path filename) {
+    if (LzoInputFormatCommon.isLzoFile(filename.toString())) {
+      LzoIndex index = indexes.get(filename);
+      return index != null && !index.isEmpty();
+    } else {
+      // As TextInputFormat, split non-LZO files unless they are compressed.
+      return new CompressionCodecFactory(
+          CompatibilityUtil.getConfiguration(context)).getCodec(filename) == null;
+    }
+  }
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    try {
+      List<InputSplit> splits = super.getSplits(job);
+      List<InputSplit> result = new ArrayList<InputSplit>(splits.size());
+      for (InputSplit split : splits) {
+        CombineFileSplit alignedSplit = alignSplit((CombineFileSplit) split,
+            CompatibilityUtil.getConfiguration(job));
+        if (alignedSplit != null) {
+          result.add(alignedSplit);
+        }
+      }
+      return result;
+    } finally {
+      closeIndexes();
+    }
+  }
+
+  /**
+   * Move the ranges of indexed lzo files in the split to block boundaries,
+   * dropping those in which no block starts.
+   *
+   * @return the aligned split, or null if no range is left.
+   */
+  private CombineFileSplit alignSplit(CombineFileSplit split, Configuration conf)
+      throws IOException {
+    int n = split.getNumPaths();
+    List<Path> paths = new ArrayList<Path>(n);
+    List<Long> starts = new ArrayList<Long>(n);
+    List<Long> ends = new ArrayList<Long>(n);
+
+    for (int i = 0; i < n; i++) {
+      Path file = split.getPath(i);
+      long start = split.getOffset(i);
+      long end = start + split.getLength(i);
+
+      LzoIndex index = indexes.get(file);
+      if (LzoInputFormatCommon.isLzoFile(file.toString())) {
+        if (index == null) {
+          throw new IOException("Index not found for " + file);
+        }
+        if (!index.isEmpty()) {
+          start = index.alignSliceStartToIndex(start, end);
+          end = index.alignSliceEndToIndex(end, getLength(file, conf));
+          if (start == LzoIndex.NOT_FOUND || end == LzoIndex.NOT_FOUND) {
+            continue;
+          }
+        }
+      }
+      paths.add(file);
+      starts.add(start);
+      ends.add(end);
+    }
+
+    if (paths.isEmpty()) {
+      return null;
+    }
+    long[] offsets = new long[paths.size()];
+    long[] lengths = new long[paths.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = starts.get(i);
+      lengths[i] = ends.get(i) - starts.get(i);
+    }
+    return new CombineFileSplit(paths.toArray(new Path[paths.size()]), offsets, lengths,
+        split.getLocations());
+  }
+
+  /**
+   * Close the indexes opened by listStatus, once the splits are planned.
+   */
+  private void closeIndexes() throws IOException {
+    LzoInputFormatCommon.closeIndexes(indexes);
+    lengths.clear();
+  }
+
+  private long getLength(Path file, Configuration conf) throws IOException {
+    Long length = lengths.get(file);
+    return length != null ? length : file.getFileSystem(conf).getFileStatus(file).getLen();
+  }
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(InputSplit split,
+      TaskAttemptContext taskAttempt) {
+    return new CombineLzoLineRecordReader();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+
+/**
+ * An {@link org.apache.hadoop.mapreduce.InputFormat} for lzop compressed
+ * files which returns each lzo block as a record, for jobs which don't need
+ * the data broken into lines. Keys are the position of the block in the
+ * file, and values are its decompressed bytes. Files are split at block
+ * boundaries using their indexes, as {@link LzoTextInputFormat} splits them,
+ * and each split reads the blocks which start in it.
+ * <p>
+ * Only lzo files are read, so the property
+ * <code>lzo.text.input.format.ignore.nonlzo</code> must not be set to false.
+ */
+public class LzoBlockInputFormat extends FileInputFormat<LongWritable, BytesWritable> {
+  private final LzoTextInputFormat lineFormat = new LzoTextInputFormat();
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    return lineFormat.getSplits(job);
+  }
+
+  @Override
+  public RecordReader<LongWritable, BytesWritable> createRecordReader(InputSplit split,
+      TaskAttemptContext taskAttempt) throws IOException {
+    FileSplit fileSplit = (FileSplit) split;
+    if (!LzoInputFormatCommon.isLzoFile(fileSplit.getPath().toString())) {
+      throw new IOException("Not an lzo file: " + fileSplit.getPath());
+    }
+    return new LzoBlockRecordReader();
+  }
+}
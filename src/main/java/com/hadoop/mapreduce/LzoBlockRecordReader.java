@@ -0,0 +1,128 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.LzopHeader;
+import com.hadoop.compression.lzo.LzopInputStream;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * Reads the lzo blocks which start in a split of an lzop compressed file,
+ * with {@link LzopInputStream#readBlock()}. Keys are the position of each
+ * block in the file, and values its decompressed bytes, in a reused
+ * {@link BytesWritable}.
+ */
+public class LzoBlockRecordReader extends RecordReader<LongWritable, BytesWritable> {
+  private long start;
+  private long pos;
+  private long end;
+  private LzopInputStream in;
+
+  private final LongWritable key = new LongWritable();
+  private final BytesWritable value = new BytesWritable();
+
+  @Override
+  public void initialize(InputSplit genericSplit, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    FileSplit split = (FileSplit) genericSplit;
+    start = split.getStart();
+    end = start + LzoFileSplit.getCompressedLength(split);
+    final Path file = split.getPath();
+    Configuration job = CompatibilityUtil.getConfiguration(context);
+
+    CompressionCodec codec = new CompressionCodecFactory(job).getCodec(file);
+    if (!(codec instanceof LzopCodec)) {
+      throw new IOException("Codec for file " + file + " is not LzopCodec, cannot run");
+    }
+
+    FSDataInputStream fileIn = file.getFileSystem(job).open(file);
+    LzopHeader header = split instanceof LzoFileSplit ?
+        ((LzoFileSplit) split).getHeader() : null;
+    if (start != 0 && header != null) {
+      // The split carries the file header, so start reading at the split.
+      fileIn.seek(start);
+      in = (LzopInputStream) ((LzopCodec) codec).createInputStream(fileIn, header);
+    } else {
+      // Splits start at a block, or at the header of the file.
+      in = (LzopInputStream) codec.createInputStream(fileIn);
+      if (start != 0) {
+        fileIn.seek(start);
+      }
+    }
+    pos = in.getCompressedPos();
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    // pos is where the next block starts, and the split reads those which start in it.
+    if (pos >= end) {
+      return false;
+    }
+    int length = in.readBlock();
+    if (length < 0) {
+      pos = end;
+      return false;
+    }
+    key.set(pos);
+    value.set(in.getBlock(), 0, length);
+    pos = in.getCompressedPos();
+    return true;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() throws IOException, InterruptedException {
+    return key;
+  }
+
+  @Override
+  public BytesWritable getCurrentValue() throws IOException, InterruptedException {
+    return value;
+  }
+
+  @Override
+  public float getProgress() {
+    if (start == end) {
+      return 0.0f;
+    } else {
+      return Math.min(1.0f, (pos - start) / (float) (end - start));
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (in != null) {
+      in.close();
+    }
+  }
+}
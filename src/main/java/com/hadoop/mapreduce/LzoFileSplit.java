@@ -0,0 +1,168 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import com.hadoop.compression.lzo.LzopHeader;
+
+/**
+ * A split of an lzo file which may carry what its reader needs to know about
+ * the file, so that the reader doesn't have to read it again.
+ * <ul>
+ * <li>The size of the split's blocks uncompressed. If it is known,
+ * {@link #getLength()} reports it, so that the framework orders map tasks by
+ * the amount of data they process; the range of the file the split covers
+ * is {@link #getStart()} and {@link #getCompressedLength()}.</li>
+ * <li>The lzop header of the file, so that a split which starts after it can
+ * be read without reading the start of the file, which is usually on
+ * another node.</li>
+ * <li>The positions of the blocks which start in the split.</li>
+ * </ul>
+ */
+public class LzoFileSplit extends FileSplit {
+  private long uncompressedLength = -1;
+  private LzopHeader header;
+  private long[] blockOffsets = new long[0];
+
+  public LzoFileSplit() {
+  }
+
+  /**
+   * @param file the lzo file.
+   * @param start the position of the first byte of the file to process.
+   * @param length the number of bytes of the file to process.
+   * @param hosts the hosts holding the split's data.
+   * @param uncompressedLength the size of the split's blocks uncompressed.
+   */
+  public LzoFileSplit(Path file, long start, long length, String[] hosts,
+      long uncompressedLength) {
+    this(file, start, length, hosts, uncompressedLength, null, null);
+  }
+
+  /**
+   * @param file the lzo file.
+   * @param start the position of the first byte of the file to process.
+   * @param length the number of bytes of the file to process.
+   * @param hosts the hosts holding the split's data.
+   * @param uncompressedLength the size of the split's blocks uncompressed,
+   *        or -1 if it isn't known.
+   * @param header the header of the lzo file, or null.
+   * @param blockOffsets the positions of the blocks which start in the
+   *        split, or null.
+   */
+  public LzoFileSplit(Path file, long start, long length, String[] hosts,
+      long uncompressedLength, LzopHeader header, long[] blockOffsets) {
+    super(file, start, length, hosts);
+    this.uncompressedLength = uncompressedLength;
+    this.header = header;
+    if (blockOffsets != null) {
+      this.blockOffsets = blockOffsets;
+    }
+  }
+
+  /**
+   * @return the number of bytes of the file to process.
+   */
+  public long getCompressedLength() {
+    return super.getLength();
+  }
+
+  /**
+   * @return the size of the split's blocks uncompressed if it is known, and
+   *         otherwise the number of bytes of the file to process.
+   */
+  @Override
+  public long getLength() {
+    return uncompressedLength >= 0 ? uncompressedLength : super.getLength();
+  }
+
+  /**
+   * @return the header of the lzo file, or null if the split doesn't carry it.
+   */
+  public LzopHeader getHeader() {
+    return header;
+  }
+
+  /**
+   * @return the positions of the blocks which start in the split, which is
+   *         empty if the split doesn't carry them.
+   */
+  public long[] getBlockOffsets() {
+    return blockOffsets;
+  }
+
+  /**
+   * @return the number of bytes of the file a split covers, which for an
+   *         {@link LzoFileSplit} is not its length.
+   */
+  static long getCompressedLength(FileSplit split) {
+    if (split instanceof LzoFileSplit) {
+      return ((LzoFileSplit) split).getCompressedLength();
+    }
+    return split.getLength();
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeLong(uncompressedLength);
+    out.writeBoolean(header != null);
+    if (header != null) {
+      header.write(out);
+    }
+    // The offsets are deltas, of a few bytes each.
+    WritableUtils.writeVInt(out, blockOffsets.length);
+    long previous = getStart();
+    for (long offset : blockOffsets) {
+      WritableUtils.writeVLong(out, offset - previous);
+      previous = offset;
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    uncompressedLength = in.readLong();
+    if (in.readBoolean()) {
+      header = new LzopHeader();
+      header.readFields(in);
+    } else {
+      header = null;
+    }
+    blockOffsets = new long[WritableUtils.readVInt(in)];
+    long previous = getStart();
+    for (int i = 0; i < blockOffsets.length; i++) {
+      blockOffsets[i] = previous + WritableUtils.readVLong(in);
+      previous = blockOffsets[i];
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getPath() + ":" + getStart() + "+" + getCompressedLength() +
+        (uncompressedLength >= 0 ? " (" + uncompressedLength + " uncompressed)" : "");
+  }
+}
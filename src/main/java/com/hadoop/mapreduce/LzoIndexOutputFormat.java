@@ -2,14 +2,20 @@ package com.hadoop.mapreduce;
 
 import java.io.IOException;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapred.FileAlreadyExistsException;
 import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
 import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
 public class LzoIndexOutputFormat extends OutputFormat<Path, LongWritable> {
   @Override
@@ -21,19 +27,40 @@ public class LzoIndexOutputFormat extends OutputFormat<Path, LongWritable> {
   @Override
   public void checkOutputSpecs(JobContext job) throws FileAlreadyExistsException, IOException {}
 
-  // A totally no-op output committer, because the LzoIndexRecordWriter opens a file on the side
-  // and writes to that instead.
+  // The LzoIndexRecordWriter writes each attempt's index to a file on the side of the lzo file, which
+  // is moved into place when the attempt is committed, so speculative attempts are safe.  When files
+  // were split across mappers, the partial indexes are merged when the job is committed.
   @Override
   public OutputCommitter getOutputCommitter(TaskAttemptContext taskAttemptContext)
       throws IOException, InterruptedException {
     return new OutputCommitter() {
       @Override public void setupJob(JobContext jobContext) throws IOException {}
       @Override public void cleanupJob(JobContext jobContext) throws IOException {}
+      @Override public void commitJob(JobContext jobContext) throws IOException {
+        Configuration conf = CompatibilityUtil.getConfiguration(jobContext);
+        for (Path lzoFile : FileInputFormat.getInputPaths(jobContext)) {
+          FileSystem fs = lzoFile.getFileSystem(conf);
+          LzoIndexRecordWriter.mergePartialIndexes(fs, lzoFile, conf);
+          LzoIndexRecordWriter.cleanupAttemptOutputs(fs, lzoFile);
+        }
+      }
+      @Override public void abortJob(JobContext jobContext, JobStatus.State state) throws IOException {
+        Configuration conf = CompatibilityUtil.getConfiguration(jobContext);
+        for (Path lzoFile : FileInputFormat.getInputPaths(jobContext)) {
+          FileSystem fs = lzoFile.getFileSystem(conf);
+          fs.delete(lzoFile.suffix(LzoIndexRecordWriter.LZO_INDEX_PARTS_SUFFIX), true);
+          LzoIndexRecordWriter.cleanupAttemptOutputs(fs, lzoFile);
+        }
+      }
       @Override public void setupTask(TaskAttemptContext taskAttemptContext) throws IOException {}
-      @Override public void commitTask(TaskAttemptContext taskAttemptContext) throws IOException {}
-      @Override public void abortTask(TaskAttemptContext taskAttemptContext) throws IOException {}
+      @Override public void commitTask(TaskAttemptContext taskAttemptContext) throws IOException {
+        LzoIndexRecordWriter.commitAttemptOutput(taskAttemptContext);
+      }
+      @Override public void abortTask(TaskAttemptContext taskAttemptContext) throws IOException {
+        LzoIndexRecordWriter.abortAttemptOutput(taskAttemptContext);
+      }
       @Override public boolean needsTaskCommit(TaskAttemptContext taskAttemptContext) throws IOException {
-        return false;
+        return LzoIndexRecordWriter.hasAttemptOutput(taskAttemptContext);
       }
     };
   }
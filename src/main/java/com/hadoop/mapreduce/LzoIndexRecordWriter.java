@@ -1,29 +1,85 @@
 package com.hadoop.mapreduce;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 
 import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzoIndexWriter;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
+/**
+ * Writes the block offsets an {@link LzoSplitRecordReader} finds to the
+ * index of their lzo file. When files are split across mappers, each split's
+ * offsets go to a partial index in a directory next to the lzo file, and
+ * {@link #mergePartialIndexes} turns them into the index when the job
+ * commits.
+ * <p>
+ * Each task attempt writes to a file of its own, which is only moved to the
+ * index or partial index when the attempt is committed, so that speculative
+ * attempts of a task don't overwrite each other. The file is named after the
+ * attempt, so that the task's {@link LzoIndexOutputFormat} committer can find
+ * it from the attempt's id alone, as a FileOutputCommitter finds its work
+ * path; the committer's context needn't be the one the writer was given.
+ */
 public class LzoIndexRecordWriter extends RecordWriter<Path, LongWritable> {
   private static final Log LOG = LogFactory.getLog(LzoIndexRecordWriter.class);
 
-  private FSDataOutputStream outputStream;
+  /**
+   * For /a/b/c.lzo, the partial indexes are written to /a/b/c.lzo.index.parts.
+   * Each is named after the position of its first block, and holds the
+   * position and uncompressed size of each block, followed by the position
+   * where the next split's blocks start with a size of -1.
+   */
+  static final String LZO_INDEX_PARTS_SUFFIX = ".index.parts";
+  private static final String PART_TMP_SUFFIX = ".tmp";
+  static final PathFilter completePartsFilter = new PathFilter() {
+    public boolean accept(Path path) {
+      return !path.getName().endsWith(PART_TMP_SUFFIX);
+    }
+  };
+
+  private LzoIndexWriter indexWriter;
   private final TaskAttemptContext context;
 
+  // Only version 2 indexes record block sizes, which the offsets the mapper
+  // emits don't carry; they are read from the lzo file itself.
+  private FSDataInputStream lzoIn;
+  private final byte[] sizeBuf = new byte[4];
+  private int indexVersion;
+
   private FileSystem fs;
+  private String attemptId;
   private Path inputPath;
   private Path tmpIndexPath;
-  private Path realIndexPath;
+
+  // When files are split: the partial index, and the last offset seen, which
+  // is only known to be a block once another offset follows it.
+  private boolean splitting;
+  private FSDataOutputStream partOut;
+  private long pendingOffset = -1;
 
   public LzoIndexRecordWriter(TaskAttemptContext taskAttemptContext) {
     context = taskAttemptContext;
@@ -31,39 +87,279 @@ public class LzoIndexRecordWriter extends RecordWriter<Path, LongWritable> {
 
   @Override
   public void write(Path path, LongWritable offset) throws IOException, InterruptedException {
-    if (outputStream == null) {
+    if (fs == null) {
       // Set up the output file on the first record.
       LOG.info("Setting up output stream to write index file for " + path);
-      outputStream = setupOutputFile(path);
+      setupOutputFile(path);
+    }
+    if (!splitting) {
+      indexWriter.writeBlock(offset.get(), getUncompressedSize(offset.get()));
+      return;
+    }
+
+    if (pendingOffset >= 0) {
+      if (partOut == null) {
+        tmpIndexPath = new Path(path.suffix(LZO_INDEX_PARTS_SUFFIX),
+            getPartName(pendingOffset) + getAttemptPartSuffix(attemptId));
+        partOut = fs.create(tmpIndexPath, true);
+      }
+      partOut.writeLong(pendingOffset);
+      partOut.writeInt(getUncompressedSize(pendingOffset));
+    }
+    pendingOffset = offset.get();
+  }
+
+  private int getUncompressedSize(long offset) throws IOException {
+    if (indexVersion < 2) {
+      return 0;
+    }
+    if (lzoIn == null) {
+      lzoIn = fs.open(inputPath);
     }
-    offset.write(outputStream);
+    // Each block starts with its uncompressed size.
+    lzoIn.readFully(offset, sizeBuf);
+    return ((sizeBuf[0] & 0xFF) << 24) | ((sizeBuf[1] & 0xFF) << 16) |
+        ((sizeBuf[2] & 0xFF) << 8) | (sizeBuf[3] & 0xFF);
   }
 
   @Override
   public void close(TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
-    if (outputStream != null) {
-      // Close the output stream so that the tmp file is synced, then move it.
-      outputStream.close();
+    if (lzoIn != null) {
+      lzoIn.close();
+    }
+    if (indexWriter != null) {
+      // Close the output stream so that the tmp file is synced.
+      indexWriter.close();
+    } else if (partOut != null) {
+      // The last offset is where the next split's blocks start.
+      partOut.writeLong(pendingOffset);
+      partOut.writeInt(-1);
+      partOut.close();
+    }
+    // The file is left for the committer to move, if this attempt wins.
+  }
+
+  /**
+   * @return true if the task attempt wrote an index or partial index.
+   */
+  static boolean hasAttemptOutput(TaskAttemptContext context) throws IOException {
+    return !getAttemptOutputs(context).isEmpty();
+  }
+
+  /**
+   * Move the indexes or partial indexes the task attempt wrote into place,
+   * replacing any left by an earlier run.
+   */
+  static void commitAttemptOutput(TaskAttemptContext context) throws IOException {
+    Configuration conf = CompatibilityUtil.getConfiguration(context);
+    String attemptId = CompatibilityUtil.getTaskAttemptID(context).toString();
+    String indexSuffix = LzoIndex.LZO_TMP_INDEX_SUFFIX + "_" + attemptId;
+    String partSuffix = getAttemptPartSuffix(attemptId);
+    for (FileStatus output : getAttemptOutputs(context)) {
+      Path tmpIndexPath = output.getPath();
+      String name = tmpIndexPath.getName();
+      Path realIndexPath;
+      if (name.endsWith(indexSuffix)) {
+        // /a/b/c.lzo.index.tmp_<attempt> goes to /a/b/c.lzo.index.
+        realIndexPath = new Path(tmpIndexPath.getParent(),
+            name.substring(0, name.length() - indexSuffix.length()) + LzoIndex.LZO_INDEX_SUFFIX);
+      } else {
+        // /a/b/c.lzo.index.parts/part-<first block>_<attempt>.tmp goes to
+        // /a/b/c.lzo.index.parts/part-<first block>.
+        realIndexPath = new Path(tmpIndexPath.getParent(),
+            name.substring(0, name.length() - partSuffix.length()));
+      }
+      FileSystem fs = tmpIndexPath.getFileSystem(conf);
+
+      LOG.info("Committing " + tmpIndexPath + " to final location " + realIndexPath);
+      fs.delete(realIndexPath, false);
+      if (!fs.rename(tmpIndexPath, realIndexPath)) {
+        throw new IOException("Could not rename " + tmpIndexPath + " to " + realIndexPath);
+      }
+    }
+  }
+
+  /**
+   * Remove the indexes or partial indexes the task attempt wrote.
+   */
+  static void abortAttemptOutput(TaskAttemptContext context) throws IOException {
+    Configuration conf = CompatibilityUtil.getConfiguration(context);
+    for (FileStatus output : getAttemptOutputs(context)) {
+      Path tmpIndexPath = output.getPath();
+      tmpIndexPath.getFileSystem(conf).delete(tmpIndexPath, false);
+    }
+  }
+
+  /**
+   * Find the files the task attempt wrote from its id, with a glob in each
+   * directory of the job's lzo files, rather than a lookup for each file.
+   */
+  private static List<FileStatus> getAttemptOutputs(TaskAttemptContext context)
+      throws IOException {
+    Configuration conf = CompatibilityUtil.getConfiguration(context);
+    String attemptId = CompatibilityUtil.getTaskAttemptID(context).toString();
+    boolean splitting = conf.getBoolean(LzoSplitInputFormat.LZO_SPLIT_FILES_KEY,
+        LzoSplitInputFormat.DEFAULT_LZO_SPLIT_FILES);
+    Set<Path> dirs = new LinkedHashSet<Path>();
+    for (Path lzoFile : FileInputFormat.getInputPaths(context)) {
+      dirs.add(lzoFile.getParent());
+    }
 
-      LOG.info("In close, now renaming " + tmpIndexPath + " to final location " + realIndexPath);
-      // Rename, indexing completed.
-      fs.rename(tmpIndexPath, realIndexPath);
+    List<FileStatus> outputs = new ArrayList<FileStatus>();
+    for (Path dir : dirs) {
+      FileSystem fs = dir.getFileSystem(conf);
+      Path pattern = splitting ?
+          new Path(dir, "*" + LZO_INDEX_PARTS_SUFFIX + "/*" + getAttemptPartSuffix(attemptId)) :
+          new Path(dir, "*" + LzoIndex.LZO_TMP_INDEX_SUFFIX + "_" + attemptId);
+      FileStatus[] matches = fs.globStatus(pattern);
+      if (matches != null) {
+        outputs.addAll(Arrays.asList(matches));
+      }
     }
+    return outputs;
   }
 
-  private FSDataOutputStream setupOutputFile(Path path) throws IOException {
-    fs = path.getFileSystem(CompatibilityUtil.getConfiguration(context));
+  private static String getAttemptPartSuffix(String attemptId) {
+    return "_" + attemptId + PART_TMP_SUFFIX;
+  }
+
+  /**
+   * Remove what attempts which were neither committed nor aborted, such as
+   * killed speculative attempts, left behind for the lzo file.
+   */
+  static void cleanupAttemptOutputs(FileSystem fs, Path lzoFile) throws IOException {
+    FileStatus[] leftovers = fs.globStatus(lzoFile.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX + "_*"));
+    if (leftovers != null) {
+      for (FileStatus leftover : leftovers) {
+        fs.delete(leftover.getPath(), false);
+      }
+    }
+  }
+
+  private void setupOutputFile(Path path) throws IOException {
+    Configuration conf = CompatibilityUtil.getConfiguration(context);
+    fs = path.getFileSystem(conf);
+    attemptId = CompatibilityUtil.getTaskAttemptID(context).toString();
     inputPath = path;
+    indexVersion = conf.getInt(LzoIndex.LZO_INDEX_VERSION_KEY, LzoIndex.DEFAULT_LZO_INDEX_VERSION);
+    splitting = conf.getBoolean(LzoSplitInputFormat.LZO_SPLIT_FILES_KEY,
+        LzoSplitInputFormat.DEFAULT_LZO_SPLIT_FILES);
+    if (splitting) {
+      // The partial index is named after its first block, so it is created
+      // once that is known.
+      return;
+    }
+
+    // For /a/b/c.lzo, tmpIndexPath = /a/b/c.lzo.index.tmp_<attempt>,
+    // and it is moved to /a/b/c.lzo.index when the attempt is committed.
+    tmpIndexPath = path.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX + "_" + attemptId);
+
+    indexWriter = new LzoIndexWriter(fs.create(tmpIndexPath, true), indexVersion);
+  }
+
+  private static String getPartName(long firstBlock) {
+    // Zero padded, so that the names sort in file order.
+    return String.format("part-%020d", firstBlock);
+  }
 
-    // For /a/b/c.lzo, tmpIndexPath = /a/b/c.lzo.index.tmp,
-    // and it is moved to realIndexPath = /a/b/c.lzo.index upon completion.
-    tmpIndexPath = path.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX);
-    realIndexPath = path.suffix(LzoIndex.LZO_INDEX_SUFFIX);
+  /**
+   * Merge the partial indexes of an lzo file, if there are any, into its
+   * index, checking that each one starts where the one before it ended, so
+   * that no blocks are missed or made up. The partial indexes are removed
+   * either way.
+   *
+   * @return false if the file has no partial indexes.
+   * @throws IOException if the partial indexes don't cover the file.
+   */
+  static boolean mergePartialIndexes(FileSystem fs, Path lzoFile, Configuration conf)
+      throws IOException {
+    Path partsDir = lzoFile.suffix(LZO_INDEX_PARTS_SUFFIX);
+    if (!fs.exists(partsDir)) {
+      return false;
+    }
+    Path tmpIndexPath = lzoFile.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX);
+    Path realIndexPath = lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX);
+    LzoIndexWriter out = null;
+    boolean merged = false;
+    try {
+      FileStatus[] parts = fs.listStatus(partsDir, completePartsFilter);
+      Arrays.sort(parts);
+      long fileLength = getLzopStreamLength(fs, lzoFile);
+      // The first block starts right after the lzo header.
+      long nextBlock = getHeaderLength(fs, lzoFile, conf);
 
-    // Delete the old index files if they exist.
-    fs.delete(tmpIndexPath, false);
-    fs.delete(realIndexPath, false);
+      out = new LzoIndexWriter(fs.create(tmpIndexPath, true),
+          conf.getInt(LzoIndex.LZO_INDEX_VERSION_KEY, LzoIndex.DEFAULT_LZO_INDEX_VERSION));
+      int blocks = 0;
+      for (FileStatus part : parts) {
+        DataInputStream in = fs.open(part.getPath());
+        try {
+          long offset = in.readLong();
+          if (offset != nextBlock) {
+            throw new IOException("Partial index " + part.getPath() + " starts at " +
+                offset + ", but the previous one ends at " + nextBlock);
+          }
+          for (int size = in.readInt(); size >= 0; size = in.readInt()) {
+            out.writeBlock(offset, size);
+            blocks++;
+            offset = in.readLong();
+          }
+          nextBlock = offset;
+        } catch (EOFException e) {
+          throw new IOException("Partial index " + part.getPath() + " is truncated", e);
+        } finally {
+          in.close();
+        }
+      }
+      if (nextBlock != fileLength - 4) {
+        // As when one mapper indexes the file, a truncated file is indexed
+        // up to its last whole block.
+        LOG.warn("Partial indexes of " + lzoFile + " end at " + nextBlock +
+            ", not at the end of stream marker at " + (fileLength - 4));
+      }
+      LOG.info("Merged " + parts.length + " partial indexes of " + lzoFile +
+          " holding " + blocks + " blocks");
+      merged = true;
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+      if (merged) {
+        fs.delete(realIndexPath, false);
+        fs.rename(tmpIndexPath, realIndexPath);
+      } else {
+        fs.delete(tmpIndexPath, false);
+      }
+      fs.delete(partsDir, true);
+    }
+    return true;
+  }
 
-    return fs.create(tmpIndexPath, false);
+  private static long getHeaderLength(FileSystem fs, Path lzoFile, Configuration conf)
+      throws IOException {
+    CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(lzoFile);
+    if (codec == null) {
+      throw new IOException("Could not find codec for file " + lzoFile);
+    }
+    ((Configurable)codec).setConf(conf);
+    FSDataInputStream in = fs.open(lzoFile);
+    try {
+      // Creating the LzopInputStream just reads the lzo header.
+      codec.createInputStream(in, codec.createDecompressor());
+      return in.getPos();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static long getLzopStreamLength(FileSystem fs, Path lzoFile) throws IOException {
+    long fileLength = fs.getFileStatus(lzoFile).getLen();
+    FSDataInputStream in = fs.open(lzoFile);
+    try {
+      // The end of stream marker comes before any embedded index.
+      return LzoIndex.getLzopStreamLength(in, fileLength);
+    } finally {
+      in.close();
+    }
   }
 }
@@ -0,0 +1,74 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.hadoop.compression.lzo.LzoLineBatch;
+
+/**
+ * Reads the lines of an lzo compressed text file a batch at a time, with
+ * {@link LzoLineRecordReader#nextBatch(LzoLineBatch)}. The key is the key of
+ * the batch's first line, and the value is the batch, which is reused.
+ */
+public class LzoLineBatchRecordReader extends RecordReader<LongWritable, LzoLineBatch> {
+  private final LzoLineRecordReader reader = new LzoLineRecordReader();
+  private final LongWritable key = new LongWritable();
+  private final LzoLineBatch batch = new LzoLineBatch();
+
+  @Override
+  public void initialize(InputSplit genericSplit, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    reader.initialize(genericSplit, context);
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    if (!reader.nextBatch(batch)) {
+      return false;
+    }
+    key.set(batch.getKey(0));
+    return true;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() throws IOException, InterruptedException {
+    return key;
+  }
+
+  @Override
+  public LzoLineBatch getCurrentValue() throws IOException, InterruptedException {
+    return batch;
+  }
+
+  @Override
+  public float getProgress() {
+    return reader.getProgress();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    reader.close();
+  }
+}
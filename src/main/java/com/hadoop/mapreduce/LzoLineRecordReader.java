@@ -28,28 +28,40 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.LineReader;
 
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.LzopHeader;
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.LzoLineBatch;
+import com.hadoop.compression.lzo.LzopInputStream;
+import com.hadoop.compression.lzo.LzopLineReader;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
 /**
  * Reads line from an lzo compressed text file. Treats keys as offset in file
- * and value as line.
+ * and value as line. If <code>textinputformat.record.delimiter</code> is set,
+ * values are the records which end with it instead.
  */
 public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
 
   private long start;
   private long pos;
   private long end;
+  // Lzop streams are split into lines over their blocks, and others by a LineReader.
+  private LzopLineReader lzopIn;
   private LineReader in;
   private FSDataInputStream fileIn;
 
   private final LongWritable key = new LongWritable();
   private final Text value = new Text();
+  // Lines read by a LineReader for a batch.
+  private final Text batchValue = new Text();
 
   /**
    * Get the progress within the split.
@@ -69,7 +81,9 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
 
   @Override
   public synchronized void close() throws IOException {
-    if (in != null) {
+    if (lzopIn != null) {
+      lzopIn.close();
+    } else if (in != null) {
       in.close();
     }
   }
@@ -88,7 +102,7 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
   public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException, InterruptedException {
     FileSplit split = (FileSplit) genericSplit;
     start = split.getStart();
-    end = start + split.getLength();
+    end = start + LzoFileSplit.getCompressedLength(split);
     final Path file = split.getPath();
     Configuration job = CompatibilityUtil.getConfiguration(context);
 
@@ -102,15 +116,31 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
     // open the file and seek to the start of the split
     fileIn = fs.open(split.getPath());
 
-    // creates input stream and also reads the file header
-    in = new LineReader(codec.createInputStream(fileIn), job);
-
-    if (start != 0) {
+    CompressionInputStream compressedIn;
+    LzopHeader header = split instanceof LzoFileSplit ?
+        ((LzoFileSplit) split).getHeader() : null;
+    if (start != 0 && header != null && codec instanceof LzopCodec) {
+      // The split carries the file header, so start reading at the split.
       fileIn.seek(start);
+      compressedIn = ((LzopCodec) codec).createInputStream(fileIn, header);
+    } else {
+      // creates input stream and also reads the file header
+      compressedIn = codec.createInputStream(fileIn);
+      if (start != 0) {
+        fileIn.seek(start);
+      }
+    }
+    byte[] recordDelimiter = LzoInputFormatCommon.getRecordDelimiter(job);
+    if (compressedIn instanceof LzopInputStream) {
+      lzopIn = new LzopLineReader((LzopInputStream) compressedIn, recordDelimiter);
+    } else {
+      in = new LineReader(compressedIn, job, recordDelimiter);
+    }
 
+    if (start != 0) {
       // read and ignore the first line
-      in.readLine(new Text());
-      start = fileIn.getPos();
+      readLine(new Text());
+      start = getStreamPos();
     }
 
     this.pos = start;
@@ -125,16 +155,60 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
     while (pos <= end) {
       key.set(pos);
 
-      int newSize = in.readLine(value);
+      int newSize = readLine(value);
       if (newSize == 0) {
         return false;
       }
-      pos = fileIn.getPos();
+      pos = getStreamPos();
 
       return true;
     }
 
     return false;
   }
-}
 
+  /**
+   * Read the next lines of the split into a batch, rather than one at a
+   * time: the lines up to and including the first which ends in a later
+   * lzo block than the first line of the batch. Keys are those the lines
+   * would be returned with one at a time.
+   *
+   * @return false if there are no more lines in the split.
+   */
+  public boolean nextBatch(LzoLineBatch batch) throws IOException {
+    batch.clear();
+    long firstPos = -1;
+    while (pos <= end) {
+      long key = pos;
+      int newSize;
+      if (lzopIn != null) {
+        newSize = lzopIn.readLine(batch, key);
+      } else {
+        newSize = in.readLine(batchValue);
+        if (newSize > 0) {
+          batch.add(key, batchValue.getBytes(), 0, batchValue.getLength());
+        }
+      }
+      if (newSize == 0) {
+        break;
+      }
+      pos = getStreamPos();
+      if (firstPos < 0) {
+        firstPos = pos;
+      } else if (pos != firstPos) {
+        break;
+      }
+    }
+    return batch.size() > 0;
+  }
+
+  private int readLine(Text str) throws IOException {
+    return lzopIn != null ? lzopIn.readLine(str) : in.readLine(str);
+  }
+
+  private long getStreamPos() throws IOException {
+    // LzopLineReader's positions allow for lzop read-ahead; other codecs'
+    // streams read from fileIn as they need to.
+    return lzopIn != null ? lzopIn.getPos() : fileIn.getPos();
+  }
+}
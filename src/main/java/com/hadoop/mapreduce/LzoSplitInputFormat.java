@@ -10,7 +10,18 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
 public class LzoSplitInputFormat extends FileInputFormat<Path, LongWritable> {
+  /**
+   * Whether large files are split across several mappers for indexing. Each
+   * mapper finds the first block in its split and writes a partial index,
+   * and the partial indexes are merged when the job commits; see
+   * {@link LzoIndexOutputFormat}. Otherwise, each file is indexed by one
+   * mapper.
+   */
+  public static final String LZO_SPLIT_FILES_KEY = "lzo.distributed.indexer.split.files";
+  public static final boolean DEFAULT_LZO_SPLIT_FILES = true;
 
   @Override
   public RecordReader<Path, LongWritable> createRecordReader(InputSplit inputSplit,
@@ -20,8 +31,7 @@ public class LzoSplitInputFormat extends FileInputFormat<Path, LongWritable> {
 
   @Override
   protected boolean isSplitable(JobContext context, Path filename) {
-    // Force the files to be unsplittable, because indexing requires seeing all the
-    // compressed blocks in succession.
-    return false;
+    return CompatibilityUtil.getConfiguration(context).getBoolean(
+        LZO_SPLIT_FILES_KEY, DEFAULT_LZO_SPLIT_FILES);
   }
 }
@@ -20,7 +20,10 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
+import com.hadoop.compression.lzo.LzoBlockScanner;
+import com.hadoop.compression.lzo.LzoIndex;
 import com.hadoop.compression.lzo.LzopDecompressor;
+import com.hadoop.compression.lzo.LzopInputStream;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
 public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
@@ -30,6 +33,7 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
 
   private final LongWritable curValue = new LongWritable(-1);
   private FSDataInputStream rawInputStream;
+  private LzoBlockScanner scanner;
   private TaskAttemptContext context;
 
   private int numBlocksRead = 0;
@@ -39,6 +43,13 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
   private Path lzoFile;
   private Counter readSuccessCounter = null;
 
+  // When files are split, the range of this split, and whether it has been
+  // read to the end.
+  private boolean splitting = false;
+  private long splitStart = 0;
+  private long splitEnd = 0;
+  private boolean finished = false;
+
   public enum Counters {
     READ_SUCCESS
   }
@@ -48,8 +59,8 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
     context = taskAttemptContext;
     FileSplit fileSplit = (FileSplit)genericSplit;
     lzoFile = fileSplit.getPath();
-    // The LzoSplitInputFormat is not splittable, so the split length is the whole file.
-    totalFileSize = fileSplit.getLength();
+    splitStart = fileSplit.getStart();
+    splitEnd = splitStart + fileSplit.getLength();
 
     if (taskAttemptContext instanceof TaskInputOutputContext<?, ?, ?, ?>) {
       readSuccessCounter = CompatibilityUtil.getCounter(
@@ -58,6 +69,8 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
 
     // Jump through some hoops to create the lzo codec.
     Configuration conf = CompatibilityUtil.getConfiguration(context);
+    splitting = conf.getBoolean(LzoSplitInputFormat.LZO_SPLIT_FILES_KEY,
+        LzoSplitInputFormat.DEFAULT_LZO_SPLIT_FILES);
     CompressionCodecFactory factory = new CompressionCodecFactory(conf);
     CompressionCodec codec = factory.getCodec(lzoFile);
     ((Configurable)codec).setConf(conf);
@@ -65,54 +78,62 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
     LzopDecompressor lzopDecompressor = (LzopDecompressor)codec.createDecompressor();
     FileSystem fs = lzoFile.getFileSystem(conf);
     rawInputStream = fs.open(lzoFile);
+    // Stop at the end of stream marker, before any embedded index.
+    totalFileSize = LzoIndex.getLzopStreamLength(rawInputStream,
+        fs.getFileStatus(lzoFile).getLen());
 
     // Creating the LzopInputStream here just reads the lzo header for us, nothing more.
     // We do the rest of our input off of the raw stream is.
-    codec.createInputStream(rawInputStream, lzopDecompressor);
+    LzopInputStream lzopInputStream =
+        (LzopInputStream)codec.createInputStream(rawInputStream, lzopDecompressor);
 
     // This must be called AFTER createInputStream is called, because createInputStream
     // is what reads the header, which has the checksum information.  Otherwise getChecksumsCount
     // erroneously returns zero, and all block offsets will be wrong.
     numCompressedChecksums = lzopDecompressor.getCompressedChecksumsCount();
     numDecompressedChecksums = lzopDecompressor.getDecompressedChecksumsCount();
+
+    if (splitStart > rawInputStream.getPos()) {
+      // Start from the first block in this split, if there is one.
+      long firstBlock = LzoBlockScanner.findBlock(rawInputStream, lzopInputStream,
+          numDecompressedChecksums, numCompressedChecksums, splitStart, splitEnd, totalFileSize);
+      if (firstBlock < 0) {
+        LOG.info("No lzo block starts between " + splitStart + " and " + splitEnd + " in " + lzoFile);
+        return;
+      }
+      LOG.info("Found the first lzo block after " + splitStart + " at " + firstBlock + " in " + lzoFile);
+      rawInputStream.seek(firstBlock);
+    }
+    scanner = new LzoBlockScanner(rawInputStream, numDecompressedChecksums, numCompressedChecksums,
+        conf.getInt(LzoBlockScanner.LZO_INDEX_SCAN_BUFFER_SIZE_KEY,
+            LzoBlockScanner.DEFAULT_LZO_INDEX_SCAN_BUFFER_SIZE));
   }
 
   @Override
   public boolean nextKeyValue() throws IOException {
+    if (finished) {
+      return false;
+    } else if (scanner == null) {
+      // No block starts in this split.
+      return endOfSplit(-1);
+    }
 
+    long blockOffset = scanner.getNextBlockOffset();
     try {
-      int uncompressedBlockSize = rawInputStream.readInt();
-      if (uncompressedBlockSize == 0) {
+      if (!scanner.next()) {
         // An uncompressed block size of zero means end of file.
-        if (readSuccessCounter != null) {
-          CompatibilityUtil.incrementCounter(readSuccessCounter, 1);
-        }
-        return false;
-      } else if (uncompressedBlockSize < 0) {
-        throw new EOFException("Could not read uncompressed block size at position " +
-                               rawInputStream.getPos() + " in file " + lzoFile);
+        return endOfSplit(scanner.getNextBlockOffset());
       }
 
-      int compressedBlockSize = rawInputStream.readInt();
-      if (compressedBlockSize <= 0) {
-        throw new EOFException("Could not read compressed block size at position " +
-                               rawInputStream.getPos() + " in file " + lzoFile);
+      long pos = scanner.getBlockOffset();
+      if (splitting && pos >= splitEnd) {
+        // The first block of the next split.
+        return endOfSplit(pos);
       }
+      curValue.set(pos);
 
-      // See LzopInputStream.getCompressedData
-      boolean isUncompressedBlock = (uncompressedBlockSize == compressedBlockSize);
-      int numChecksumsToSkip = isUncompressedBlock ?
-              numDecompressedChecksums : numDecompressedChecksums + numCompressedChecksums;
-
-      // Get the current position.  Since we've read two ints, the current block started 8 bytes ago.
-      long pos = rawInputStream.getPos();
-      curValue.set(pos - 8);
-
-      // Seek beyond the checksums and beyond the block data to the beginning of the next block.
-      long nextBlockOffset = pos + compressedBlockSize + (4 * numChecksumsToSkip);
-      if (nextBlockOffset < totalFileSize) {
-        rawInputStream.seek(nextBlockOffset);
-      } else { // truncated
+      // A block must be followed by at least the end of file marker.
+      if (scanner.getNextBlockOffset() >= totalFileSize) { // truncated
         throw new EOFException("truncated");
       }
 
@@ -130,10 +151,7 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
       // An EOF is ok. Mostly this is a truncated file wihtout proper lzop footer.
       // storing the index till the last lzo block present is the right thing to do.
       LOG.info("Received an EOFException. Mostly a truncated file, which is ok : ", e);
-      if (readSuccessCounter != null) {
-        CompatibilityUtil.incrementCounter(readSuccessCounter, 1);
-      }
-      return false;
+      return endOfSplit(blockOffset);
 
     } catch (IOException e) {
       LOG.warn("Exception while trying to read from " + lzoFile, e);
@@ -141,6 +159,25 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
     }
   }
 
+  /**
+   * Count the split as read. When files are split, also return where the
+   * blocks after this split start, or where they end, as a last value, so
+   * that the partial indexes can be checked to line up when they are merged.
+   *
+   * @param nextBlockOffset the position after this split's last block, or -1.
+   */
+  private boolean endOfSplit(long nextBlockOffset) {
+    finished = true;
+    if (readSuccessCounter != null) {
+      CompatibilityUtil.incrementCounter(readSuccessCounter, 1);
+    }
+    if (!splitting || nextBlockOffset < 0) {
+      return false;
+    }
+    curValue.set(nextBlockOffset);
+    return true;
+  }
+
   @Override
   public Path getCurrentKey() {
     return lzoFile;
@@ -153,10 +190,11 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
 
   @Override
   public float getProgress() throws IOException {
-    if (totalFileSize == 0) {
-      return 0.0f;
+    if (finished || scanner == null || splitEnd <= splitStart) {
+      return finished ? 1.0f : 0.0f;
     } else {
-      return (float)rawInputStream.getPos() / totalFileSize;
+      long pos = Math.max(splitStart, Math.min(splitEnd, scanner.getNextBlockOffset()));
+      return (float)(pos - splitStart) / (splitEnd - splitStart);
     }
   }
 
@@ -0,0 +1,63 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.LzoLineBatch;
+
+/**
+ * An {@link org.apache.hadoop.mapreduce.InputFormat} for lzop compressed
+ * text files which returns their lines in batches, for readers which work
+ * on many lines at once. Each value is an {@link LzoLineBatch} holding about
+ * an lzo block of lines, and the key is the key of its first line. Files
+ * are split as {@link LzoTextInputFormat} splits them, and the lines and
+ * their keys are those it would return.
+ * <p>
+ * Only lzo files are read, so the property
+ * <code>lzo.text.input.format.ignore.nonlzo</code> must not be set to false.
+ */
+public class LzoTextBatchInputFormat extends FileInputFormat<LongWritable, LzoLineBatch> {
+  private final LzoTextInputFormat lineFormat = new LzoTextInputFormat();
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    return lineFormat.getSplits(job);
+  }
+
+  @Override
+  public RecordReader<LongWritable, LzoLineBatch> createRecordReader(InputSplit split,
+      TaskAttemptContext taskAttempt) throws IOException {
+    FileSplit fileSplit = (FileSplit) split;
+    if (!LzoInputFormatCommon.isLzoFile(fileSplit.getPath().toString())) {
+      throw new IOException("Not an lzo file: " + fileSplit.getPath());
+    }
+    return new LzoLineBatchRecordReader();
+  }
+}
@@ -21,13 +21,15 @@ package com.hadoop.mapreduce;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
@@ -41,6 +43,7 @@ import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 
 import com.hadoop.compression.lzo.LzoIndex;
 import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.LzopHeader;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
 /**
@@ -53,19 +56,27 @@ import com.hadoop.compression.lzo.util.CompatibilityUtil;
  * behavior of this input format.
  */
 public class LzoTextInputFormat extends TextInputFormat {
-  private final Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+  private Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+  // The lzo files from listStatus, so getSplits needn't ask for them again.
+  private final Map<Path, FileStatus> statuses = new HashMap<Path, FileStatus>();
+  // Block locations of the lzo files, fetched as getSplits needs them.
+  private final Map<Path, BlockLocation[]> locations = new HashMap<Path, BlockLocation[]>();
+  // Headers of the lzo files, read as getSplits needs them.
+  private final Map<Path, LzopHeader> headers = new HashMap<Path, LzopHeader>();
 
   @Override
   protected List<FileStatus> listStatus(JobContext job) throws IOException {
+    // Forget the indexes of an earlier listing which getSplits didn't follow.
+    closeIndexes();
     List<FileStatus> files = super.listStatus(job);
 
     Configuration conf = CompatibilityUtil.getConfiguration(job);
     boolean ignoreNonLzo = LzoInputFormatCommon.getIgnoreNonLzoProperty(conf);
+    List<FileStatus> lzoFiles = new ArrayList<FileStatus>();
 
     for (Iterator<FileStatus> iterator = files.iterator(); iterator.hasNext();) {
       FileStatus fileStatus = iterator.next();
       Path file = fileStatus.getPath();
-      FileSystem fs = file.getFileSystem(conf);
 
       if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
         // Get rid of non-LZO files, unless the conf explicitly tells us to
@@ -76,12 +87,13 @@ public class LzoTextInputFormat extends TextInputFormat {
           iterator.remove();
         }
       } else {
-        //read the index file
-        LzoIndex index = LzoIndex.readIndex(fs, file);
-        indexes.put(file, index);
+        lzoFiles.add(fileStatus);
+        statuses.put(file, fileStatus);
       }
     }
 
+    // Get the indexes from the shared cache, or open them to be read as getSplits needs them.
+    indexes = LzoInputFormatCommon.getIndexes(lzoFiles, conf);
     return files;
   }
 
@@ -98,48 +110,157 @@ public class LzoTextInputFormat extends TextInputFormat {
 
   @Override
   public List<InputSplit> getSplits(JobContext job) throws IOException {
-    List<InputSplit> splits = super.getSplits(job);
-    Configuration conf = CompatibilityUtil.getConfiguration(job);
-    // find new start/ends of the filesplit that aligns
-    // with the lzo blocks
+    try {
+      List<InputSplit> splits = super.getSplits(job);
+      Configuration conf = CompatibilityUtil.getConfiguration(job);
+      boolean byUncompressedSize = LzoInputFormatCommon.getSplitByUncompressedSizeProperty(conf);
+      boolean alignNearest = LzoInputFormatCommon.getAlignNearestProperty(conf);
+      boolean splitHeader = LzoInputFormatCommon.getSplitHeaderProperty(conf);
+      Set<Path> splitByUncompressedSize = new HashSet<Path>();
+      // find new start/ends of the filesplit that aligns
+      // with the lzo blocks
 
-    List<InputSplit> result = new ArrayList<InputSplit>();
+      List<InputSplit> result = new ArrayList<InputSplit>();
 
-    for (InputSplit genericSplit : splits) {
-      FileSplit fileSplit = (FileSplit) genericSplit;
-      Path file = fileSplit.getPath();
-      FileSystem fs = file.getFileSystem(conf);
+      for (InputSplit genericSplit : splits) {
+        FileSplit fileSplit = (FileSplit) genericSplit;
+        Path file = fileSplit.getPath();
 
-      if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
-        // non-LZO file, keep the input split as is.
-        result.add(fileSplit);
-        continue;
-      }
+        if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
+          // non-LZO file, keep the input split as is.
+          result.add(fileSplit);
+          continue;
+        }
 
-      // LZO file, try to split if the .index file was found
-      LzoIndex index = indexes.get(file);
-      if (index == null) {
-        throw new IOException("Index not found for " + file);
-      }
+        // LZO file, try to split if the .index file was found
+        LzoIndex index = indexes.get(file);
+        if (index == null) {
+          throw new IOException("Index not found for " + file);
+        }
+
+        if (index.isEmpty()) {
+          // empty index, keep as is
+          result.add(fileSplit);
+          continue;
+        }
 
-      if (index.isEmpty()) {
-        // empty index, keep as is
-        result.add(fileSplit);
-        continue;
+        if (byUncompressedSize) {
+          // Replace the file's splits with ones planned from its blocks.
+          if (splitByUncompressedSize.add(file)) {
+            result.addAll(getUncompressedSizeSplits(job, file, index));
+          }
+          continue;
+        }
+
+        long start = fileSplit.getStart();
+        long end = start + fileSplit.getLength();
+
+        long length = getLength(file, conf);
+        long lzoStart;
+        long lzoEnd;
+        if (alignNearest) {
+          lzoStart = index.alignSliceBoundaryToNearest(start, length);
+          lzoEnd = index.alignSliceBoundaryToNearest(end, length);
+          if (lzoStart >= lzoEnd) {
+            continue;
+          }
+        } else {
+          lzoStart = index.alignSliceStartToIndex(start, end);
+          lzoEnd = index.alignSliceEndToIndex(end, length);
+        }
+
+        if (lzoStart != LzoIndex.NOT_FOUND  && lzoEnd != LzoIndex.NOT_FOUND) {
+          // The hosts of the original split needn't hold much of the aligned one.
+          String[] hosts = lzoStart == 0 && lzoEnd == length ? fileSplit.getLocations() :
+              getHosts(file, lzoStart, lzoEnd - lzoStart, conf);
+          if (splitHeader && lzoStart != 0) {
+            result.add(new LzoFileSplit(file, lzoStart, lzoEnd - lzoStart, hosts, -1,
+                getHeader(file, conf), index.getPositions(lzoStart, lzoEnd)));
+          } else {
+            result.add(new FileSplit(file, lzoStart, lzoEnd - lzoStart, hosts));
+          }
+        }
       }
 
-      long start = fileSplit.getStart();
-      long end = start + fileSplit.getLength();
+      return result;
+    } finally {
+      closeIndexes();
+    }
+  }
 
-      long lzoStart = index.alignSliceStartToIndex(start, end);
-      long lzoEnd = index.alignSliceEndToIndex(end, fs.getFileStatus(file).getLen());
+  /**
+   * Split an indexed lzo file by uncompressed size; see
+   * {@link LzoInputFormatCommon#getUncompressedSizeSplits}.
+   */
+  private List<InputSplit> getUncompressedSizeSplits(JobContext job, Path file,
+      LzoIndex index) throws IOException {
+    Configuration conf = CompatibilityUtil.getConfiguration(job);
+    FileStatus status = getFileStatus(file, conf);
+    long splitSize = computeSplitSize(status.getBlockSize(), getMinSplitSize(job),
+        getMaxSplitSize(job));
 
-      if (lzoStart != LzoIndex.NOT_FOUND  && lzoEnd != LzoIndex.NOT_FOUND) {
-        result.add(new FileSplit(file, lzoStart, lzoEnd - lzoStart, fileSplit.getLocations()));
+    boolean splitHeader = LzoInputFormatCommon.getSplitHeaderProperty(conf);
+    List<InputSplit> splits = new ArrayList<InputSplit>();
+    for (LzoInputFormatCommon.UncompressedSizeSplit range :
+        LzoInputFormatCommon.getUncompressedSizeSplits(file.getFileSystem(conf), status, index,
+            splitSize)) {
+      long start = range.getStart();
+      long end = range.getEnd();
+      String[] hosts = getHosts(file, start, end - start, conf);
+      if (splitHeader && start != 0) {
+        splits.add(new LzoFileSplit(file, start, end - start, hosts,
+            range.getUncompressedLength(), getHeader(file, conf), index.getPositions(start, end)));
+      } else {
+        splits.add(new LzoFileSplit(file, start, end - start, hosts,
+            range.getUncompressedLength()));
       }
     }
+    return splits;
+  }
+
+  /**
+   * Close the indexes opened by listStatus, once the splits are planned.
+   */
+  private void closeIndexes() throws IOException {
+    LzoInputFormatCommon.closeIndexes(indexes);
+    statuses.clear();
+    locations.clear();
+    headers.clear();
+  }
+
+  /**
+   * @return the hosts holding the most of a range of an lzo file.
+   */
+  private String[] getHosts(Path file, long start, long length, Configuration conf)
+      throws IOException {
+    BlockLocation[] blocks = locations.get(file);
+    if (blocks == null) {
+      FileStatus status = getFileStatus(file, conf);
+      blocks = file.getFileSystem(conf).getFileBlockLocations(status, 0, status.getLen());
+      locations.put(file, blocks);
+    }
+    return LzoInputFormatCommon.getSplitHosts(blocks, start, length);
+  }
+
+  /**
+   * @return the lzop header of an lzo file, read once for all its splits.
+   */
+  private LzopHeader getHeader(Path file, Configuration conf) throws IOException {
+    LzopHeader header = headers.get(file);
+    if (header == null) {
+      header = LzoInputFormatCommon.readHeader(file.getFileSystem(conf), file, conf);
+      headers.put(file, header);
+    }
+    return header;
+  }
+
+  private FileStatus getFileStatus(Path file, Configuration conf) throws IOException {
+    FileStatus status = statuses.get(file);
+    return status != null ? status : file.getFileSystem(conf).getFileStatus(file);
+  }
 
-    return result;
+  private long getLength(Path file, Configuration conf) throws IOException {
+    return getFileStatus(file, conf).getLen();
   }
 
   @Override
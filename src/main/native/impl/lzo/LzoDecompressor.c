@@ -76,7 +76,6 @@ static char* lzo_decompressors[] = {
   /* 27 */  "lzo2a_decompress_safe"
 };
 
-static jfieldID LzoDecompressor_clazz;
 static jfieldID LzoDecompressor_finished;
 static jfieldID LzoDecompressor_compressedDirectBuf;
 static jfieldID LzoDecompressor_compressedDirectBufLen;
@@ -110,8 +109,6 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_initIDs(
   }
 #endif
     
-  LzoDecompressor_clazz = (*env)->GetStaticFieldID(env, class, "clazz", 
-                                                   "Ljava/lang/Class;");
   LzoDecompressor_finished = (*env)->GetFieldID(env, class, "finished", "Z");
   LzoDecompressor_compressedDirectBuf = (*env)->GetFieldID(env, class, 
                                                 "compressedDirectBuf", 
@@ -200,7 +197,6 @@ JNIEXPORT jint JNICALL
 Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBytesDirect(
 	JNIEnv *env, jobject this, jint decompressor
 	) {
-  jobject clazz = NULL;
   jobject compressed_direct_buf = NULL;
   lzo_uint compressed_direct_buf_len = 0;
   jobject uncompressed_direct_buf = NULL;
@@ -215,8 +211,6 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBytesDirect(
   const char *lzo_decompressor_function = lzo_decompressors[decompressor];
 
 	// Get members of LzoDecompressor
-	clazz = (*env)->GetStaticObjectField(env, this, 
-	                                             LzoDecompressor_clazz);
 	compressed_direct_buf = (*env)->GetObjectField(env, this,
                                               LzoDecompressor_compressedDirectBuf);
 	compressed_direct_buf_len = (*env)->GetIntField(env, this, 
@@ -230,21 +224,18 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBytesDirect(
   lzo_decompressor_funcptr = (*env)->GetLongField(env, this,
                                               LzoDecompressor_lzoDecompressor);
 
-    // Get the input direct buffer
-    LOCK_CLASS(env, clazz, "LzoDecompressor");
+    // Get the input direct buffer. GetDirectBufferAddress is thread-safe
+    // and the buffers belong to this instance, so no lock is needed.
 	uncompressed_bytes = (*env)->GetDirectBufferAddress(env, 
 											                    uncompressed_direct_buf);
-    UNLOCK_CLASS(env, clazz, "LzoDecompressor");
     
  	if (uncompressed_bytes == 0) {
     return (jint)0;
 	}
 	
     // Get the output direct buffer
-    LOCK_CLASS(env, clazz, "LzoDecompressor");
 	compressed_bytes = (*env)->GetDirectBufferAddress(env, 
 										                    compressed_direct_buf);
-    UNLOCK_CLASS(env, clazz, "LzoDecompressor");
 
   if (compressed_bytes == 0) {
 		return (jint)0;
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures aggregate LZO compress and decompress throughput with an
+ * increasing number of threads, each using its own compressor and
+ * decompressor. Without any shared lock the throughput should grow linearly
+ * with the thread count until the cores run out.
+ *
+ * Run from the test classpath:
+ *   java com.hadoop.compression.lzo.LzoThroughputBenchmark [maxThreads] [seconds]
+ */
+public class LzoThroughputBenchmark {
+
+  private static final int BLOCK_SIZE = 256 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+
+    byte[] block = generateBlock();
+    System.out.println("native-lzo loaded: " + LzoCompressor.isNativeLzoLoaded());
+    System.out.println("threads\tcompress MB/s\tscaling\tdecompress MB/s\tscaling");
+
+    // warm up the compilers before the single-threaded baseline
+    run(1, block, seconds, true);
+    run(1, block, seconds, false);
+
+    double compressBase = 0, decompressBase = 0;
+    for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+      double compress = run(threads, block, seconds, true);
+      double decompress = run(threads, block, seconds, false);
+      if (threads == 1) {
+        compressBase = compress;
+        decompressBase = decompress;
+      }
+      System.out.printf("%d\t%.1f\t%.2fx\t%.1f\t%.2fx%n", threads,
+          compress, compress / compressBase,
+          decompress, decompress / decompressBase);
+      if (threads >= maxThreads) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Text-like data: words from a small vocabulary, so that it compresses
+   * roughly as well as log files do.
+   */
+  private static byte[] generateBlock() {
+    String[] words = { "the", "quick", "brown", "fox", "jumps", "over", "lazy",
+        "dog", "hadoop", "lzo", "block", "index", "split", "record", "2013" };
+    Random random = new Random(0);
+    byte[] block = new byte[BLOCK_SIZE];
+    int pos = 0;
+    while (pos < block.length) {
+      String word = words[random.nextInt(words.length)];
+      for (int i = 0; i < word.length() && pos < block.length; i++) {
+        block[pos++] = (byte) word.charAt(i);
+      }
+      if (pos < block.length) {
+        block[pos++] = (byte) (random.nextInt(8) == 0 ? '\n' : ' ');
+      }
+    }
+    return block;
+  }
+
+  /**
+   * Run <code>threads</code> workers for about <code>seconds</code> seconds.
+   *
+   * @return the aggregate throughput in uncompressed MB/s
+   */
+  private static double run(int threads, final byte[] block,
+      final double seconds, final boolean compress) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] bytes = new long[threads];
+    final Exception[] errors = new Exception[threads];
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int id = i;
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            bytes[id] = compress ? compressLoop(block, seconds)
+                : decompressLoop(block, seconds);
+          } catch (Exception e) {
+            errors[id] = e;
+          }
+        }
+      };
+      workers[i].start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    long total = 0;
+    for (int i = 0; i < threads; i++) {
+      workers[i].join();
+      if (errors[i] != null) {
+        throw errors[i];
+      }
+      total += bytes[i];
+    }
+    double elapsed = (System.nanoTime() - begin) / 1e9;
+    return total / elapsed / (1024 * 1024);
+  }
+
+  private static long compressLoop(byte[] block, double seconds)
+      throws IOException {
+    LzoCompressor compressor = new LzoCompressor(
+        LzoCompressor.CompressionStrategy.LZO1X_1, BLOCK_SIZE * 2);
+    byte[] out = new byte[BLOCK_SIZE * 2];
+    long deadline = System.nanoTime() + (long) (seconds * 1e9);
+    long bytes = 0;
+    while (System.nanoTime() < deadline) {
+      compress(compressor, block, out);
+      bytes += block.length;
+    }
+    compressor.end();
+    return bytes;
+  }
+
+  private static long decompressLoop(byte[] block, double seconds)
+      throws IOException {
+    LzoCompressor compressor = new LzoCompressor(
+        LzoCompressor.CompressionStrategy.LZO1X_1, BLOCK_SIZE * 2);
+    byte[] compressed = new byte[BLOCK_SIZE * 2];
+    int compressedLen = compress(compressor, block, compressed);
+    compressor.end();
+
+    LzoDecompressor decompressor = new LzoDecompressor(
+        LzoDecompressor.CompressionStrategy.LZO1X, BLOCK_SIZE);
+    byte[] out = new byte[BLOCK_SIZE];
+    long deadline = System.nanoTime() + (long) (seconds * 1e9);
+    long bytes = 0;
+    while (System.nanoTime() < deadline) {
+      decompressor.reset();
+      decompressor.setInput(compressed, 0, compressedLen);
+      int n = decompressor.decompress(out, 0, out.length);
+      if (n != block.length) {
+        throw new IOException("Expected " + block.length + " bytes, got " + n);
+      }
+      bytes += n;
+    }
+    decompressor.end();
+    return bytes;
+  }
+
+  private static int compress(LzoCompressor compressor, byte[] block,
+      byte[] out) throws IOException {
+    compressor.reset();
+    compressor.setInput(block, 0, block.length);
+    compressor.finish();
+    int len = 0;
+    while (!compressor.finished()) {
+      len += compressor.compress(out, len, out.length - len);
+    }
+    return len;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Test the cache of parsed lzo indexes.
+ */
+public class TestLzoIndexCache extends TestCase {
+  private Path outputDir;
+  private FileSystem localFs;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    outputDir = new Path(testBuildData, "indexCacheDir");
+    localFs = FileSystem.getLocal(new Configuration());
+    localFs.delete(outputDir, true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    localFs.delete(outputDir, true);
+    localFs.close();
+    super.tearDown();
+  }
+
+  /**
+   * Write an index of <code>blocks</code> blocks, 1000 bytes apart, without
+   * the lzo file, which the cache never looks at.
+   */
+  private void writeIndex(Path lzoFile, int blocks) throws IOException {
+    DataOutputStream out = localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX), true);
+    for (int i = 0; i < blocks; i++) {
+      out.writeLong(i * 1000L);
+    }
+    out.close();
+  }
+
+  /**
+   * Check the shared cache keeps the size it first took, while a job can
+   * still read its indexes without it.
+   */
+  public void testSharedCacheSize() throws IOException {
+    Path lzoFile = new Path(outputDir, "a.lzo");
+    writeIndex(lzoFile, 10);
+    LzoIndexCache shared = LzoIndexCache.getSharedCache();
+    shared.clear();
+
+    Configuration conf = new Configuration();
+    conf.setLong(LzoIndexCache.LZO_INDEX_CACHE_SIZE_KEY, 2 * 1024 * 1024);
+    LzoIndexCache.getIndex(localFs, lzoFile, conf).close();
+    long capacity = shared.getCapacity();
+    assertEquals(1, shared.getCount());
+
+    conf.setLong(LzoIndexCache.LZO_INDEX_CACHE_SIZE_KEY, 1);
+    LzoIndexCache.getIndex(localFs, lzoFile, conf).close();
+    assertEquals(capacity, shared.getCapacity());
+    assertEquals(1, shared.getCount());
+    assertEquals(1, shared.getHits());
+
+    conf.setLong(LzoIndexCache.LZO_INDEX_CACHE_SIZE_KEY, 0);
+    LzoIndex index = LzoIndexCache.getIndex(localFs, lzoFile, conf);
+    assertEquals(10, index.getNumberOfBlocks());
+    index.close();
+    assertEquals(1, shared.getHits());
+    shared.clear();
+  }
+
+  public void testHitsAndStaleness() throws IOException {
+    LzoIndexCache cache = new LzoIndexCache(1024 * 1024);
+    Path lzoFile = new Path(outputDir, "a.lzo");
+    writeIndex(lzoFile, 10);
+
+    LzoIndex index = cache.get(localFs, lzoFile);
+    assertEquals(10, index.getNumberOfBlocks());
+    assertSame(index, cache.get(localFs, lzoFile));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getCount());
+
+    // Every caller gets the same index, so none may change it.
+    try {
+      index.set(0, 1);
+      fail("Changed a cached index");
+    } catch (UnsupportedOperationException e) {
+      assertEquals(0, index.getPosition(0));
+    }
+
+    // A rewritten index is read again.
+    writeIndex(lzoFile, 12);
+    index = cache.get(localFs, lzoFile);
+    assertEquals(12, index.getNumberOfBlocks());
+    assertEquals(11000, index.getPosition(11));
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.getCount());
+
+    // So is a removed one.
+    localFs.delete(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+    assertTrue(cache.get(localFs, lzoFile).isEmpty());
+    assertEquals(0, cache.getCount());
+    assertEquals(0, cache.getSize());
+  }
+
+  public void testEmbeddedIndex() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 4 * 1024);
+    conf.setBoolean(LzopCodec.LZOP_EMBED_INDEX_KEY, true);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    Path lzoFile = new Path(outputDir, "embedded.lzo");
+    OutputStream out = codec.createOutputStream(localFs.create(lzoFile), codec.createCompressor());
+    Random random = new Random(19);
+    for (int i = 0; i < 2000; i++) {
+      out.write((Long.toHexString(random.nextLong()) + "\n").getBytes("UTF-8"));
+    }
+    out.close();
+    assertFalse(localFs.exists(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)));
+
+    LzoIndexCache cache = new LzoIndexCache(1024 * 1024);
+    LzoIndex index = cache.get(localFs, lzoFile);
+    assertTrue(index.getNumberOfBlocks() > 1);
+    assertTrue(index.hasUncompressedOffsets());
+    assertSame(index, cache.get(localFs, lzoFile));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getCount());
+
+    // An lzo file with an index file isn't looked at at all.
+    Path plainFile = new Path(outputDir, "plain.lzo");
+    localFs.create(plainFile).close();
+    writeIndex(plainFile, 10);
+    assertEquals(10, cache.get(localFs, plainFile).getNumberOfBlocks());
+    assertEquals(10, cache.get(localFs, plainFile).getNumberOfBlocks());
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(2, cache.getCount());
+
+    // One without either is remembered not to embed one.
+    Path unindexedFile = new Path(outputDir, "unindexed.lzo");
+    localFs.create(unindexedFile).close();
+    assertTrue(cache.get(localFs, unindexedFile).isEmpty());
+    assertTrue(cache.get(localFs, unindexedFile).isEmpty());
+    assertEquals(3, cache.getHits());
+    assertEquals(3, cache.getCount());
+
+    // The status a file was listed with finds the same entries.
+    assertSame(index, cache.get(localFs, localFs.getFileStatus(lzoFile)));
+    assertTrue(cache.get(localFs, localFs.getFileStatus(unindexedFile)).isEmpty());
+    assertEquals(5, cache.getHits());
+    assertEquals(3, cache.getCount());
+  }
+
+  public void testEviction() throws IOException {
+    // Room for about two indexes of 100 blocks.
+    LzoIndexCache cache = new LzoIndexCache(2500);
+    Path[] lzoFiles = new Path[3];
+    for (int i = 0; i < lzoFiles.length; i++) {
+      lzoFiles[i] = new Path(outputDir, i + ".lzo");
+      writeIndex(lzoFiles[i], 100);
+    }
+
+    cache.get(localFs, lzoFiles[0]);
+    cache.get(localFs, lzoFiles[1]);
+    // Use the first, so that the second is the least recently used.
+    cache.get(localFs, lzoFiles[0]);
+    cache.get(localFs, lzoFiles[2]);
+    assertEquals(2, cache.getCount());
+    assertEquals(1, cache.getEvictions());
+    assertTrue(cache.getSize() <= cache.getCapacity());
+
+    cache.get(localFs, lzoFiles[0]);
+    assertEquals(2, cache.getHits());
+    cache.get(localFs, lzoFiles[1]);
+    assertEquals(4, cache.getMisses());
+
+    // An index bigger than the cache is opened without caching it.
+    Path bigFile = new Path(outputDir, "big.lzo");
+    writeIndex(bigFile, 1000);
+    LzoIndex index = cache.get(localFs, bigFile);
+    assertEquals(1000, index.getNumberOfBlocks());
+    assertEquals(999000, index.getPosition(999));
+    index.close();
+    assertEquals(2, cache.getCount());
+
+    cache.setCapacity(0);
+    assertEquals(0, cache.getCount());
+    assertEquals(0, cache.getSize());
+  }
+}
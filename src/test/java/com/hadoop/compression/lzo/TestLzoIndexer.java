@@ -0,0 +1,226 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Test indexing a directory tree of lzo files on several threads, and into
+ * directory indexes.
+ */
+public class TestLzoIndexer extends TestCase {
+  private static final String EXPECTED_SUFFIX = ".expected";
+
+  private Path outputDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    outputDir = new Path(testBuildData, "indexerDir");
+  }
+
+  public void testParallelIndexing() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setInt(LzoIndexer.LZO_INDEXER_THREADS_KEY, 4);
+    // Smaller than some blocks, so that the header scan has to seek past them.
+    conf.setInt(LzoBlockScanner.LZO_INDEX_SCAN_BUFFER_SIZE_KEY, 8 * 1024);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    Random random = new Random(3);
+    Path[] lzoFiles = new Path[24];
+    for (int i = 0; i < lzoFiles.length; i++) {
+      // Three levels of directories.
+      Path dir = new Path(new Path(outputDir, "d" + i % 3), "e" + i % 2);
+      lzoFiles[i] = new Path(dir, "part-" + i + ".lzo");
+      // Write the index the stream makes to the side, to compare with.
+      OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFiles[i]),
+          localFs.create(lzoFiles[i].suffix(EXPECTED_SUFFIX)), codec.createCompressor());
+      byte[] data = new byte[random.nextInt(200 * 1024)];
+      for (int j = 0; j < data.length; j++) {
+        data[j] = (byte)('a' + random.nextInt(8));
+      }
+      out.write(data);
+      out.close();
+    }
+    localFs.create(new Path(outputDir, "not-lzo.txt")).close();
+
+    new LzoIndexer(conf).index(outputDir);
+
+    for (Path lzoFile : lzoFiles) {
+      LzoIndex index = LzoIndex.readIndex(localFs, lzoFile);
+      localFs.rename(lzoFile.suffix(EXPECTED_SUFFIX), lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX));
+      LzoIndex expected = LzoIndex.readIndex(localFs, lzoFile);
+      assertEquals(expected.getNumberOfBlocks(), index.getNumberOfBlocks());
+      for (int i = 0; i < index.getNumberOfBlocks(); i++) {
+        assertEquals(expected.getPosition(i), index.getPosition(i));
+      }
+    }
+    assertFalse(localFs.exists(new Path(outputDir, "not-lzo.txt" + LzoIndex.LZO_INDEX_SUFFIX)));
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Check a directory which can't be indexed fails the indexer whether it
+   * runs on one thread or several, and doesn't stop the other directories
+   * being indexed on several.
+   */
+  public void testDirectoryFailure() throws IOException {
+    for (int threads : new int[] { 1, 4 }) {
+      Configuration conf = new Configuration();
+      conf.setInt(LzoIndexer.LZO_INDEXER_THREADS_KEY, threads);
+      conf.setBoolean(LzoDirectoryIndex.LZO_DIRECTORY_INDEX_KEY, true);
+      conf.set("io.compression.codecs", LzopCodec.class.getName());
+      FileSystem localFs = FileSystem.getLocal(conf);
+      localFs.delete(outputDir, true);
+
+      LzopCodec codec = new LzopCodec();
+      codec.setConf(conf);
+      Path good = new Path(new Path(outputDir, "good"), "part-0.lzo");
+      Path bad = new Path(new Path(outputDir, "bad"), "part-0.lzo");
+      for (Path lzoFile : new Path[] { good, bad }) {
+        OutputStream out = codec.createOutputStream(localFs.create(lzoFile));
+        out.write(new byte[1000]);
+        out.close();
+      }
+      // A corrupt directory index makes indexing its directory fail.
+      OutputStream out = localFs.create(LzoDirectoryIndex.getPath(bad.getParent()));
+      out.write(new byte[100]);
+      out.close();
+
+      try {
+        new LzoIndexer(conf).index(outputDir);
+        fail("Indexed a directory with a corrupt directory index on " + threads + " threads");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("Not an lzo directory index"));
+      }
+      if (threads > 1) {
+        assertTrue(localFs.exists(LzoDirectoryIndex.getPath(good.getParent())));
+      }
+
+      localFs.delete(outputDir, true);
+      localFs.close();
+    }
+  }
+
+  public void testDirectoryIndex() throws IOException {
+    runDirectoryIndexTest(false);
+  }
+
+  public void testDirectoryIndexRemovingIndexFiles() throws IOException {
+    runDirectoryIndexTest(true);
+  }
+
+  private void runDirectoryIndexTest(boolean removeIndexFiles) throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setBoolean(LzoDirectoryIndex.LZO_DIRECTORY_INDEX_KEY, true);
+    conf.setBoolean(LzoDirectoryIndex.LZO_DIRECTORY_INDEX_REMOVE_FILES_KEY, removeIndexFiles);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    Random random = new Random(5);
+    Path[] dirs = new Path[] { new Path(outputDir, "a"), new Path(outputDir, "a/b") };
+    List<Path> lzoFiles = new ArrayList<Path>();
+    for (int i = 0; i < 10; i++) {
+      Path lzoFile = new Path(dirs[i % 2], "part-" + i + ".lzo");
+      // Half the files already have index files, which are copied in.
+      OutputStream out = i % 4 < 2 ?
+          codec.createOutputStream(localFs.create(lzoFile), codec.createCompressor()) :
+          codec.createIndexedOutputStream(localFs.create(lzoFile),
+              localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+      byte[] data = new byte[random.nextInt(100 * 1024)];
+      for (int j = 0; j < data.length; j++) {
+        data[j] = (byte)('a' + random.nextInt(8));
+      }
+      out.write(data);
+      out.close();
+      lzoFiles.add(lzoFile);
+    }
+
+    new LzoIndexer(conf).index(outputDir);
+
+    List<FileStatus> statuses = new ArrayList<FileStatus>();
+    for (Path lzoFile : lzoFiles) {
+      // Unless asked to, every file keeps an index file, for readers which
+      // don't know the directory index.
+      assertEquals(!removeIndexFiles, localFs.exists(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)));
+      statuses.add(localFs.getFileStatus(lzoFile));
+    }
+    Map<Path, LzoIndex> indexes = LzoInputFormatCommon.getIndexes(statuses, conf);
+    for (FileStatus status : statuses) {
+      LzoIndex index = indexes.get(status.getPath());
+      LzoDirectoryIndex directoryIndex = LzoDirectoryIndex.read(localFs, status.getPath().getParent());
+      assertEquals(5, directoryIndex.size());
+      byte[] bytes = LzoIndex.createIndexBytes(localFs, status.getPath());
+      LzoIndex expected = LzoIndex.readIndex(bytes, bytes.length, status.getPath());
+      assertTrue(index.getNumberOfBlocks() > 0);
+      assertEquals(expected.getNumberOfBlocks(), index.getNumberOfBlocks());
+      for (int i = 0; i < index.getNumberOfBlocks(); i++) {
+        assertEquals(expected.getPosition(i), index.getPosition(i));
+      }
+    }
+    LzoInputFormatCommon.closeIndexes(indexes);
+
+    // Nothing changed, so nothing is indexed again.
+    assertTrue(LzoDirectoryIndex.update(localFs, dirs[0], true, removeIndexFiles).isEmpty());
+
+    // A rewritten file's entry is stale until it is indexed again.
+    Path rewritten = lzoFiles.get(0);
+    OutputStream out = codec.createOutputStream(localFs.create(rewritten, true),
+        codec.createCompressor());
+    out.write(new byte[] { 'x', '\n' });
+    out.close();
+    localFs.setTimes(rewritten, 1000, -1);
+    FileStatus status = localFs.getFileStatus(rewritten);
+    assertNull(LzoDirectoryIndex.read(localFs, dirs[0]).getIndex(status));
+    assertEquals(1, LzoDirectoryIndex.update(localFs, dirs[0], true, removeIndexFiles).size());
+    assertEquals(1, LzoDirectoryIndex.read(localFs, dirs[0]).getIndex(status).getNumberOfBlocks());
+
+    // And a deleted file's entry is dropped.
+    localFs.delete(lzoFiles.get(2), false);
+    LzoDirectoryIndex.update(localFs, dirs[0], true, removeIndexFiles);
+    assertEquals(4, LzoDirectoryIndex.read(localFs, dirs[0]).size());
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+}
@@ -19,16 +19,26 @@
 package com.hadoop.compression.lzo;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
 
 /**
  * Test the LzopInputStream, making sure we get the same bytes when reading a compressed file through
@@ -90,6 +100,17 @@ public class TestLzopInputStream extends TestCase {
     runTest(emptyFile);
   }
 
+  /**
+   * Test all the files with blocks read ahead and decompressed on a pool of
+   * worker threads.
+   */
+  public void testReadAhead() throws NoSuchAlgorithmException, IOException,
+  InterruptedException {
+    for (String filename : new String[] { bigFile, mediumFile, smallFile, emptyFile }) {
+      runTest(filename, 4);
+    }
+  }
+
   /**
    * Test that reading an lzo-compressed file produces the same lines as reading the equivalent
    * flat file.  The test opens both the compressed and flat file, successively reading each
@@ -97,12 +118,13 @@ public class TestLzopInputStream extends TestCase {
    */
   private void runTest(String filename) throws IOException,
   NoSuchAlgorithmException, InterruptedException {
+    runTest(filename, 0);
+  }
 
-    if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
-      LOG.warn("Cannot run this test without the native lzo libraries");
-      return;
-    }
+  private void runTest(String filename, int readAheadBlocks) throws IOException,
+  NoSuchAlgorithmException, InterruptedException {
 
+    // Without the native lzo libraries this exercises the pure-Java decoder.
     // Assumes the flat file is at filename, and the compressed version is filename.lzo
     File textFile = new File(inputDataPath, filename);
     File lzoFile = new File(inputDataPath, filename + new LzopCodec().getDefaultExtension());
@@ -113,7 +135,8 @@ public class TestLzopInputStream extends TestCase {
     // Set up the LZO reader.
     int lzoBufferSize = 256 * 1024;
     LzopDecompressor lzoDecompressor = new LzopDecompressor(lzoBufferSize);
-    LzopInputStream lzoIn = new LzopInputStream(new FileInputStream(lzoFile.getAbsolutePath()), lzoDecompressor, lzoBufferSize);
+    LzopInputStream lzoIn = new LzopInputStream(new FileInputStream(lzoFile.getAbsolutePath()),
+        lzoDecompressor, lzoBufferSize, readAheadBlocks, 2);
     BufferedReader lzoBr = new BufferedReader(new InputStreamReader(lzoIn));
 
     // Now read line by line and compare.
@@ -136,4 +159,168 @@ public class TestLzopInputStream extends TestCase {
     textBr.close();
     lzoBr.close();
   }
+
+  /**
+   * Test LzopLineReader reads the same lines as a LineReader over the stream,
+   * with the same positions, for lines ending in every way and running
+   * across blocks.
+   */
+  public void testLineReader() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 1024);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = codec.createOutputStream(bytes, codec.createCompressor());
+    Random random = new Random(29);
+    String[] ends = { "\n", "\r", "\r\n", "\n\n" };
+    for (int i = 0; i < 5000; i++) {
+      int length = random.nextInt(10) == 0 ? random.nextInt(3000) : random.nextInt(60);
+      StringBuilder line = new StringBuilder();
+      for (int j = 0; j < length; j++) {
+        line.append((char) ('a' + random.nextInt(26)));
+      }
+      out.write((line + ends[random.nextInt(ends.length)]).getBytes("UTF-8"));
+    }
+    // No line end at the end of the file.
+    out.write("last".getBytes("UTF-8"));
+    out.close();
+    byte[] data = bytes.toByteArray();
+
+    // Without a seekable stream, positions count the bytes read from it.
+    ByteArrayInputStream dataIn = new ByteArrayInputStream(data);
+    LzopInputStream lzopIn = new LzopInputStream(dataIn, new LzopDecompressor(1024), 1024);
+    assertEquals(data.length - dataIn.available(), lzopIn.getCompressedPos());
+    while (lzopIn.readBlock() >= 0) {
+      assertEquals(data.length - dataIn.available(), lzopIn.getCompressedPos());
+    }
+    assertEquals(data.length, lzopIn.getCompressedPos());
+    lzopIn.close();
+
+    for (int readAheadBlocks : new int[] { 0, 4 }) {
+      LzopInputStream expectedIn = new LzopInputStream(new ByteArrayInputStream(data),
+          new LzopDecompressor(1024), 1024, readAheadBlocks, 2);
+      LineReader expectedReader = new LineReader(expectedIn);
+      LzopLineReader actualReader = new LzopLineReader(new LzopInputStream(
+          new ByteArrayInputStream(data), new LzopDecompressor(1024), 1024, readAheadBlocks, 2));
+      Text expected = new Text();
+      Text actual = new Text();
+      String last = null;
+      int lines = 0;
+      int n;
+      while ((n = expectedReader.readLine(expected)) > 0) {
+        assertEquals(n, actualReader.readLine(actual));
+        assertEquals(expected, actual);
+        assertEquals(expectedIn.getCompressedPos(), actualReader.getPos());
+        last = actual.toString();
+        lines++;
+      }
+      assertEquals(0, actualReader.readLine(actual));
+      assertTrue(lines > 5000);
+      assertEquals("last", last);
+      expectedReader.close();
+      actualReader.close();
+    }
+  }
+
+  /**
+   * Test LzopLineReader splits records at multi-byte delimiters, including
+   * ones which run across blocks and ones which partly match the text.
+   */
+  public void testRecordDelimiter() throws IOException {
+    for (String delimiter : new String[] { "\u0001\n", "\r\n##", "abab", "x" }) {
+      runRecordDelimiterTest(delimiter, false);
+      runRecordDelimiterTest(delimiter, true);
+    }
+  }
+
+  private void runRecordDelimiterTest(String delimiter, boolean delimiterAtEnd)
+      throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 1024);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = codec.createOutputStream(bytes, codec.createCompressor());
+    Random random = new Random(37);
+    // Records of the bytes of the delimiter and others, which often
+    // partly match it.
+    String alphabet = delimiter + "abc\n";
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      int length = random.nextInt(40);
+      for (int j = 0; j < length; j++) {
+        text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      text.append(delimiter);
+    }
+    if (!delimiterAtEnd) {
+      text.append("last");
+    }
+    out.write(text.toString().getBytes("UTF-8"));
+    out.close();
+    byte[] data = bytes.toByteArray();
+
+    List<String> expected = new ArrayList<String>();
+    int start = 0;
+    for (int end; (end = text.indexOf(delimiter, start)) >= 0; start = end + delimiter.length()) {
+      expected.add(text.substring(start, end));
+    }
+    if (start < text.length()) {
+      expected.add(text.substring(start));
+    }
+
+    for (int readAheadBlocks : new int[] { 0, 4 }) {
+      LzopLineReader reader = new LzopLineReader(new LzopInputStream(
+          new ByteArrayInputStream(data), new LzopDecompressor(1024), 1024, readAheadBlocks, 2),
+          delimiter.getBytes("UTF-8"));
+      List<String> actual = new ArrayList<String>();
+      Text record = new Text();
+      long consumed = 0;
+      int n;
+      while ((n = reader.readLine(record)) > 0) {
+        actual.add(record.toString());
+        consumed += n;
+      }
+      reader.close();
+      assertEquals(delimiter, expected, actual);
+      assertEquals(text.toString().getBytes("UTF-8").length, consumed);
+    }
+  }
+
+  /**
+   * Test that a corrupted block is reported as an IOException, and never
+   * decoded into garbage or surfaced as a RuntimeException.
+   */
+  public void testCorruptFile() throws IOException {
+    runCorruptTest(0);
+    runCorruptTest(4);
+  }
+
+  private void runCorruptTest(int readAheadBlocks) throws IOException {
+    File lzoFile = new File(inputDataPath, bigFile + new LzopCodec().getDefaultExtension());
+    byte[] data = new byte[(int) lzoFile.length()];
+    DataInputStream fileIn = new DataInputStream(new FileInputStream(lzoFile));
+    fileIn.readFully(data);
+    fileIn.close();
+
+    // Flip some bits in the middle of the first block's compressed data.
+    for (int i = 1000; i < 1016; i++) {
+      data[i] ^= 0x5A;
+    }
+
+    int lzoBufferSize = 256 * 1024;
+    LzopDecompressor lzoDecompressor = new LzopDecompressor(lzoBufferSize);
+    LzopInputStream lzoIn = new LzopInputStream(new ByteArrayInputStream(data),
+        lzoDecompressor, lzoBufferSize, readAheadBlocks, 2);
+    byte[] buf = new byte[64 * 1024];
+    try {
+      while (lzoIn.read(buf, 0, buf.length) != -1) {
+      }
+      fail("Reading a corrupt lzo file should fail");
+    } catch (IOException expected) {
+      LOG.info("Got expected exception reading corrupt file: " + expected);
+    }
+    lzoIn.close();
+  }
 }
@@ -25,15 +25,20 @@ import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
 
 /**
  * Test the LzoOutputFormat, make sure that it can write files of different sizes and read them back in
@@ -110,6 +115,95 @@ public class TestLzopOutputStream extends TestCase {
     runTest(issue20File);
   }
 
+  /**
+   * Test all the files with blocks compressed on a pool of worker threads,
+   * including that the index still points at the block boundaries.
+   */
+  public void testParallelCompression() throws NoSuchAlgorithmException, IOException,
+  InterruptedException {
+    for (String filename : new String[] { bigFile, mediumFile, smallFile, issue20File }) {
+      runTest(filename, 2);
+    }
+  }
+
+  /**
+   * Test all the files written with a version 2 index, which also records
+   * where each block starts in the uncompressed data.
+   */
+  public void testV2Index() throws NoSuchAlgorithmException, IOException,
+  InterruptedException {
+    for (String filename : new String[] { bigFile, mediumFile, smallFile, issue20File }) {
+      runTest(filename, 0, 2);
+      runTest(filename, 2, 2);
+    }
+  }
+
+  /**
+   * Test files which embed their index, which must still read back as plain
+   * lzop files, and whose index must match the one the indexer finds.
+   */
+  public void testEmbeddedIndex() throws IOException {
+    for (String filename : new String[] { bigFile, smallFile }) {
+      for (int compressThreads = 0; compressThreads <= 2; compressThreads += 2) {
+        File textFile = new File(inputDataPath, filename);
+        File lzoOutFile = new File(inputDataPath, "embedded_" + filename +
+            new LzopCodec().getDefaultExtension());
+        Path lzoOutPath = new Path(lzoOutFile.getAbsolutePath());
+        localFs.delete(lzoOutPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+
+        int lzoBufferSize = 256 * 1024;
+        LzoCompressor.CompressionStrategy strategy = LzoCompressor.CompressionStrategy.LZO1X_1;
+        LzopOutputStream lzoOut = new LzopOutputStream(new FileOutputStream(lzoOutFile), null,
+            new LzoCompressor(strategy, lzoBufferSize), lzoBufferSize, strategy,
+            compressThreads, 1, true);
+        FileInputStream textIn = new FileInputStream(textFile);
+        IOUtils.copyBytes(textIn, lzoOut, 4096, false);
+        textIn.close();
+        lzoOut.close();
+
+        // The lzop stream reads back unchanged.
+        LzopInputStream lzoIn = new LzopInputStream(new FileInputStream(lzoOutFile),
+            new LzopDecompressor(lzoBufferSize), lzoBufferSize);
+        DataOutputBuffer decompressed = new DataOutputBuffer();
+        IOUtils.copyBytes(lzoIn, decompressed, 4096, true);
+        assertEquals(textFile.length(), decompressed.getLength());
+
+        long fileLength = lzoOutFile.length();
+        assertTrue(LzoIndex.hasEmbeddedIndex(localFs, lzoOutPath, fileLength));
+        FSDataInputStream in = localFs.open(lzoOutPath);
+        long streamLength = LzoIndex.getLzopStreamLength(in, fileLength);
+        assertTrue(streamLength < fileLength);
+        byte[] eos = new byte[4];
+        in.readFully(streamLength - 4, eos);
+        assertTrue(Arrays.equals(new byte[4], eos));
+        in.close();
+
+        // The indexer stops at the end of stream marker, and finds the same blocks.
+        LzoIndex lzoIndex = LzoIndex.readIndex(localFs, lzoOutPath);
+        assertTrue(lzoIndex.hasUncompressedOffsets());
+        assertEquals(textFile.length(), lzoIndex.getUncompressedOffset(lzoIndex.getNumberOfBlocks()));
+        LzoIndex.createIndex(localFs, lzoOutPath);
+        LzoIndex expectedIndex = LzoIndex.readIndexFile(localFs, lzoOutPath);
+        assertEquals(expectedIndex.getNumberOfBlocks(), lzoIndex.getNumberOfBlocks());
+        for (int i = 0; i < lzoIndex.getNumberOfBlocks(); i++) {
+          assertEquals(expectedIndex.getPosition(i), lzoIndex.getPosition(i));
+        }
+
+        // Without the embedded index, the index file is read instead.
+        RandomAccessFile truncated = new RandomAccessFile(lzoOutFile, "rw");
+        truncated.setLength(streamLength);
+        truncated.close();
+        assertFalse(LzoIndex.hasEmbeddedIndex(localFs, lzoOutPath, streamLength));
+        assertFalse(LzoIndex.readIndex(localFs, lzoOutPath).hasUncompressedOffsets());
+        assertEquals(expectedIndex.getNumberOfBlocks(),
+            LzoIndex.readIndex(localFs, lzoOutPath).getNumberOfBlocks());
+
+        localFs.delete(lzoOutPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+        assertTrue(lzoOutFile.delete());
+      }
+    }
+  }
+
   /**
    * Test that reading an lzo-compressed file produces the same lines as reading the equivalent
    * flat file.  The test opens both the compressed and flat file, successively reading each
@@ -117,11 +211,16 @@ public class TestLzopOutputStream extends TestCase {
    */
   private void runTest(String filename) throws IOException,
   NoSuchAlgorithmException, InterruptedException {
+    runTest(filename, 0, 1);
+  }
 
-    if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
-      LOG.warn("Cannot run this test without the native lzo libraries");
-      return;
-    }
+  private void runTest(String filename, int compressThreads) throws IOException,
+  NoSuchAlgorithmException, InterruptedException {
+    runTest(filename, compressThreads, 1);
+  }
+
+  private void runTest(String filename, int compressThreads, int indexVersion) throws IOException,
+  NoSuchAlgorithmException, InterruptedException {
 
     // Assumes the flat file is at filename, and the compressed version is filename.lzo
     File textFile = new File(inputDataPath, filename);
@@ -145,7 +244,7 @@ public class TestLzopOutputStream extends TestCase {
     LzoCompressor lzoCompressor = new LzoCompressor(strategy, lzoBufferSize);
     LzopOutputStream lzoOut = new LzopOutputStream(new FileOutputStream(lzoOutFile),
         new DataOutputStream(new FileOutputStream(lzoIndexFile)),
-        lzoCompressor, lzoBufferSize, strategy);
+        lzoCompressor, lzoBufferSize, strategy, compressThreads, indexVersion);
 
     // Now read line by line and stream out..
     String textLine;
@@ -202,5 +301,10 @@ public class TestLzopOutputStream extends TestCase {
     for (int i=0; i<lzoIndex.getNumberOfBlocks(); i++) {
       assertEquals(lzoIndex.getPosition(i), expectedIndex.getPosition(i));
     }
+    assertEquals(indexVersion == 2, lzoIndex.hasUncompressedOffsets());
+    if (indexVersion == 2) {
+      assertEquals(0, lzoIndex.getUncompressedOffset(0));
+      assertEquals(textFile.length(), lzoIndex.getUncompressedOffset(lzoIndex.getNumberOfBlocks()));
+    }
   }
 }
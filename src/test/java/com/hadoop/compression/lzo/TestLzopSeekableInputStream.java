@@ -0,0 +1,132 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Test reading an indexed lzo file at random uncompressed positions.
+ */
+public class TestLzopSeekableInputStream extends TestCase {
+  private Path outputDir;
+  private byte[] data;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    outputDir = new Path(testBuildData, "seekableDir");
+
+    // Mostly compressible text, with a stretch of random bytes which is
+    // stored uncompressed.
+    Random random = new Random(5);
+    data = new byte[1000000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)('a' + random.nextInt(4));
+    }
+    byte[] noise = new byte[100000];
+    random.nextBytes(noise);
+    System.arraycopy(noise, 0, data, 300000, noise.length);
+  }
+
+  public void testV1Index() throws IOException {
+    runTest(1);
+  }
+
+  public void testV2Index() throws IOException {
+    runTest(2);
+  }
+
+  private void runTest(int indexVersion) throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 32 * 1024);
+    conf.setInt(LzoIndex.LZO_INDEX_VERSION_KEY, indexVersion);
+    conf.setInt(LzopCodec.LZOP_SEEKABLE_CACHE_BLOCKS_KEY, 2);
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    Path lzoFile = new Path(outputDir, "seekable.lzo");
+
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    out.write(data);
+    out.close();
+
+    LzopSeekableInputStream in = LzopSeekableInputStream.open(localFs, lzoFile);
+    assertEquals(data.length, in.getLength());
+    assertTrue(LzoIndex.readIndex(localFs, lzoFile).getNumberOfBlocks() > 30);
+
+    // Positional reads, which may span blocks.
+    Random random = new Random(7);
+    for (int i = 0; i < 200; i++) {
+      int len = random.nextInt(100000);
+      int position = random.nextInt(data.length - len + 1);
+      byte[] b = new byte[len];
+      in.readFully(position, b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, position, position + len), b));
+    }
+    assertEquals(0, in.getPos());
+
+    // Seeks and sequential reads.
+    in.seek(data.length - 10);
+    assertEquals(data[data.length - 10] & 0xFF, in.read());
+    byte[] b = new byte[20];
+    assertEquals(9, in.read(b, 0, b.length));
+    assertEquals(-1, in.read());
+    in.seek(12345);
+    assertEquals(data[12345] & 0xFF, in.read());
+    assertEquals(12346, in.getPos());
+    try {
+      in.seek(data.length + 1);
+      fail("Seeked past the end");
+    } catch (EOFException e) {
+      // expected
+    }
+    try {
+      in.readFully(data.length - 5, new byte[10]);
+      fail("Read past the end");
+    } catch (EOFException e) {
+      // expected
+    }
+    in.close();
+
+    // Without an index, there is no way to find the blocks.
+    localFs.delete(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+    try {
+      LzopSeekableInputStream.open(localFs, lzoFile);
+      fail("Opened an unindexed file");
+    } catch (IOException e) {
+      // expected
+    }
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import com.hadoop.compression.lzo.LzoCodec;
+import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzoIndexCache;
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * Test packing many small lzo files, and the block ranges of a big indexed
+ * one, into combined splits, and reading every line back from them.
+ */
+public class TestCombineLzoTextInputFormat extends TestCase {
+  private Path outputDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    outputDir = new Path(testBuildData, "combineDir");
+  }
+
+  public void testCombinedSplits() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setLong("fs.local.block.size", 256 * 1024);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    Random random = new Random(13);
+    List<String> expected = new ArrayList<String>();
+    int files = 40;
+    for (int i = 0; i <= files; i++) {
+      // Small files, every other one indexed, and one big indexed file.
+      boolean big = i == files;
+      Path lzoFile = new Path(outputDir, "part-" + i + ".lzo");
+      OutputStream out = i % 2 == 0 ?
+          codec.createIndexedOutputStream(localFs.create(lzoFile),
+              localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor()) :
+          codec.createOutputStream(localFs.create(lzoFile), codec.createCompressor());
+      int lines = big ? 40000 : random.nextInt(500);
+      for (int j = 0; j < lines; j++) {
+        String line = i + ":" + j + ":" + Long.toHexString(random.nextLong());
+        out.write((line + "\n").getBytes("UTF-8"));
+        expected.add(line);
+      }
+      out.close();
+    }
+
+    Job job = new Job(conf);
+    FileInputFormat.setInputPaths(job, outputDir);
+    FileInputFormat.setMaxInputSplitSize(job, 128 * 1024);
+    CombineLzoTextInputFormat inputFormat = new CombineLzoTextInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    assertTrue("Too many splits: " + splits.size(), splits.size() < files / 2);
+
+    LzoIndex bigIndex = LzoIndex.readIndex(localFs, new Path(outputDir, "part-" + files + ".lzo"));
+    List<String> actual = new ArrayList<String>();
+    boolean bigFileSplit = false;
+    TaskAttemptContext context = CompatibilityUtil.newTaskAttemptContext(job.getConfiguration(),
+        new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+    for (InputSplit split : splits) {
+      CombineFileSplit combineSplit = (CombineFileSplit) split;
+      for (int i = 0; i < combineSplit.getNumPaths(); i++) {
+        if (combineSplit.getPath(i).getName().equals("part-" + files + ".lzo")) {
+          long offset = combineSplit.getOffset(i);
+          if (offset != 0) {
+            bigFileSplit = true;
+            assertEquals(offset, bigIndex.findNextPosition(offset));
+          }
+        }
+      }
+
+      RecordReader<LongWritable, Text> reader = inputFormat.createRecordReader(split, context);
+      reader.initialize(split, context);
+      assertEquals(0.0f, reader.getProgress());
+      while (reader.nextKeyValue()) {
+        actual.add(reader.getCurrentValue().toString());
+      }
+      assertEquals(1.0f, reader.getProgress());
+      reader.close();
+    }
+    assertTrue("The big file wasn't split", bigFileSplit);
+
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+}
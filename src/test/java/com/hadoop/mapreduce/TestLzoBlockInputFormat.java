@@ -0,0 +1,130 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import com.hadoop.compression.lzo.LzoCodec;
+import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzoIndexCache;
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * Test reading an indexed lzo file in several splits a block at a time, and
+ * getting every block once, at the positions the index has.
+ */
+public class TestLzoBlockInputFormat extends TestCase {
+  private Path outputDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    outputDir = new Path(testBuildData, "blockDir");
+  }
+
+  public void testBlocks() throws IOException, InterruptedException {
+    runTest(0);
+  }
+
+  public void testBlocksWithReadAhead() throws IOException, InterruptedException {
+    runTest(4);
+  }
+
+  private void runTest(int readAheadBlocks) throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setInt(LzopCodec.LZOP_READAHEAD_BLOCKS_KEY, readAheadBlocks);
+    conf.setLong("fs.local.block.size", 100 * 1024);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    Path lzoFile = new Path(outputDir, "blocks.lzo");
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    Random random = new Random(43);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 40000; i++) {
+      byte[] line = (i + ":" + Long.toHexString(random.nextLong()) + "\n").getBytes("UTF-8");
+      out.write(line);
+      expected.write(line);
+    }
+    out.close();
+
+    Job job = new Job(conf);
+    FileInputFormat.setInputPaths(job, outputDir);
+    LzoBlockInputFormat inputFormat = new LzoBlockInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    assertTrue(splits.size() > 3);
+
+    TaskAttemptContext context = CompatibilityUtil.newTaskAttemptContext(job.getConfiguration(),
+        new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    List<Long> positions = new ArrayList<Long>();
+    for (InputSplit split : splits) {
+      RecordReader<LongWritable, BytesWritable> reader =
+          inputFormat.createRecordReader(split, context);
+      reader.initialize(split, context);
+      while (reader.nextKeyValue()) {
+        BytesWritable block = reader.getCurrentValue();
+        assertTrue(block.getLength() <= 16 * 1024);
+        actual.write(block.getBytes(), 0, block.getLength());
+        positions.add(reader.getCurrentKey().get());
+      }
+      assertEquals(1.0f, reader.getProgress());
+      reader.close();
+    }
+    assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+
+    LzoIndex index = LzoIndex.readIndex(localFs, lzoFile);
+    assertEquals(index.getNumberOfBlocks(), positions.size());
+    for (int i = 0; i < positions.size(); i++) {
+      assertEquals(index.getPosition(i), positions.get(i).longValue());
+    }
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import com.hadoop.compression.lzo.LzoCodec;
+import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * Test indexing an lzo file split across several mappers, as the
+ * DistributedLzoIndexer does, by running each split's reader and writer in
+ * turn and then committing the job.
+ */
+public class TestLzoSplitInputFormat extends TestCase {
+  private Path outputDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    outputDir = new Path(testBuildData, "splitIndexDir");
+  }
+
+  public void testSplitIndexing() throws Exception {
+    runTest(1, false, true);
+  }
+
+  public void testSplitIndexingV2() throws Exception {
+    runTest(2, false, true);
+  }
+
+  public void testWholeFileIndexing() throws Exception {
+    runTest(1, false, false);
+  }
+
+  /**
+   * A split whose partial index is lost must fail the merge, rather than
+   * leave a hole in the index.
+   */
+  public void testMissingPartialIndex() throws Exception {
+    runTest(1, true, true);
+  }
+
+  private void runTest(int indexVersion, boolean losePart, boolean splitFiles)
+      throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean(LzoSplitInputFormat.LZO_SPLIT_FILES_KEY, splitFiles);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setInt(LzoIndex.LZO_INDEX_VERSION_KEY, indexVersion);
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    Path lzoFile = new Path(outputDir, "split.lzo");
+
+    // Compressible text, with a stretch of random bytes which is stored
+    // uncompressed, for the splits to find their first blocks in.
+    Random random = new Random(9);
+    byte[] data = new byte[1500000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)('a' + random.nextInt(16));
+    }
+    byte[] noise = new byte[300000];
+    random.nextBytes(noise);
+    System.arraycopy(noise, 0, data, 500000, noise.length);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createOutputStream(localFs.create(lzoFile), codec.createCompressor());
+    out.write(data);
+    out.close();
+
+    LzoIndex.createIndex(localFs, lzoFile);
+    LzoIndex expected = LzoIndex.readIndex(localFs, lzoFile);
+    localFs.delete(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+
+    Job job = new Job(conf);
+    FileInputFormat.addInputPath(job, lzoFile);
+    FileInputFormat.setMaxInputSplitSize(job, 50 * 1024);
+    LzoSplitInputFormat inputFormat = new LzoSplitInputFormat();
+    LzoIndexOutputFormat outputFormat = new LzoIndexOutputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    assertTrue(splitFiles ? splits.size() > 10 : splits.size() == 1);
+
+    OutputCommitter committer = null;
+    for (int i = 0; i < splits.size(); i++) {
+      // Every task has a speculative attempt, which only the first split's
+      // commits; the others' are killed before they commit or abort.
+      TaskID taskId = TaskID.forName(String.format("task_123_0001_m_%06d", i));
+      TaskAttemptID speculativeId = new TaskAttemptID(taskId, 1);
+      TaskAttemptID attemptId = new TaskAttemptID(taskId, 0);
+      runAttempt(inputFormat, outputFormat, splits.get(i), job.getConfiguration(), speculativeId);
+      runAttempt(inputFormat, outputFormat, splits.get(i), job.getConfiguration(), attemptId);
+      // The committer gets contexts of its own, as under Hadoop 1, where
+      // each context copies the job's configuration.
+      TaskAttemptContext speculative = CompatibilityUtil.newTaskAttemptContext(
+          new Configuration(job.getConfiguration()), speculativeId);
+      TaskAttemptContext context = CompatibilityUtil.newTaskAttemptContext(
+          new Configuration(job.getConfiguration()), attemptId);
+      committer = outputFormat.getOutputCommitter(context);
+      if (i == 0) {
+        assertTrue(committer.needsTaskCommit(speculative));
+        committer.commitTask(speculative);
+        assertTrue(committer.needsTaskCommit(context));
+        committer.abortTask(context);
+        assertFalse(committer.needsTaskCommit(context));
+      } else {
+        assertTrue(committer.needsTaskCommit(context));
+        committer.commitTask(context);
+      }
+    }
+
+    Path partsDir = lzoFile.suffix(LzoIndexRecordWriter.LZO_INDEX_PARTS_SUFFIX);
+    if (splitFiles) {
+      FileStatus[] parts = localFs.listStatus(partsDir,
+          LzoIndexRecordWriter.completePartsFilter);
+      assertEquals(splits.size(), parts.length);
+      if (losePart) {
+        localFs.delete(parts[parts.length / 2].getPath(), false);
+      }
+    }
+
+    try {
+      committer.commitJob(job);
+      assertFalse("Merged a partial index with a hole in it", losePart);
+    } catch (IOException e) {
+      assertTrue(losePart);
+    }
+    assertFalse(localFs.exists(partsDir));
+    FileStatus[] leftovers =
+        localFs.globStatus(lzoFile.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX + "*"));
+    assertTrue(leftovers == null || leftovers.length == 0);
+
+    if (losePart) {
+      assertFalse(localFs.exists(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)));
+    } else {
+      LzoIndex index = LzoIndex.readIndex(localFs, lzoFile);
+      assertEquals(expected.getNumberOfBlocks(), index.getNumberOfBlocks());
+      for (int i = 0; i < index.getNumberOfBlocks(); i++) {
+        assertEquals(expected.getPosition(i), index.getPosition(i));
+        assertEquals(expected.getUncompressedOffset(i), index.getUncompressedOffset(i));
+      }
+    }
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  private void runAttempt(LzoSplitInputFormat inputFormat,
+      LzoIndexOutputFormat outputFormat, InputSplit split, Configuration conf,
+      TaskAttemptID attemptId) throws Exception {
+    // Each attempt gets a configuration of its own, as in its own task.
+    TaskAttemptContext context =
+        CompatibilityUtil.newTaskAttemptContext(new Configuration(conf), attemptId);
+    RecordReader<Path, LongWritable> reader = inputFormat.createRecordReader(split, context);
+    reader.initialize(split, context);
+    RecordWriter<Path, LongWritable> writer = outputFormat.getRecordWriter(context);
+    while (reader.nextKeyValue()) {
+      writer.write(reader.getCurrentKey(), reader.getCurrentValue());
+    }
+    reader.close();
+    writer.close(context);
+  }
+}
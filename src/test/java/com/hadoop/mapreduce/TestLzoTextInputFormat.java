@@ -19,6 +19,8 @@
 package com.hadoop.mapreduce;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -31,11 +33,17 @@ import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputCommitter;
@@ -48,11 +56,17 @@ import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
-import com.hadoop.compression.lzo.GPLNativeCodeLoader;
+import com.hadoop.compression.lzo.LzoCodec;
 import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzoIndexCache;
+import com.hadoop.compression.lzo.LzoIndexWriter;
 import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.LzoLineBatch;
 import com.hadoop.compression.lzo.LzopCodec;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
+import com.hadoop.mapred.DeprecatedLzoFileSplit;
+import com.hadoop.mapred.DeprecatedLzoTextBatchInputFormat;
+import com.hadoop.mapred.DeprecatedLzoTextInputFormat;
 
 /**
  * Test the LzoTextInputFormat, make sure it splits the file properly and
@@ -105,6 +119,114 @@ public class TestLzoTextInputFormat extends TestCase {
     assertEquals(10, index.alignSliceEndToIndex(10, 30));
     assertEquals(30, index.alignSliceEndToIndex(17, 30));
     assertEquals(LzoIndex.NOT_FOUND, index.alignSliceStartToIndex(16, 20));
+
+    assertEquals(0, index.findNearestPosition(-1));
+    assertEquals(0, index.findNearestPosition(2));
+    assertEquals(5, index.findNearestPosition(3));
+    assertEquals(10, index.findNearestPosition(11));
+    assertEquals(15, index.findNearestPosition(40));
+    assertEquals(0, index.alignSliceBoundaryToNearest(0, 30));
+    assertEquals(10, index.alignSliceBoundaryToNearest(12, 30));
+    assertEquals(30, index.alignSliceBoundaryToNearest(30, 30));
+  }
+
+  /**
+   * Make sure split hosts are those holding the most of the split.
+   */
+  public void testSplitHosts() throws IOException {
+    BlockLocation[] locations = {
+        new BlockLocation(null, new String[] { "a", "b" }, 0, 100),
+        new BlockLocation(null, new String[] { "c", "d" }, 100, 100),
+        new BlockLocation(null, new String[] { "b", "e" }, 200, 100) };
+    // Mostly on the second block, which the first split's hosts don't hold.
+    assertEquals(Arrays.asList("c", "d"),
+        Arrays.asList(LzoInputFormatCommon.getSplitHosts(locations, 90, 100)));
+    // b holds parts of two blocks.
+    assertEquals(Arrays.asList("b", "c"),
+        Arrays.asList(LzoInputFormatCommon.getSplitHosts(locations, 60, 200)));
+    assertEquals(Arrays.asList("b", "e"),
+        Arrays.asList(LzoInputFormatCommon.getSplitHosts(locations, 250, 50)));
+  }
+
+  /**
+   * Make sure an index opened lazily from its file finds the same positions
+   * as one read into memory, across several pages of the file.
+   */
+  public void testOpenIndex() throws IOException {
+    FileSystem localFs = FileSystem.getLocal(new Configuration());
+    localFs.delete(outputDir, true);
+    Path lzoFile = new Path(outputDir, lzoFileName);
+    assertTrue(LzoIndex.openIndex(localFs, lzoFile).isEmpty());
+
+    FSDataOutputStream indexOut = localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX));
+    int blocks = 1500;
+    for (int i = 0; i < blocks; i++) {
+      indexOut.writeLong(10L * i + 7);
+    }
+    indexOut.close();
+
+    LzoIndex expected = LzoIndex.readIndex(localFs, lzoFile);
+    LzoIndex index = LzoIndex.openIndex(localFs, lzoFile);
+    assertEquals(blocks, index.getNumberOfBlocks());
+    for (long pos = -1; pos <= 10L * blocks + 10; pos += 3) {
+      assertEquals(expected.findNextPosition(pos), index.findNextPosition(pos));
+    }
+    assertEquals(7, index.getPosition(0));
+    assertEquals(10L * (blocks - 1) + 7, index.getPosition(blocks - 1));
+    assertEquals(LzoIndex.NOT_FOUND, index.alignSliceStartToIndex(10L * blocks, 10L * blocks + 20));
+    assertEquals(10L * blocks + 20, index.alignSliceEndToIndex(10L * blocks, 10L * blocks + 20));
+    index.close();
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Make sure a version 2 index reads back the positions and uncompressed
+   * offsets it was written with, both in full and lazily, across several
+   * restart intervals.
+   */
+  public void testV2Index() throws IOException {
+    FileSystem localFs = FileSystem.getLocal(new Configuration());
+    localFs.delete(outputDir, true);
+    Path lzoFile = new Path(outputDir, lzoFileName);
+
+    int blocks = 1500;
+    long[] positions = new long[blocks];
+    long[] uncompressedOffsets = new long[blocks + 1];
+    Random random = new Random(11);
+    LzoIndexWriter writer = new LzoIndexWriter(
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), 2);
+    long pos = 42;
+    for (int i = 0; i < blocks; i++) {
+      // Mostly full blocks, with the odd short one.
+      int size = random.nextInt(10) == 0 ? random.nextInt(256 * 1024) : 256 * 1024;
+      positions[i] = pos;
+      uncompressedOffsets[i + 1] = uncompressedOffsets[i] + size;
+      writer.writeBlock(pos, size);
+      pos += 12 + random.nextInt(size + 1);
+    }
+    writer.close();
+
+    LzoIndex[] indexes = { LzoIndex.readIndex(localFs, lzoFile),
+        LzoIndex.openIndex(localFs, lzoFile) };
+    for (LzoIndex index : indexes) {
+      assertEquals(blocks, index.getNumberOfBlocks());
+      assertTrue(index.hasUncompressedOffsets());
+      // Backwards, so that the lazy index reads its pages out of order.
+      for (int i = blocks; i >= 0; i--) {
+        if (i < blocks) {
+          assertEquals(positions[i], index.getPosition(i));
+        }
+        assertEquals(uncompressedOffsets[i], index.getUncompressedOffset(i));
+      }
+      index.close();
+    }
+    // Well under the 8 bytes a block of a version 1 index.
+    assertTrue(localFs.getFileStatus(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)).getLen()
+        < 6L * blocks);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
   }
 
   /**
@@ -135,6 +257,34 @@ public class TestLzoTextInputFormat extends TestCase {
     runTest(false, OUTPUT_SMALL);
   }
 
+  /**
+   * Index the file and make sure the splits still line up when the lzop
+   * stream reads blocks ahead of the record reader.
+   *
+   * @throws NoSuchAlgorithmException
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void testWithIndexAndReadAhead() throws NoSuchAlgorithmException, IOException,
+      InterruptedException {
+
+    runTest(true, OUTPUT_BIG, 4);
+  }
+
+  /**
+   * Index the file with a version 2 index and make sure it splits properly.
+   *
+   * @throws NoSuchAlgorithmException
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void testWithV2Index() throws NoSuchAlgorithmException, IOException,
+      InterruptedException {
+
+    runTest(true, OUTPUT_BIG, 0, 2);
+    runTest(true, OUTPUT_SMALL, 0, 2);
+  }
+
   /**
    * Generate random data, compress it, index and md5 hash the data.
    * Then read it all back and md5 that too, to verify that it all went ok.
@@ -147,13 +297,20 @@ public class TestLzoTextInputFormat extends TestCase {
    */
   private void runTest(boolean testWithIndex, int charsToOutput) throws IOException,
       NoSuchAlgorithmException, InterruptedException {
+    runTest(testWithIndex, charsToOutput, 0);
+  }
 
-    if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
-      LOG.warn("Cannot run this test without the native lzo libraries");
-      return;
-    }
+  private void runTest(boolean testWithIndex, int charsToOutput, int readAheadBlocks)
+      throws IOException, NoSuchAlgorithmException, InterruptedException {
+    runTest(testWithIndex, charsToOutput, readAheadBlocks, LzoIndex.DEFAULT_LZO_INDEX_VERSION);
+  }
+
+  private void runTest(boolean testWithIndex, int charsToOutput, int readAheadBlocks,
+      int indexVersion) throws IOException, NoSuchAlgorithmException, InterruptedException {
 
     Configuration conf = new Configuration();
+    conf.setInt(LzoIndex.LZO_INDEX_VERSION_KEY, indexVersion);
+    conf.setInt(LzopCodec.LZOP_READAHEAD_BLOCKS_KEY, readAheadBlocks);
     conf.setLong("fs.local.block.size", charsToOutput / 2);
     // reducing block size to force a split of the tiny file
     conf.set("io.compression.codecs", LzopCodec.class.getName());
@@ -161,6 +318,8 @@ public class TestLzoTextInputFormat extends TestCase {
     FileSystem localFs = FileSystem.getLocal(conf);
     localFs.delete(outputDir, true);
     localFs.mkdirs(outputDir);
+    // Indexes are rewritten faster than local file modification times change.
+    LzoIndexCache.getSharedCache().clear();
 
     Job job = new Job(conf);
     TextOutputFormat.setCompressOutput(job, true);
@@ -209,6 +368,612 @@ public class TestLzoTextInputFormat extends TestCase {
     assertTrue(Arrays.equals(expectedMd5, md5.digest()));
   }
 
+  /**
+   * Plan the splits of many indexed files with their indexes got on several
+   * threads, through both APIs, and compare them with the splits planned
+   * serially.
+   */
+  public void testParallelIndexLoading() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setLong("fs.local.block.size", 64 * 1024);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    Random random = new Random(11);
+    for (int i = 0; i < 12; i++) {
+      Path lzoFile = new Path(outputDir, "part-" + i + ".lzo");
+      OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+          localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+      byte[] data = new byte[random.nextInt(400 * 1024)];
+      random.nextBytes(data);
+      out.write(data);
+      out.close();
+    }
+
+    Configuration serialConf = new Configuration(conf);
+    serialConf.setLong(LzoIndexCache.LZO_INDEX_CACHE_SIZE_KEY, 0);
+    Configuration parallelConf = new Configuration(conf);
+    parallelConf.setInt(LzoInputFormatCommon.INDEX_THREADS_KEY, 4);
+
+    Job serialJob = new Job(serialConf);
+    TextInputFormat.setInputPaths(serialJob, outputDir);
+    List<InputSplit> expected = new LzoTextInputFormat().getSplits(serialJob);
+    assertTrue(expected.size() > 12);
+    Job parallelJob = new Job(parallelConf);
+    TextInputFormat.setInputPaths(parallelJob, outputDir);
+    // Twice, the second time from the cache.
+    for (int i = 0; i < 2; i++) {
+      assertEquals(toStrings(expected), toStrings(new LzoTextInputFormat().getSplits(parallelJob)));
+    }
+    assertEquals(12, LzoIndexCache.getSharedCache().getHits());
+
+    JobConf jobConf = new JobConf(parallelConf);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, outputDir);
+    DeprecatedLzoTextInputFormat deprecatedInputFormat = new DeprecatedLzoTextInputFormat();
+    deprecatedInputFormat.configure(jobConf);
+    List<String> deprecatedSplits = new ArrayList<String>();
+    for (org.apache.hadoop.mapred.InputSplit split : deprecatedInputFormat.getSplits(jobConf, 1)) {
+      org.apache.hadoop.mapred.FileSplit fileSplit = (org.apache.hadoop.mapred.FileSplit)split;
+      deprecatedSplits.add(fileSplit.getPath() + ":" + fileSplit.getStart() + "+" +
+          fileSplit.getLength());
+    }
+    assertEquals(toStrings(expected), deprecatedSplits);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  public void testSplitByUncompressedSize() throws IOException, InterruptedException {
+    runTestSplitByUncompressedSize(1);
+    runTestSplitByUncompressedSize(2);
+  }
+
+  /**
+   * Check splitting a highly compressible file by uncompressed size makes
+   * about as many splits as splitting it by size in the file, in both APIs.
+   */
+  public void testSplitByUncompressedSizeCount() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    Path lzoFile = new Path(outputDir, lzoFileName);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    long uncompressedLength = 0;
+    for (int i = 0; i < 200000; i++) {
+      String line = i + ": the same line of text, over and over again\n";
+      out.write(line.getBytes("UTF-8"));
+      uncompressedLength += line.length();
+    }
+    out.close();
+    long lzoLength = localFs.getFileStatus(lzoFile).getLen();
+    assertTrue(uncompressedLength > 5 * lzoLength);
+
+    long splitSize = lzoLength / 10;
+    int[] counts = new int[2];
+    int[] deprecatedCounts = new int[2];
+    for (int i = 0; i < 2; i++) {
+      conf.setBoolean(LzoInputFormatCommon.SPLIT_BY_UNCOMPRESSED_SIZE_KEY, i == 1);
+      Job job = new Job(conf);
+      TextInputFormat.setInputPaths(job, outputDir);
+      TextInputFormat.setMaxInputSplitSize(job, splitSize);
+      counts[i] = new LzoTextInputFormat().getSplits(job).size();
+
+      JobConf jobConf = new JobConf(conf);
+      org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, outputDir);
+      DeprecatedLzoTextInputFormat deprecatedInputFormat = new DeprecatedLzoTextInputFormat();
+      deprecatedInputFormat.configure(jobConf);
+      deprecatedCounts[i] = deprecatedInputFormat.getSplits(jobConf, 10).length;
+    }
+    assertTrue(counts[0] >= 9);
+    assertTrue(counts[0] + " " + counts[1], Math.abs(counts[1] - counts[0]) <= 1);
+    assertTrue(deprecatedCounts[0] >= 9);
+    assertTrue(deprecatedCounts[0] + " " + deprecatedCounts[1],
+        Math.abs(deprecatedCounts[1] - deprecatedCounts[0]) <= 1);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Split a file of very compressible text followed by barely compressible
+   * text by uncompressed size, and check the splits hold about the same
+   * amount of text, and all of it.
+   */
+  private void runTestSplitByUncompressedSize(int indexVersion)
+      throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setInt(LzoIndex.LZO_INDEX_VERSION_KEY, indexVersion);
+    conf.setBoolean(LzoInputFormatCommon.SPLIT_BY_UNCOMPRESSED_SIZE_KEY, true);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    Path lzoFile = new Path(outputDir, lzoFileName);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    Random random = new Random(17);
+    List<String> expected = new ArrayList<String>();
+    long uncompressedLength = 0;
+    for (int i = 0; i < 40000; i++) {
+      String line = i < 20000 ? "the same line of text, over and over again" :
+          Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+      out.write((line + "\n").getBytes("UTF-8"));
+      expected.add(line);
+      uncompressedLength += line.length() + 1;
+    }
+    out.close();
+
+    // Splits hold the uncompressed bytes a split of the split size holds on
+    // average.
+    long splitSize = 64 * 1024;
+    long lzoLength = localFs.getFileStatus(lzoFile).getLen();
+    long target = splitSize * uncompressedLength / lzoLength;
+    Job job = new Job(conf);
+    TextInputFormat.setInputPaths(job, outputDir);
+    TextInputFormat.setMaxInputSplitSize(job, splitSize);
+    LzoTextInputFormat inputFormat = new LzoTextInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    assertTrue(splits.size() > 5);
+
+    TaskAttemptContext attemptContext =
+        CompatibilityUtil.newTaskAttemptContext(job.getConfiguration(),
+          new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+    List<String> actual = new ArrayList<String>();
+    long total = 0;
+    for (int i = 0; i < splits.size(); i++) {
+      LzoFileSplit split = (LzoFileSplit) splits.get(i);
+      total += split.getLength();
+      if (i < splits.size() - 1) {
+        assertTrue(split.toString(), split.getLength() >= target);
+        assertTrue(split.toString(), split.getLength() < target + 16 * 1024);
+      }
+      RecordReader<LongWritable, Text> rr = inputFormat.createRecordReader(split, attemptContext);
+      rr.initialize(split, attemptContext);
+      while (rr.nextKeyValue()) {
+        actual.add(rr.getCurrentValue().toString());
+      }
+      rr.close();
+    }
+    assertEquals(uncompressedLength, total);
+    assertEquals(expected, actual);
+
+    // The old API splits the same way, aiming for the split size it works
+    // out from the number of splits asked for.
+    JobConf jobConf = new JobConf(conf);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, outputDir);
+    DeprecatedLzoTextInputFormat deprecatedInputFormat = new DeprecatedLzoTextInputFormat();
+    deprecatedInputFormat.configure(jobConf);
+    int numSplits = (int) (lzoLength / splitSize) + 1;
+    long goalSize = lzoLength / numSplits;
+    long deprecatedTarget = goalSize * uncompressedLength / lzoLength;
+    org.apache.hadoop.mapred.InputSplit[] deprecatedSplits =
+        deprecatedInputFormat.getSplits(jobConf, numSplits);
+    assertTrue(deprecatedSplits.length > 5);
+    List<String> deprecatedActual = new ArrayList<String>();
+    total = 0;
+    for (int i = 0; i < deprecatedSplits.length; i++) {
+      org.apache.hadoop.mapred.InputSplit split = deprecatedSplits[i];
+      total += split.getLength();
+      if (i < deprecatedSplits.length - 1) {
+        assertTrue(split.toString(), split.getLength() >= deprecatedTarget);
+        assertTrue(split.toString(), split.getLength() < deprecatedTarget + 16 * 1024);
+      }
+      org.apache.hadoop.mapred.RecordReader<LongWritable, Text> rr =
+          deprecatedInputFormat.getRecordReader(split, jobConf, Reporter.NULL);
+      LongWritable key = rr.createKey();
+      Text value = rr.createValue();
+      while (rr.next(key, value)) {
+        deprecatedActual.add(value.toString());
+      }
+      rr.close();
+    }
+    assertEquals(uncompressedLength, total);
+    assertEquals(expected, deprecatedActual);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Read a file split at the nearest lzo blocks to the HDFS blocks, and
+   * check every line is read once.
+   */
+  public void testAlignNearest() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setLong("fs.local.block.size", 100 * 1024);
+    conf.setBoolean(LzoInputFormatCommon.ALIGN_NEAREST_KEY, true);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    Path lzoFile = new Path(outputDir, lzoFileName);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    Random random = new Random(19);
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 40000; i++) {
+      String line = i + ":" + Long.toHexString(random.nextLong());
+      out.write((line + "\n").getBytes("UTF-8"));
+      expected.add(line);
+    }
+    out.close();
+
+    Job job = new Job(conf);
+    TextInputFormat.setInputPaths(job, outputDir);
+    LzoTextInputFormat inputFormat = new LzoTextInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    assertTrue(splits.size() > 3);
+
+    LzoIndex index = LzoIndex.readIndex(localFs, lzoFile);
+    TaskAttemptContext attemptContext =
+        CompatibilityUtil.newTaskAttemptContext(job.getConfiguration(),
+          new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+    List<String> actual = new ArrayList<String>();
+    boolean movedBack = false;
+    for (InputSplit split : splits) {
+      FileSplit fileSplit = (FileSplit) split;
+      if (fileSplit.getStart() != 0) {
+        assertEquals(fileSplit.getStart(), index.findNextPosition(fileSplit.getStart()));
+        // Splits start on HDFS blocks, and lzo blocks are much smaller.
+        movedBack |= fileSplit.getStart() % (100 * 1024) > 50 * 1024;
+      }
+      RecordReader<LongWritable, Text> rr = inputFormat.createRecordReader(split, attemptContext);
+      rr.initialize(split, attemptContext);
+      while (rr.nextKeyValue()) {
+        actual.add(rr.getCurrentValue().toString());
+      }
+      rr.close();
+    }
+    assertTrue("No boundary moved back to an earlier block", movedBack);
+    assertEquals(expected, actual);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Check splits after the first carry the file's header and block
+   * positions, and are read without reading the start of the file.
+   */
+  public void testSplitHeader() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setLong("fs.local.block.size", 100 * 1024);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LocalFileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    Path lzoFile = new Path(outputDir, lzoFileName);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    Random random = new Random(23);
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 40000; i++) {
+      String line = i + ":" + Long.toHexString(random.nextLong());
+      out.write((line + "\n").getBytes("UTF-8"));
+      expected.add(line);
+    }
+    out.close();
+
+    Job job = new Job(conf);
+    TextInputFormat.setInputPaths(job, outputDir);
+    LzoTextInputFormat inputFormat = new LzoTextInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    assertTrue(splits.size() > 3);
+    LzoIndex index = LzoIndex.readIndex(localFs, lzoFile);
+    JobConf jobConf = new JobConf(conf);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, outputDir);
+    DeprecatedLzoTextInputFormat deprecatedInputFormat = new DeprecatedLzoTextInputFormat();
+    deprecatedInputFormat.configure(jobConf);
+    org.apache.hadoop.mapred.InputSplit[] deprecatedSplits =
+        deprecatedInputFormat.getSplits(jobConf, 1);
+    assertTrue(deprecatedSplits.length > 3);
+
+    // Overwrite the header, and more, so that reading it would fail.
+    RandomAccessFile file = new RandomAccessFile(localFs.pathToFile(lzoFile), "rw");
+    try {
+      file.write(new byte[100]);
+    } finally {
+      file.close();
+    }
+    localFs.delete(localFs.getChecksumFile(lzoFile), false);
+
+    TaskAttemptContext attemptContext =
+        CompatibilityUtil.newTaskAttemptContext(job.getConfiguration(),
+          new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+    List<String> actual = new ArrayList<String>();
+    for (InputSplit split : splits) {
+      FileSplit fileSplit = (FileSplit) split;
+      if (fileSplit.getStart() == 0) {
+        continue;
+      }
+      LzoFileSplit lzoSplit = (LzoFileSplit) split;
+      assertNotNull(lzoSplit.getHeader());
+      long[] offsets = lzoSplit.getBlockOffsets();
+      assertTrue(offsets.length > 0);
+      assertEquals(lzoSplit.getStart(), offsets[0]);
+      for (long offset : offsets) {
+        assertEquals(offset, index.findNextPosition(offset));
+      }
+
+      DataOutputBuffer bytes = new DataOutputBuffer();
+      lzoSplit.write(bytes);
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(bytes.getData(), bytes.getLength());
+      LzoFileSplit copy = new LzoFileSplit();
+      copy.readFields(in);
+      assertEquals(lzoSplit.toString(), copy.toString());
+      assertEquals(lzoSplit.getHeader().toString(), copy.getHeader().toString());
+      assertTrue(Arrays.equals(offsets, copy.getBlockOffsets()));
+
+      RecordReader<LongWritable, Text> rr = inputFormat.createRecordReader(copy, attemptContext);
+      rr.initialize(copy, attemptContext);
+      while (rr.nextKeyValue()) {
+        actual.add(rr.getCurrentValue().toString());
+      }
+      rr.close();
+    }
+    // The first split held the lines before those read.
+    int first = expected.indexOf(actual.get(0));
+    assertTrue(first >= 0);
+    assertEquals(expected.subList(first, expected.size()), actual);
+
+    // The old API's splits carry the header too.
+    List<String> deprecatedActual = new ArrayList<String>();
+    for (org.apache.hadoop.mapred.InputSplit split : deprecatedSplits) {
+      if (((org.apache.hadoop.mapred.FileSplit) split).getStart() == 0) {
+        continue;
+      }
+      DeprecatedLzoFileSplit lzoSplit = (DeprecatedLzoFileSplit) split;
+      assertNotNull(lzoSplit.getHeader());
+      long[] offsets = lzoSplit.getBlockOffsets();
+      assertTrue(offsets.length > 0);
+      assertEquals(lzoSplit.getStart(), offsets[0]);
+
+      DataOutputBuffer bytes = new DataOutputBuffer();
+      lzoSplit.write(bytes);
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(bytes.getData(), bytes.getLength());
+      DeprecatedLzoFileSplit copy = new DeprecatedLzoFileSplit();
+      copy.readFields(in);
+      assertEquals(lzoSplit.toString(), copy.toString());
+      assertEquals(lzoSplit.getHeader().toString(), copy.getHeader().toString());
+      assertTrue(Arrays.equals(offsets, copy.getBlockOffsets()));
+
+      org.apache.hadoop.mapred.RecordReader<LongWritable, Text> rr =
+          deprecatedInputFormat.getRecordReader(copy, jobConf, Reporter.NULL);
+      LongWritable key = rr.createKey();
+      Text value = rr.createValue();
+      while (rr.next(key, value)) {
+        deprecatedActual.add(value.toString());
+      }
+      rr.close();
+    }
+    first = expected.indexOf(deprecatedActual.get(0));
+    assertTrue(first >= 0);
+    assertEquals(expected.subList(first, expected.size()), deprecatedActual);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Check the batch input formats of both APIs return the lines and keys
+   * the line input formats do.
+   */
+  public void testBatches() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 16 * 1024);
+    conf.setLong("fs.local.block.size", 100 * 1024);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    Path lzoFile = new Path(outputDir, lzoFileName);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    Random random = new Random(31);
+    for (int i = 0; i < 40000; i++) {
+      String line = i + ":" + Long.toHexString(random.nextLong());
+      out.write((line + (i % 3 == 0 ? "\r\n" : "\n")).getBytes("UTF-8"));
+    }
+    out.close();
+
+    Job job = new Job(conf);
+    TextInputFormat.setInputPaths(job, outputDir);
+    LzoTextInputFormat lineFormat = new LzoTextInputFormat();
+    LzoTextBatchInputFormat batchFormat = new LzoTextBatchInputFormat();
+    List<InputSplit> splits = batchFormat.getSplits(job);
+    assertEquals(toStrings(lineFormat.getSplits(job)), toStrings(splits));
+    assertTrue(splits.size() > 3);
+
+    TaskAttemptContext attemptContext =
+        CompatibilityUtil.newTaskAttemptContext(job.getConfiguration(),
+          new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+    List<String> expected = new ArrayList<String>();
+    List<String> actual = new ArrayList<String>();
+    int batches = 0;
+    Text line = new Text();
+    for (InputSplit split : splits) {
+      RecordReader<LongWritable, Text> lineReader =
+          lineFormat.createRecordReader(split, attemptContext);
+      lineReader.initialize(split, attemptContext);
+      while (lineReader.nextKeyValue()) {
+        expected.add(lineReader.getCurrentKey() + "\t" + lineReader.getCurrentValue());
+      }
+      lineReader.close();
+
+      RecordReader<LongWritable, LzoLineBatch> batchReader =
+          batchFormat.createRecordReader(split, attemptContext);
+      batchReader.initialize(split, attemptContext);
+      while (batchReader.nextKeyValue()) {
+        LzoLineBatch batch = batchReader.getCurrentValue();
+        assertEquals(batch.getKey(0), batchReader.getCurrentKey().get());
+        // Through serialization half the time.
+        if (batches++ % 2 == 0) {
+          DataOutputBuffer bytes = new DataOutputBuffer();
+          batch.write(bytes);
+          DataInputBuffer in = new DataInputBuffer();
+          in.reset(bytes.getData(), bytes.getLength());
+          batch = new LzoLineBatch();
+          batch.readFields(in);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          batch.getLine(i, line);
+          actual.add(batch.getKey(i) + "\t" + line);
+        }
+      }
+      batchReader.close();
+    }
+    assertEquals(40000, expected.size());
+    assertEquals(expected, actual);
+    // Batches are about a block of lines each.
+    assertTrue("Only " + batches + " batches", batches > 40);
+    assertTrue(batches + " batches", batches < 1000);
+
+    JobConf jobConf = new JobConf(conf);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, outputDir);
+    DeprecatedLzoTextBatchInputFormat deprecatedFormat = new DeprecatedLzoTextBatchInputFormat();
+    deprecatedFormat.configure(jobConf);
+    List<String> deprecatedActual = new ArrayList<String>();
+    for (org.apache.hadoop.mapred.InputSplit split : deprecatedFormat.getSplits(jobConf, 1)) {
+      org.apache.hadoop.mapred.RecordReader<LongWritable, LzoLineBatch> batchReader =
+          deprecatedFormat.getRecordReader(split, jobConf, Reporter.NULL);
+      LongWritable key = batchReader.createKey();
+      LzoLineBatch batch = batchReader.createValue();
+      while (batchReader.next(key, batch)) {
+        for (int i = 0; i < batch.size(); i++) {
+          deprecatedActual.add(batch.getKey(i) + "\t" +
+              new String(batch.getBytes(), batch.getStart(i), batch.getLength(i), "UTF-8"));
+        }
+      }
+      batchReader.close();
+    }
+    assertEquals(expected, deprecatedActual);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Read a file of records ending in multi-byte delimiters in many splits,
+   * so that delimiters run across split boundaries, and check every record
+   * is read once, from both APIs.
+   */
+  public void testRecordDelimiter() throws IOException, InterruptedException {
+    for (String delimiter : new String[] { "\u0001\n", "\r\n##" }) {
+      runTestRecordDelimiter(delimiter);
+    }
+  }
+
+  private void runTestRecordDelimiter(String delimiter) throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.setInt(LzoCodec.LZO_BUFFER_SIZE_KEY, 1024);
+    conf.set(LzoInputFormatCommon.RECORD_DELIMITER_KEY, delimiter);
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    localFs.delete(outputDir, true);
+    LzoIndexCache.getSharedCache().clear();
+
+    Path lzoFile = new Path(outputDir, lzoFileName);
+    LzopCodec codec = new LzopCodec();
+    codec.setConf(conf);
+    OutputStream out = codec.createIndexedOutputStream(localFs.create(lzoFile),
+        localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX)), codec.createCompressor());
+    Random random = new Random(41);
+    List<String> expected = new ArrayList<String>();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      // Records with line ends in them, which don't end records here.
+      String record = i + (random.nextBoolean() ? "\n" : "") + Long.toHexString(random.nextLong());
+      text.append(record).append(delimiter);
+      expected.add(record);
+    }
+    // In one write, so that blocks end in the middle of records and delimiters.
+    out.write(text.toString().getBytes("UTF-8"));
+    out.close();
+
+    Job job = new Job(conf);
+    TextInputFormat.setInputPaths(job, outputDir);
+    TextInputFormat.setMaxInputSplitSize(job, 2 * 1024);
+    LzoTextInputFormat inputFormat = new LzoTextInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    assertTrue(splits.size() > 100);
+
+    TaskAttemptContext attemptContext =
+        CompatibilityUtil.newTaskAttemptContext(job.getConfiguration(),
+          new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 0));
+    List<String> actual = new ArrayList<String>();
+    for (InputSplit split : splits) {
+      RecordReader<LongWritable, Text> rr = inputFormat.createRecordReader(split, attemptContext);
+      rr.initialize(split, attemptContext);
+      while (rr.nextKeyValue()) {
+        actual.add(rr.getCurrentValue().toString());
+      }
+      rr.close();
+    }
+    assertEquals(expected, actual);
+
+    JobConf jobConf = new JobConf(conf);
+    jobConf.setLong("mapred.min.split.size", 0);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, outputDir);
+    DeprecatedLzoTextInputFormat deprecatedInputFormat = new DeprecatedLzoTextInputFormat();
+    deprecatedInputFormat.configure(jobConf);
+    List<String> deprecatedActual = new ArrayList<String>();
+    org.apache.hadoop.mapred.InputSplit[] deprecatedSplits =
+        deprecatedInputFormat.getSplits(jobConf, splits.size());
+    assertTrue(deprecatedSplits.length > 100);
+    for (org.apache.hadoop.mapred.InputSplit split : deprecatedSplits) {
+      org.apache.hadoop.mapred.RecordReader<LongWritable, Text> rr =
+          deprecatedInputFormat.getRecordReader(split, jobConf, Reporter.NULL);
+      LongWritable key = rr.createKey();
+      Text value = rr.createValue();
+      while (rr.next(key, value)) {
+        deprecatedActual.add(value.toString());
+      }
+      rr.close();
+    }
+    assertEquals(expected, deprecatedActual);
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  private static List<String> toStrings(List<InputSplit> splits) {
+    List<String> strings = new ArrayList<String>();
+    for (InputSplit split : splits) {
+      FileSplit fileSplit = (FileSplit)split;
+      strings.add(fileSplit.getPath() + ":" + fileSplit.getStart() + "+" + fileSplit.getLength());
+    }
+    return strings;
+  }
+
   /**
    * Creates an lzo file with random data.
    * 
@@ -289,11 +1054,6 @@ public class TestLzoTextInputFormat extends TestCase {
 
   private void runTestIgnoreNonLzo(boolean testWithIndex, int charsToOutput,
     boolean ignoreNonLzo) throws IOException, InterruptedException, NoSuchAlgorithmException {
-    if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
-      LOG.warn("Cannot run this test without the native lzo libraries");
-      return;
-    }
-
     Configuration conf = new Configuration();
     conf.setLong("fs.local.block.size", charsToOutput / 2);
     // reducing block size to force a split of the tiny file
@@ -303,6 +1063,8 @@ public class TestLzoTextInputFormat extends TestCase {
     FileSystem localFs = FileSystem.getLocal(conf);
     localFs.delete(outputDir, true);
     localFs.mkdirs(outputDir);
+    // Indexes are rewritten faster than local file modification times change.
+    LzoIndexCache.getSharedCache().clear();
 
     // Create a non-LZO input file and put it alongside the LZO files.
     Path nonLzoFile = new Path(outputDir, "part-r-00001");